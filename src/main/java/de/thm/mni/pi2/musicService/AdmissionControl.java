@@ -0,0 +1,176 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of requests working on the database at the same time, so a slow database makes requests fail fast
+ * instead of piling up without bound.
+ * <p>
+ * Up to the limit, requests are admitted right away. Further requests wait in a queue of at most queueSize requests
+ * and are admitted in arrival order as others finish; when the queue is full, a request is rejected with an
+ * {@link OverloadedException}. With an adaptive limit, the limit follows the observed latency: each request finishing
+ * within the target latency while at least half of the limit is in use raises it by 1/limit, up to the configured
+ * limit; a slower or failed request lowers it by a tenth, down to minLimit, at most once per round of requests.
+ * All methods are thread-safe, so one object can be shared by several verticle instances.
+ */
+public class AdmissionControl {
+  private static final int WAITING = 0;
+  private static final int ADMITTED = 1;
+  private static final int DONE = 2;
+
+  /**
+   * The place of one request, to be released once the request is done, whether it was admitted or not.
+   */
+  public final class Ticket {
+    private final Context context;
+    private final Promise<Void> promise = Promise.promise();
+    private int state = WAITING;
+    private long admittedAt;
+    private long round;
+
+    private Ticket(Context context) {
+      this.context = context;
+    }
+
+    /**
+     * @return A future completed, on the context the ticket was requested from, once the request is admitted,
+     * or failed with an {@link OverloadedException} if it is rejected or released while waiting.
+     */
+    public Future<Void> admitted() {
+      return promise.future();
+    }
+
+    /**
+     * Leaves the queue, or frees the place of an admitted request. Can be called more than once.
+     *
+     * @param failed Whether the request failed, which counts like a slow request for the adaptive limit.
+     */
+    public void release(boolean failed) {
+      AdmissionControl.this.release(this, failed);
+    }
+  }
+
+  private final Vertx vertx;
+  private final int maxLimit;
+  private final int minLimit;
+  private final int queueSize;
+  private final boolean adaptive;
+  private final long targetLatency;
+  private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+  private double limit;
+  private int inFlight;
+  private long rejected;
+  private long decreases;
+
+  /**
+   * @param limit         The maximum number of admitted requests.
+   * @param queueSize     The maximum number of waiting requests.
+   * @param adaptive      Whether to adapt the limit to the latency.
+   * @param minLimit      The lowest adaptive limit.
+   * @param targetLatency The latency in milliseconds above which a request counts as slow.
+   */
+  public AdmissionControl(Vertx vertx, int limit, int queueSize, boolean adaptive, int minLimit, long targetLatency) {
+    this.vertx = vertx;
+    this.maxLimit = limit;
+    this.minLimit = Math.max(1, Math.min(minLimit, limit));
+    this.queueSize = queueSize;
+    this.adaptive = adaptive;
+    this.targetLatency = targetLatency * 1_000_000;
+    this.limit = limit;
+  }
+
+  /**
+   * Requests a place for a request. If the request can be admitted right away, the future of the ticket
+   * is already completed.
+   */
+  public Ticket request() {
+    Ticket ticket = new Ticket(vertx.getOrCreateContext());
+    synchronized (this) {
+      if (inFlight < (int) limit) {
+        admit(ticket);
+        ticket.promise.complete();
+      } else if (queue.size() < queueSize) {
+        queue.add(ticket);
+      } else {
+        rejected++;
+        ticket.state = DONE;
+        ticket.promise.fail(new OverloadedException("Too many requests, try again later"));
+      }
+    }
+    return ticket;
+  }
+
+  private void release(Ticket ticket, boolean failed) {
+    List<Ticket> admitted = new ArrayList<>();
+    boolean waited;
+    synchronized (this) {
+      if (ticket.state == DONE) {
+        return;
+      }
+      waited = ticket.state == WAITING;
+      if (waited) {
+        queue.remove(ticket);
+      } else {
+        inFlight--;
+        adapt(ticket, failed);
+      }
+      ticket.state = DONE;
+      while (inFlight < (int) limit && !queue.isEmpty()) {
+        Ticket next = queue.poll();
+        admit(next);
+        admitted.add(next);
+      }
+    }
+    for (Ticket next : admitted) {
+      next.context.runOnContext(v -> next.promise.complete());
+    }
+    if (waited) {
+      ticket.context.runOnContext(v -> ticket.promise.tryFail(new OverloadedException("Request released while waiting")));
+    }
+  }
+
+  private void admit(Ticket ticket) {
+    ticket.state = ADMITTED;
+    ticket.admittedAt = System.nanoTime();
+    ticket.round = decreases;
+    inFlight++;
+  }
+
+  private void adapt(Ticket ticket, boolean failed) {
+    if (!adaptive) {
+      return;
+    }
+    if (failed || System.nanoTime() - ticket.admittedAt > targetLatency) {
+      // requests admitted before the last decrease still show the old load
+      if (ticket.round == decreases) {
+        limit = Math.max(minLimit, limit * 0.9);
+        decreases++;
+      }
+    } else if (inFlight + 1 >= limit / 2) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  public synchronized int queued() {
+    return queue.size();
+  }
+
+  public synchronized long rejected() {
+    return rejected;
+  }
+}
@@ -0,0 +1,413 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Executes the sub-requests of a batch in process, by calling the handlers registered with
+ * {@link #route(HttpMethod, String, boolean, Handler)}, so they pass the same validation, admission control and change
+ * feed as single requests. A sub-request costs no connection, compression or body parsing of its own: the body of the
+ * batch is parsed once, and the handlers answer on the event loop of the verticle that executes the batch. Each
+ * sub-request of an admitted route takes a place of the {@link AdmissionControl} while it runs, or is answered with
+ * 503 if it is rejected; the batch itself takes none.
+ * <p>
+ * Consecutive reads run concurrently; a write, or a request that refers to an earlier result, waits for all requests
+ * before it and runs alone. A string of the form ${n.field} in the path or body is replaced with the field of the
+ * response body of the earlier sub-request n, e.g. the ID returned by POST /users.
+ * <p>
+ * The writes of an atomic batch run one after the other in one {@link MusicRepository.Transaction}, which is rolled
+ * back at the first failed write and committed otherwise: other clients see all of its writes or none, also after a
+ * crash, and the change feed only carries the events of a committed batch. The reads of an atomic batch run after the
+ * commit and see all of its writes, so a write must not refer to the result of a read. The writes hold one place of
+ * the admission control from the start of the transaction to its end.
+ */
+public class BatchDispatcher {
+  public static final int MAX_REQUESTS = 100;
+  private static final Pattern REFERENCE = Pattern.compile("\\$\\{(\\d+)\\.([A-Za-z0-9_]+)}");
+  private static final Pattern EXCLUDED = Pattern.compile("/batch|/changes|/songs/bulk|/export/[^/]*");
+  private static final Pattern PATH_PARAM = Pattern.compile(":([A-Za-z0-9_]+)");
+
+  /**
+   * A sub-request of a batch.
+   *
+   * @param method The HTTP method.
+   * @param path   The path with query string, possibly containing references.
+   * @param body   The JSON body, a JsonObject or JsonArray, or null.
+   */
+  public record Request(HttpMethod method, String path, Object body) {
+
+    private boolean dependent() {
+      return references().find();
+    }
+
+    private Matcher references() {
+      return REFERENCE.matcher(body == null ? path : path + Json.encode(body));
+    }
+  }
+
+  /**
+   * A route of the API, with the path as regular expression and the names of its path parameters.
+   */
+  private record Route(HttpMethod method, Pattern path, List<String> params, boolean admitted, Handler<Exchange> handler) {
+  }
+
+  private final MusicRepository repository;
+  private final AdmissionControl admission;
+  private final List<Route> routes = new ArrayList<>();
+
+  /**
+   * @param repository The repository to run the transactions of atomic batches on.
+   * @param admission  The limit of the requests working on the database, or null if there is none.
+   */
+  public BatchDispatcher(MusicRepository repository, AdmissionControl admission) {
+    this.repository = repository;
+    this.admission = admission;
+  }
+
+  /**
+   * Registers the handler of a route for the sub-requests. Like the router, the first matching route is taken.
+   *
+   * @param method  The HTTP method.
+   * @param path     The path, with path parameters in the form :name.
+   * @param admitted Whether the sub-requests are limited by the admission control.
+   * @param handler  The handler, answering through {@link Exchange#end(int, JsonObject)}.
+   */
+  public void route(HttpMethod method, String path, boolean admitted, Handler<Exchange> handler) {
+    List<String> params = new ArrayList<>();
+    Matcher matcher = PATH_PARAM.matcher(path);
+    StringBuilder regex = new StringBuilder();
+    int end = 0;
+    while (matcher.find()) {
+      regex.append(Pattern.quote(path.substring(end, matcher.start()))).append("([^/]+)");
+      params.add(matcher.group(1));
+      end = matcher.end();
+    }
+    regex.append(Pattern.quote(path.substring(end)));
+    routes.add(new Route(method, Pattern.compile(regex.toString()), params, admitted, handler));
+  }
+
+  /**
+   * Reads the sub-requests of a batch.
+   *
+   * @param requests The sub-requests as JSON objects with method, path and an optional body.
+   * @param atomic   Whether the batch is atomic; then no write may refer to a read.
+   * @return The sub-requests in order.
+   * @throws IllegalArgumentException If a sub-request is invalid.
+   */
+  public static List<Request> parse(JsonArray requests, boolean atomic) {
+    if (requests == null || requests.isEmpty() || requests.size() > MAX_REQUESTS) {
+      throw new IllegalArgumentException("Expected between 1 and " + MAX_REQUESTS + " requests.");
+    }
+    List<Request> parsed = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      if (!(requests.getValue(i) instanceof JsonObject request)
+        || !(request.getValue("method") instanceof String method)
+        || !(request.getValue("path") instanceof String path)) {
+        throw new IllegalArgumentException("Request " + i + " needs a method and a path.");
+      }
+      HttpMethod httpMethod = HttpMethod.valueOf(method.toUpperCase());
+      if (httpMethod != HttpMethod.GET && httpMethod != HttpMethod.POST
+        && httpMethod != HttpMethod.PUT && httpMethod != HttpMethod.DELETE) {
+        throw new IllegalArgumentException("Request " + i + " has an unsupported method: " + method);
+      }
+      if (!path.startsWith("/") || EXCLUDED.matcher(path(path)).matches()) {
+        throw new IllegalArgumentException("Request " + i + " has an unsupported path: " + path);
+      }
+      Object body = request.getValue("body");
+      if (body != null && !(body instanceof JsonObject) && !(body instanceof JsonArray)) {
+        throw new IllegalArgumentException("Request " + i + " has no JSON body.");
+      }
+      Request parsedRequest = new Request(httpMethod, path, body);
+      Matcher references = parsedRequest.references();
+      while (atomic && httpMethod != HttpMethod.GET && references.find()) {
+        int referenced = Integer.parseInt(references.group(1));
+        if (referenced < parsed.size() && parsed.get(referenced).method() == HttpMethod.GET) {
+          throw new IllegalArgumentException(
+            "Request " + i + " refers to request " + referenced + ", a read, which runs after the writes of an atomic batch.");
+        }
+      }
+      parsed.add(parsedRequest);
+    }
+    return parsed;
+  }
+
+  /**
+   * Executes the sub-requests of a batch.
+   *
+   * @param requests The sub-requests as returned by {@link #parse(JsonArray, boolean)}.
+   * @param atomic   Whether to run the writes in one transaction, rolled back at the first failure.
+   * @param clientId The ID of the client in the header X-Client-Id, passed on to the sub-requests, or null.
+   * @return A future with the responses in request order, each with status and body, and for an atomic batch
+   * whether it was rolled back. If the commit failed, the batch was rolled back and the error is returned as well.
+   * Failed with an {@link OverloadedException} if the admission control rejects the transaction of an atomic batch.
+   */
+  public Future<JsonObject> execute(List<Request> requests, boolean atomic, String clientId) {
+    Batch batch = new Batch(requests, clientId);
+    List<Integer> all = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      all.add(i);
+    }
+    if (!atomic) {
+      return batch.run(all, null).map(v -> batch.result());
+    }
+    List<Integer> writes = all.stream().filter(i -> requests.get(i).method() != HttpMethod.GET).toList();
+    List<Integer> reads = all.stream().filter(i -> requests.get(i).method() == HttpMethod.GET).toList();
+    AdmissionControl.Ticket ticket = admission == null ? null : admission.request();
+    Future<Void> admitted = ticket == null ? Future.succeededFuture() : ticket.admitted();
+    return admitted
+      .compose(v -> repository.begin())
+      .compose(transaction -> batch.run(writes, transaction)
+        .compose(v -> {
+          if (batch.aborted) {
+            return repository.rollback(transaction)
+              .recover(e -> {
+                // the database discards the transaction with the connection anyway
+                System.err.println("Fehler beim Zurückrollen eines Batches");
+                e.printStackTrace();
+                return Future.succeededFuture();
+              })
+              .map(false);
+          }
+          return repository.commit(transaction)
+            .map(true)
+            .recover(e -> {
+              System.err.println("Fehler beim Festschreiben eines Batches");
+              e.printStackTrace();
+              batch.error = e.getMessage();
+              batch.aborted = true;
+              return Future.succeededFuture(false);
+            });
+        }))
+      .andThen(ar -> {
+        if (ticket != null) {
+          ticket.release(ar.failed() || batch.error != null);
+        }
+      })
+      .compose(committed -> batch.run(reads, null).map(committed))
+      .map(committed -> batch.result().put("rolledBack", !committed));
+  }
+
+  /**
+   * The state of one batch. It is only accessed on the event loop of the verticle that executes it.
+   */
+  private class Batch {
+    private final List<Request> requests;
+    private final String clientId;
+    private final JsonObject[] results;
+    // set at the first failed write of an atomic batch, the requests not executed yet are skipped
+    private boolean aborted;
+    private String error;
+
+    Batch(List<Request> requests, String clientId) {
+      this.requests = requests;
+      this.clientId = clientId;
+      this.results = new JsonObject[requests.size()];
+    }
+
+    /**
+     * Executes the given sub-requests in order: consecutive independent reads concurrently, any other request alone.
+     * The returned future never fails.
+     *
+     * @param transaction The transaction of an atomic batch to write in, or null.
+     */
+    Future<Void> run(List<Integer> indexes, MusicRepository.Transaction transaction) {
+      Future<Void> barrier = Future.succeededFuture();
+      List<Future<Void>> reads = new ArrayList<>();
+      for (int index : indexes) {
+        Request request = requests.get(index);
+        if (request.method() == HttpMethod.GET && !request.dependent()) {
+          reads.add(barrier.compose(v -> run(index, transaction)));
+        } else {
+          reads.add(barrier);
+          barrier = Future.join(reads).transform(ar -> run(index, transaction));
+          reads = new ArrayList<>();
+        }
+      }
+      reads.add(barrier);
+      return Future.join(reads).transform(ar -> Future.succeededFuture());
+    }
+
+    /**
+     * Executes a sub-request and records its response. The returned future never fails.
+     */
+    private Future<Void> run(int index, MusicRepository.Transaction transaction) {
+      if (aborted) {
+        results[index] = failure(424, "Not executed, the atomic batch was rolled back.");
+        return Future.succeededFuture();
+      }
+      Request request = requests.get(index);
+      Request sent;
+      try {
+        sent = new Request(request.method(), resolvePath(request.path()), resolve(request.body()));
+      } catch (IllegalStateException e) {
+        record(index, failure(424, e.getMessage()), transaction);
+        return Future.succeededFuture();
+      }
+      return send(sent, transaction).map(result -> {
+        record(index, result, transaction);
+        return null;
+      });
+    }
+
+    private void record(int index, JsonObject result, MusicRepository.Transaction transaction) {
+      results[index] = result;
+      if (transaction != null && result.getInteger("status") >= 400) {
+        aborted = true;
+      }
+    }
+
+    JsonObject result() {
+      JsonObject result = new JsonObject().put("responses", new JsonArray(List.of(results)));
+      return error == null ? result : result.put("error", error);
+    }
+
+    private String resolvePath(String path) {
+      Matcher matcher = REFERENCE.matcher(path);
+      StringBuilder resolved = new StringBuilder();
+      while (matcher.find()) {
+        String value = String.valueOf(reference(matcher));
+        matcher.appendReplacement(resolved,
+          Matcher.quoteReplacement(URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20")));
+      }
+      return matcher.appendTail(resolved).toString();
+    }
+
+    /**
+     * Replaces the references in the strings of a JSON body. A string that consists of one reference only is
+     * replaced with the referenced value, so an ID stays a number.
+     */
+    private Object resolve(Object value) {
+      if (value instanceof JsonObject object) {
+        JsonObject resolved = new JsonObject();
+        for (Map.Entry<String, Object> entry : object) {
+          resolved.put(entry.getKey(), resolve(entry.getValue()));
+        }
+        return resolved;
+      }
+      if (value instanceof JsonArray array) {
+        JsonArray resolved = new JsonArray();
+        for (Object element : array) {
+          resolved.add(resolve(element));
+        }
+        return resolved;
+      }
+      if (value instanceof String string) {
+        Matcher matcher = REFERENCE.matcher(string);
+        if (matcher.matches()) {
+          return reference(matcher);
+        }
+        matcher.reset();
+        StringBuilder resolved = new StringBuilder();
+        while (matcher.find()) {
+          matcher.appendReplacement(resolved, Matcher.quoteReplacement(String.valueOf(reference(matcher))));
+        }
+        return matcher.appendTail(resolved).toString();
+      }
+      return value;
+    }
+
+    private Object reference(Matcher matcher) {
+      int index = Integer.parseInt(matcher.group(1));
+      JsonObject result = index < results.length ? results[index] : null;
+      Object value = result != null && result.getInteger("status") < 300 && result.getValue("body") instanceof JsonObject body
+        ? body.getValue(matcher.group(2)) : null;
+      if (value == null) {
+        throw new IllegalStateException("Reference " + matcher.group() + " cannot be resolved.");
+      }
+      // as if decoded from JSON, where a number that fits is an Integer
+      if (value instanceof Long number && number == number.intValue()) {
+        return number.intValue();
+      }
+      return value;
+    }
+
+    /**
+     * Dispatches a sub-request to the handler of the first matching route.
+     */
+    private Future<JsonObject> send(Request request, MusicRepository.Transaction transaction) {
+      String path = path(request.path());
+      boolean known = false;
+      for (Route route : routes) {
+        Matcher matcher = route.path().matcher(path);
+        if (!matcher.matches()) {
+          continue;
+        }
+        known = true;
+        if (route.method() != request.method()) {
+          continue;
+        }
+        Map<String, String> params = new HashMap<>();
+        for (int i = 0; i < route.params().size(); i++) {
+          // a plus sign in the path is no space
+          params.put(route.params().get(i), URLDecoder.decode(matcher.group(i + 1).replace("+", "%2B"), StandardCharsets.UTF_8));
+        }
+        Exchange exchange = Exchange.subRequest(request.method(), params, queryParams(request.path()), clientId, request.body(), transaction);
+        // the writes of an atomic batch run on the place of its transaction
+        if (!route.admitted() || admission == null || transaction != null) {
+          return dispatch(route, exchange);
+        }
+        AdmissionControl.Ticket ticket = admission.request();
+        return ticket.admitted()
+          .transform(ar -> ar.succeeded() ? dispatch(route, exchange)
+            : Future.succeededFuture(failure(503, ar.cause().getMessage())))
+          .andThen(ar -> ticket.release(ar.result().getInteger("status") >= 500));
+      }
+      return Future.succeededFuture(known ? failure(405, "Method not allowed") : failure(404, "Resource not found"));
+    }
+
+    private Future<JsonObject> dispatch(Route route, Exchange exchange) {
+      try {
+        route.handler().handle(exchange);
+      } catch (RuntimeException e) {
+        System.err.println("Fehler beim Ausführen einer Anfrage im Batch");
+        e.printStackTrace();
+        exchange.end(500, new JsonObject().put("error", e.getMessage()));
+      }
+      return exchange.reply();
+    }
+  }
+
+  private static JsonObject failure(int status, String message) {
+    return new JsonObject().put("status", status).put("body", new JsonObject().put("error", message));
+  }
+
+  private static String path(String uri) {
+    int query = uri.indexOf('?');
+    return query < 0 ? uri : uri.substring(0, query);
+  }
+
+  /**
+   * Decodes the query string of a path, keeping the first value of each parameter like the handlers do.
+   */
+  private static Map<String, String> queryParams(String uri) {
+    Map<String, String> params = new HashMap<>();
+    int query = uri.indexOf('?');
+    if (query < 0) {
+      return params;
+    }
+    for (String param : uri.substring(query + 1).split("&")) {
+      if (param.isEmpty()) {
+        continue;
+      }
+      int equals = param.indexOf('=');
+      String name = URLDecoder.decode(equals < 0 ? param : param.substring(0, equals), StandardCharsets.UTF_8);
+      String value = equals < 0 ? "" : URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8);
+      params.putIfAbsent(name, value);
+    }
+    return params;
+  }
+}
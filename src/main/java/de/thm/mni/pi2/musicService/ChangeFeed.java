@@ -0,0 +1,156 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The feed of changes made through the API, so clients can follow them instead of polling the users and songs.
+ * <p>
+ * Each change gets the next sequence number and is published on the event bus under {@link #ADDRESS}, already encoded
+ * as compact JSON. The last {@link #HISTORY} changes are kept in a ring, so a client that reconnects with the last
+ * sequence number it has seen gets the changes it missed. A client that has fallen further behind gets a reset
+ * and must reload the data. One feed is shared by all verticle instances, the sequence numbers start at 1 with
+ * every start of the service.
+ */
+public class ChangeFeed {
+  public static final String ADDRESS = "musicService.changes";
+  public static final int HISTORY = 4096;
+  public static final int BUFFER = 1024;
+
+  /**
+   * One change with its sequence number, its type, e.g. song.assigned, and the encoded JSON of the event.
+   */
+  public record Change(long seq, String type, String json) {
+  }
+
+  private final Vertx vertx;
+  private final Change[] history = new Change[HISTORY];
+  private long sequence;
+
+  public ChangeFeed(Vertx vertx) {
+    this.vertx = vertx;
+  }
+
+  /**
+   * Publishes a change. The event bus is called while holding the lock, so every subscriber receives the changes
+   * in the order of their sequence numbers, even if they are published by several instances.
+   *
+   * @param type  The type of the change.
+   * @param event The IDs and values of the change, seq and type are added to it.
+   */
+  public synchronized void publish(String type, JsonObject event) {
+    JsonObject json = new JsonObject().put("seq", ++sequence).put("type", type).mergeIn(event);
+    Change change = new Change(sequence, type, json.encode());
+    history[(int) (sequence % HISTORY)] = change;
+    vertx.eventBus().publish(ADDRESS, change.json(), new DeliveryOptions()
+      .setLocalOnly(true)
+      .addHeader("seq", String.valueOf(sequence))
+      .addHeader("type", type));
+  }
+
+  /**
+   * @param seq The last sequence number a client has seen.
+   * @return The changes after it, or null if they are no longer all in the history.
+   */
+  public synchronized List<Change> since(long seq) {
+    if (seq > sequence || seq < sequence - HISTORY) {
+      return null;
+    }
+    List<Change> changes = new ArrayList<>((int) (sequence - seq));
+    for (long next = seq + 1; next <= sequence; next++) {
+      changes.add(history[(int) (next % HISTORY)]);
+    }
+    return changes;
+  }
+
+  public synchronized long sequence() {
+    return sequence;
+  }
+
+  /**
+   * Sends the changes to one connection until it is closed. Must be called on the context of the connection.
+   * <p>
+   * While the write queue of the connection is full, up to {@link #BUFFER} changes are held back; a connection falling
+   * further behind is closed, and the client resumes from the last sequence number it has received.
+   *
+   * @param since  The last sequence number the client has seen, or null to only send new changes.
+   * @param stream The connection, to check its write queue.
+   * @param writer Writes one change to the connection.
+   * @param close  Closes the connection.
+   * @return Cancels the subscription, to be called when the connection is closed.
+   */
+  public Runnable subscribe(Long since, WriteStream<?> stream, Consumer<Change> writer, Runnable close) {
+    Subscription subscription = new Subscription(stream, writer, close);
+    // registered before reading the history: a change in both is only sent once
+    subscription.consumer = vertx.eventBus().<String>localConsumer(ADDRESS, message -> subscription.offer(new Change(
+      Long.parseLong(message.headers().get("seq")), message.headers().get("type"), message.body())));
+    if (since == null) {
+      subscription.last = sequence();
+    } else {
+      List<Change> missed = since(since);
+      if (missed == null) {
+        long seq = sequence();
+        subscription.last = seq;
+        writer.accept(new Change(seq, "reset", new JsonObject().put("seq", seq).put("type", "reset").encode()));
+      } else {
+        subscription.last = since;
+        missed.forEach(subscription::offer);
+      }
+    }
+    stream.drainHandler(v -> subscription.drain());
+    return subscription::cancel;
+  }
+
+  private static class Subscription {
+    private final ArrayDeque<Change> pending = new ArrayDeque<>();
+    private final WriteStream<?> stream;
+    private final Consumer<Change> writer;
+    private final Runnable close;
+    private MessageConsumer<String> consumer;
+    private long last;
+    private boolean cancelled;
+
+    Subscription(WriteStream<?> stream, Consumer<Change> writer, Runnable close) {
+      this.stream = stream;
+      this.writer = writer;
+      this.close = close;
+    }
+
+    void offer(Change change) {
+      if (cancelled || change.seq() <= last) {
+        return;
+      }
+      last = change.seq();
+      if (pending.isEmpty() && !stream.writeQueueFull()) {
+        writer.accept(change);
+      } else if (pending.size() < BUFFER) {
+        pending.add(change);
+      } else {
+        cancel();
+        close.run();
+      }
+    }
+
+    void drain() {
+      while (!cancelled && !pending.isEmpty() && !stream.writeQueueFull()) {
+        writer.accept(pending.poll());
+      }
+    }
+
+    void cancel() {
+      if (!cancelled) {
+        cancelled = true;
+        pending.clear();
+        consumer.unregister();
+      }
+    }
+  }
+}
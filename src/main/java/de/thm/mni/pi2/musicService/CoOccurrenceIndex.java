@@ -0,0 +1,489 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * In-memory co-occurrence of the songs in the libraries of the users, for "users who have this song also have"
+ * recommendations without a self-join of user_songs per request.
+ * <p>
+ * For every song the index keeps the songs sharing users with it and the number of shared users, bounded to the
+ * {@link #MAX_NEIGHBOURS} most frequent ones. Once a song has that many neighbours, a new neighbour replaces
+ * the least frequent one and takes over its count, as in the Space-Saving algorithm, so the counts become upper bounds
+ * and the memory stays linear in the number of songs. {@link #rebuild(long[], int)} computes the exact top neighbours.
+ */
+public class CoOccurrenceIndex {
+  public static final int MAX_NEIGHBOURS = 100;
+
+  /**
+   * A song related to another one, with the number of users having both, or the score of a recommendation.
+   */
+  public record Neighbour(int songId, int count) {
+  }
+
+  // the songs of each user and the users of each song, sorted
+  private IntObjectHashMap<int[]> libraries = new IntObjectHashMap<>();
+  private IntObjectHashMap<int[]> owners = new IntObjectHashMap<>();
+  private IntObjectHashMap<Neighbours> neighbours = new IntObjectHashMap<>();
+
+  /**
+   * Adds a song to the library of a user and counts it together with every other song of the user.
+   */
+  public synchronized void addAssignment(int userId, int songId) {
+    int[] library = libraries.get(userId);
+    if (library == null) {
+      library = new int[0];
+    }
+    int index = Arrays.binarySearch(library, songId);
+    if (index >= 0) {
+      return;
+    }
+    for (int other : library) {
+      neighbours(songId).increment(other);
+      neighbours(other).increment(songId);
+    }
+    libraries.put(userId, insert(library, -index - 1, songId));
+    int[] users = owners.get(songId);
+    users = users == null ? new int[0] : users;
+    owners.put(songId, insert(users, -Arrays.binarySearch(users, userId) - 1, userId));
+  }
+
+  public synchronized void removeAssignment(int userId, int songId) {
+    int[] library = libraries.get(userId);
+    int index = library == null ? -1 : Arrays.binarySearch(library, songId);
+    if (index < 0) {
+      return;
+    }
+    library = remove(library, index);
+    for (int other : library) {
+      decrement(songId, other);
+      decrement(other, songId);
+    }
+    putLibrary(userId, library);
+    removeOwner(songId, userId);
+  }
+
+  /**
+   * Removes a user together with the assignments deleted by the cascade of the foreign key.
+   * Only the pairs a song still counts among its neighbours are decremented, so the time is linear in the size of
+   * the library times at most {@link #MAX_NEIGHBOURS}, not quadratic in the size of the library.
+   *
+   * @return The songs the user had.
+   */
+  public synchronized int[] removeUser(int userId) {
+    int[] library = libraries.remove(userId);
+    if (library == null) {
+      return new int[0];
+    }
+    for (int song : library) {
+      removeOwner(song, userId);
+      Neighbours related = neighbours.get(song);
+      if (related == null) {
+        continue;
+      }
+      if (related.size <= library.length) {
+        // backwards, as a neighbour counted down to zero is removed
+        for (int i = related.size - 1; i >= 0; i--) {
+          if (Arrays.binarySearch(library, related.ids[i]) >= 0) {
+            related.decrement(related.ids[i]);
+          }
+        }
+      } else {
+        for (int other : library) {
+          if (other != song) {
+            related.decrement(other);
+          }
+        }
+      }
+      if (related.size == 0) {
+        neighbours.remove(song);
+      }
+    }
+    return library;
+  }
+
+  /**
+   * Removes a song together with the assignments deleted by the cascade of the foreign key.
+   * Finds the users having the song through the users kept per song, so only their libraries are touched.
+   *
+   * @return The users who had the song, sorted.
+   */
+  public synchronized int[] removeSong(int songId) {
+    int[] users = owners.remove(songId);
+    if (users == null) {
+      neighbours.remove(songId);
+      return new int[0];
+    }
+    for (int userId : users) {
+      int[] library = libraries.get(userId);
+      library = remove(library, Arrays.binarySearch(library, songId));
+      for (int other : library) {
+        Neighbours related = neighbours.get(other);
+        if (related != null) {
+          related.remove(songId);
+          if (related.size == 0) {
+            neighbours.remove(other);
+          }
+        }
+      }
+      putLibrary(userId, library);
+    }
+    neighbours.remove(songId);
+    return users;
+  }
+
+  /**
+   * @return Whether the user has at least one song.
+   */
+  public synchronized boolean hasLibrary(int userId) {
+    return libraries.containsKey(userId);
+  }
+
+  /**
+   * Finds the songs most often found together with the given song.
+   *
+   * @param songId The ID of the song.
+   * @param limit  The maximum number of songs.
+   * @return The related songs with the number of users having both, most frequent first.
+   */
+  public synchronized List<Neighbour> related(int songId, int limit) {
+    Neighbours related = neighbours.get(songId);
+    if (related == null) {
+      return List.of();
+    }
+    long[] ranked = new long[related.size];
+    for (int i = 0; i < related.size; i++) {
+      ranked[i] = rank(related.ids[i], related.counts[i]);
+    }
+    return top(ranked, ranked.length, limit);
+  }
+
+  /**
+   * Recommends songs to a user by summing up the neighbours of the songs in the library,
+   * leaving out the songs the user already has.
+   *
+   * @param userId The ID of the user.
+   * @param limit  The maximum number of songs.
+   * @return The recommended songs with their scores, best first.
+   */
+  public synchronized List<Neighbour> recommendations(int userId, int limit) {
+    int[] library = libraries.get(userId);
+    if (library == null) {
+      return List.of();
+    }
+    // pairs of song and count, summed up per song after sorting
+    long[] candidates = new long[0];
+    int size = 0;
+    for (int song : library) {
+      Neighbours related = neighbours.get(song);
+      if (related == null) {
+        continue;
+      }
+      if (size + related.size > candidates.length) {
+        candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, size + related.size));
+      }
+      for (int i = 0; i < related.size; i++) {
+        if (Arrays.binarySearch(library, related.ids[i]) < 0) {
+          candidates[size++] = LongHashSet.pack(related.ids[i], related.counts[i]);
+        }
+      }
+    }
+    Arrays.sort(candidates, 0, size);
+    int ranked = 0;
+    for (int i = 0; i < size; ) {
+      int song = LongHashSet.high(candidates[i]);
+      int score = 0;
+      for (; i < size && LongHashSet.high(candidates[i]) == song; i++) {
+        score += LongHashSet.low(candidates[i]);
+      }
+      candidates[ranked++] = rank(song, score);
+    }
+    return top(candidates, ranked, limit);
+  }
+
+  public synchronized void clear() {
+    libraries = new IntObjectHashMap<>();
+    owners = new IntObjectHashMap<>();
+    neighbours = new IntObjectHashMap<>();
+  }
+
+  /**
+   * Replaces the index with the exact co-occurrence of the given assignments. The neighbours of the songs are
+   * counted in parallel on the common fork-join pool, each task covering a range of songs.
+   *
+   * @param assignments The assignments, each packed with {@link LongHashSet#pack(int, int)} from user and song ID.
+   * @param size        The number of assignments in the array.
+   */
+  public synchronized void rebuild(long[] assignments, int size) {
+    long[] byUser = Arrays.copyOf(assignments, size);
+    Arrays.parallelSort(byUser);
+    IntObjectHashMap<int[]> newLibraries = new IntObjectHashMap<>();
+    int maxSong = 0;
+    for (int start = 0; start < size; ) {
+      int userId = LongHashSet.high(byUser[start]);
+      int end = start;
+      while (end < size && LongHashSet.high(byUser[end]) == userId) {
+        end++;
+      }
+      int[] library = new int[end - start];
+      for (int i = start; i < end; i++) {
+        library[i - start] = LongHashSet.low(byUser[i]);
+        maxSong = Math.max(maxSong, library[i - start]);
+      }
+      newLibraries.put(userId, library);
+      start = end;
+    }
+
+    long[] bySong = new long[size];
+    for (int i = 0; i < size; i++) {
+      bySong[i] = LongHashSet.pack(LongHashSet.low(byUser[i]), LongHashSet.high(byUser[i]));
+    }
+    Arrays.parallelSort(bySong);
+    // the start of the users of each song in bySong, sentinel at the end
+    int[] songStarts = new int[size + 1];
+    int songs = 0;
+    for (int i = 0; i < size; i++) {
+      if (i == 0 || LongHashSet.high(bySong[i]) != LongHashSet.high(bySong[i - 1])) {
+        songStarts[songs++] = i;
+      }
+    }
+    songStarts[songs] = size;
+    IntObjectHashMap<int[]> newOwners = new IntObjectHashMap<>(songs);
+    for (int i = 0; i < songs; i++) {
+      int[] users = new int[songStarts[i + 1] - songStarts[i]];
+      for (int j = 0; j < users.length; j++) {
+        users[j] = LongHashSet.low(bySong[songStarts[i] + j]);
+      }
+      newOwners.put(LongHashSet.high(bySong[songStarts[i]]), users);
+    }
+
+    Neighbours[] counted = new Neighbours[songs];
+    int chunk = Math.max(64, songs / (ForkJoinPool.getCommonPoolParallelism() * 4));
+    ForkJoinPool.commonPool().invoke(new CountTask(newLibraries, bySong, songStarts, counted, 0, songs, chunk, maxSong));
+
+    IntObjectHashMap<Neighbours> newNeighbours = new IntObjectHashMap<>(songs);
+    for (int i = 0; i < songs; i++) {
+      if (counted[i].size > 0) {
+        newNeighbours.put(LongHashSet.high(bySong[songStarts[i]]), counted[i]);
+      }
+    }
+    libraries = newLibraries;
+    owners = newOwners;
+    neighbours = newNeighbours;
+  }
+
+  /**
+   * Counts the exact neighbours of a range of songs, splitting the range until it is at most one chunk.
+   */
+  private static class CountTask extends RecursiveAction {
+    private final IntObjectHashMap<int[]> libraries;
+    private final long[] bySong;
+    private final int[] songStarts;
+    private final Neighbours[] counted;
+    private final int from;
+    private final int to;
+    private final int chunk;
+    private final int maxSong;
+
+    CountTask(IntObjectHashMap<int[]> libraries, long[] bySong, int[] songStarts, Neighbours[] counted,
+              int from, int to, int chunk, int maxSong) {
+      this.libraries = libraries;
+      this.bySong = bySong;
+      this.songStarts = songStarts;
+      this.counted = counted;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+      this.maxSong = maxSong;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > chunk) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new CountTask(libraries, bySong, songStarts, counted, from, middle, chunk, maxSong),
+          new CountTask(libraries, bySong, songStarts, counted, middle, to, chunk, maxSong));
+        return;
+      }
+      // dense counters, reset through the list of touched songs after each song
+      int[] counts = new int[maxSong + 1];
+      int[] touched = new int[16];
+      for (int song = from; song < to; song++) {
+        int songId = LongHashSet.high(bySong[songStarts[song]]);
+        int size = 0;
+        for (int i = songStarts[song]; i < songStarts[song + 1]; i++) {
+          for (int other : libraries.get(LongHashSet.low(bySong[i]))) {
+            if (other != songId && counts[other]++ == 0) {
+              if (size == touched.length) {
+                touched = Arrays.copyOf(touched, size * 2);
+              }
+              touched[size++] = other;
+            }
+          }
+        }
+        long[] ranked = new long[size];
+        for (int i = 0; i < size; i++) {
+          ranked[i] = rank(touched[i], counts[touched[i]]);
+          counts[touched[i]] = 0;
+        }
+        Arrays.sort(ranked);
+        Neighbours top = new Neighbours();
+        for (int i = 0; i < Math.min(size, MAX_NEIGHBOURS); i++) {
+          top.put(id(ranked[i]), count(ranked[i]));
+        }
+        counted[song] = top;
+      }
+    }
+  }
+
+  private Neighbours neighbours(int songId) {
+    Neighbours related = neighbours.get(songId);
+    if (related == null) {
+      related = new Neighbours();
+      neighbours.put(songId, related);
+    }
+    return related;
+  }
+
+  private void decrement(int songId, int other) {
+    Neighbours related = neighbours.get(songId);
+    if (related != null) {
+      related.decrement(other);
+      if (related.size == 0) {
+        neighbours.remove(songId);
+      }
+    }
+  }
+
+  private void removeOwner(int songId, int userId) {
+    int[] users = owners.get(songId);
+    int index = users == null ? -1 : Arrays.binarySearch(users, userId);
+    if (index < 0) {
+      return;
+    }
+    if (users.length == 1) {
+      owners.remove(songId);
+    } else {
+      owners.put(songId, remove(users, index));
+    }
+  }
+
+  private void putLibrary(int userId, int[] library) {
+    if (library.length == 0) {
+      libraries.remove(userId);
+    } else {
+      libraries.put(userId, library);
+    }
+  }
+
+  /**
+   * Packs a song and its count into a long that sorts by count descending, then by song ID ascending.
+   */
+  private static long rank(int songId, int count) {
+    return LongHashSet.pack(Integer.MAX_VALUE - count, songId);
+  }
+
+  private static int id(long rank) {
+    return LongHashSet.low(rank);
+  }
+
+  private static int count(long rank) {
+    return Integer.MAX_VALUE - LongHashSet.high(rank);
+  }
+
+  private static List<Neighbour> top(long[] ranked, int size, int limit) {
+    Arrays.sort(ranked, 0, size);
+    List<Neighbour> top = new ArrayList<>(Math.min(size, limit));
+    for (int i = 0; i < Math.min(size, limit); i++) {
+      top.add(new Neighbour(id(ranked[i]), count(ranked[i])));
+    }
+    return top;
+  }
+
+  private static int[] insert(int[] array, int index, int value) {
+    int[] inserted = new int[array.length + 1];
+    System.arraycopy(array, 0, inserted, 0, index);
+    inserted[index] = value;
+    System.arraycopy(array, index, inserted, index + 1, array.length - index);
+    return inserted;
+  }
+
+  private static int[] remove(int[] array, int index) {
+    int[] removed = new int[array.length - 1];
+    System.arraycopy(array, 0, removed, 0, index);
+    System.arraycopy(array, index + 1, removed, index, array.length - index - 1);
+    return removed;
+  }
+
+  /**
+   * The neighbours of one song with their counts, in parallel arrays sorted by song ID and holding at most
+   * {@link #MAX_NEIGHBOURS} entries.
+   */
+  private static class Neighbours {
+    private int[] ids = new int[4];
+    private int[] counts = new int[4];
+    private int size;
+
+    void increment(int songId) {
+      int index = Arrays.binarySearch(ids, 0, size, songId);
+      if (index >= 0) {
+        counts[index]++;
+      } else if (size < MAX_NEIGHBOURS) {
+        insertAt(-index - 1, songId, 1);
+      } else {
+        // replaces the least frequent neighbour, whose count the new one may have had unnoticed
+        int min = 0;
+        for (int i = 1; i < size; i++) {
+          if (counts[i] < counts[min]) {
+            min = i;
+          }
+        }
+        int count = counts[min] + 1;
+        removeAt(min);
+        insertAt(-Arrays.binarySearch(ids, 0, size, songId) - 1, songId, count);
+      }
+    }
+
+    void decrement(int songId) {
+      int index = Arrays.binarySearch(ids, 0, size, songId);
+      if (index >= 0 && --counts[index] == 0) {
+        removeAt(index);
+      }
+    }
+
+    void remove(int songId) {
+      int index = Arrays.binarySearch(ids, 0, size, songId);
+      if (index >= 0) {
+        removeAt(index);
+      }
+    }
+
+    /**
+     * Adds a neighbour with the given count, in any order.
+     */
+    void put(int songId, int count) {
+      insertAt(-Arrays.binarySearch(ids, 0, size, songId) - 1, songId, count);
+    }
+
+    private void insertAt(int index, int songId, int count) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, Math.min(size * 2, MAX_NEIGHBOURS));
+        counts = Arrays.copyOf(counts, ids.length);
+      }
+      System.arraycopy(ids, index, ids, index + 1, size - index);
+      System.arraycopy(counts, index, counts, index + 1, size - index);
+      ids[index] = songId;
+      counts[index] = count;
+      size++;
+    }
+
+    private void removeAt(int index) {
+      System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+      System.arraycopy(counts, index + 1, counts, index, size - index - 1);
+      size--;
+    }
+  }
+}
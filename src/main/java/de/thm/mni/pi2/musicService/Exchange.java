@@ -0,0 +1,147 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Map;
+
+/**
+ * One request to the API as seen by its handler: either an HTTP request of the router, or a sub-request of a batch,
+ * which is dispatched in process, without a connection, compression, admission control or body parsing of its own.
+ * A sub-request has no headers besides the client ID and is answered with its status and JSON body through
+ * {@link #reply()}. The sub-requests of an atomic batch write in the transaction of the batch.
+ */
+public final class Exchange {
+  private final RoutingContext routingContext;
+  private final HttpMethod method;
+  private final Map<String, String> pathParams;
+  private final Map<String, String> queryParams;
+  private final String clientId;
+  private final Object body;
+  private final MusicRepository.Transaction transaction;
+  private final Promise<JsonObject> reply;
+
+  private Exchange(RoutingContext routingContext, HttpMethod method, Map<String, String> pathParams,
+                   Map<String, String> queryParams, String clientId, Object body,
+                   MusicRepository.Transaction transaction) {
+    this.routingContext = routingContext;
+    this.method = method;
+    this.pathParams = pathParams;
+    this.queryParams = queryParams;
+    this.clientId = clientId;
+    this.body = body;
+    this.transaction = transaction;
+    this.reply = routingContext == null ? Promise.promise() : null;
+  }
+
+  /**
+   * @param routingContext The routing context of an HTTP request.
+   * @return The request as seen by its handler.
+   */
+  public static Exchange of(RoutingContext routingContext) {
+    return new Exchange(routingContext, routingContext.request().method(), null, null, null, null, null);
+  }
+
+  /**
+   * Creates a sub-request of a batch.
+   *
+   * @param method      The HTTP method.
+   * @param pathParams  The decoded parameters of the path.
+   * @param queryParams The decoded query parameters, with the first value of each.
+   * @param clientId    The ID of the client in the header X-Client-Id of the batch, or null.
+   * @param body        The JSON body, a JsonObject or JsonArray, or null.
+   * @param transaction The transaction of an atomic batch to write in, or null.
+   * @return The sub-request, answered through {@link #reply()}.
+   */
+  public static Exchange subRequest(HttpMethod method, Map<String, String> pathParams, Map<String, String> queryParams,
+                                    String clientId, Object body, MusicRepository.Transaction transaction) {
+    return new Exchange(null, method, pathParams, queryParams, clientId, body, transaction);
+  }
+
+  /**
+   * @return The routing context of an HTTP request, or null for a sub-request of a batch.
+   */
+  public RoutingContext routingContext() {
+    return routingContext;
+  }
+
+  /**
+   * @return The transaction the writes of the request go into, or null if each write commits on its own.
+   */
+  public MusicRepository.Transaction transaction() {
+    return transaction;
+  }
+
+  public HttpMethod method() {
+    return method;
+  }
+
+  public String pathParam(String name) {
+    return routingContext != null ? routingContext.pathParam(name) : pathParams.get(name);
+  }
+
+  /**
+   * @param name The name of the query parameter.
+   * @return The first value of the parameter, or null if it is missing.
+   */
+  public String queryParam(String name) {
+    return routingContext != null ? routingContext.queryParams().get(name) : queryParams.get(name);
+  }
+
+  /**
+   * @return The ID of the client in the header X-Client-Id, or null.
+   */
+  public String clientId() {
+    return routingContext != null ? routingContext.request().getHeader(ReadYourWrites.HEADER) : clientId;
+  }
+
+  /**
+   * @return The body as JSON object, or null if there is none.
+   * @throws DecodeException If the body is not a JSON object.
+   */
+  public JsonObject bodyAsJsonObject() {
+    if (routingContext != null) {
+      return routingContext.body().asJsonObject();
+    }
+    if (body != null && !(body instanceof JsonObject)) {
+      throw new DecodeException("Invalid JSON object");
+    }
+    return (JsonObject) body;
+  }
+
+  /**
+   * @return The body as JsonObject or JsonArray, or null if there is none.
+   * @throws DecodeException If the body is not valid JSON.
+   */
+  public Object bodyAsJson() {
+    if (routingContext != null) {
+      Buffer buffer = routingContext.body().buffer();
+      return buffer == null ? null : Json.decodeValue(buffer);
+    }
+    return body;
+  }
+
+  /**
+   * Answers a sub-request of a batch. Like an HTTP response, a 204 has no body. Only the first answer counts.
+   *
+   * @param statusCode The HTTP status code.
+   * @param json       The body.
+   */
+  public void end(int statusCode, JsonObject json) {
+    JsonObject result = new JsonObject().put("status", statusCode);
+    reply.tryComplete(statusCode == 204 ? result : result.put("body", json));
+  }
+
+  /**
+   * @return A future completed with the status and body of a sub-request once it has been answered.
+   */
+  public Future<JsonObject> reply() {
+    return reply.future();
+  }
+}
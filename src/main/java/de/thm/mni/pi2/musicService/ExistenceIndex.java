@@ -0,0 +1,159 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * In-memory index of the existing users, songs and assignments, so the existence checks
+ * before a write can be answered without a database round trip.
+ * The index is loaded once at startup and kept in sync by the write methods of the {@link MusicRepository}.
+ * Besides the set of assignments, the songs of every user and the users of every song are kept, so the cascade
+ * of a deleted user or song only visits its own assignments.
+ */
+public class ExistenceIndex {
+
+  /**
+   * The unordered IDs on one side of the assignments of a user or song.
+   */
+  private static class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void remove(int value) {
+      for (int i = 0; i < size; i++) {
+        if (values[i] == value) {
+          values[i] = values[--size];
+          return;
+        }
+      }
+    }
+  }
+
+  private final IntObjectHashMap<String> users = new IntObjectHashMap<>();
+  private final Set<String> usernames = new HashSet<>();
+  private final IntObjectHashMap<String> songs = new IntObjectHashMap<>();
+  private final Set<String> songKeys = new HashSet<>();
+  private final LongHashSet assignments = new LongHashSet();
+  private final IntObjectHashMap<IntList> songsByUser = new IntObjectHashMap<>();
+  private final IntObjectHashMap<IntList> usersBySong = new IntObjectHashMap<>();
+
+  public synchronized boolean userExists(int id) {
+    return users.containsKey(id);
+  }
+
+  public synchronized boolean userExists(String username) {
+    return usernames.contains(username);
+  }
+
+  public synchronized boolean songExists(int id) {
+    return songs.containsKey(id);
+  }
+
+  public synchronized boolean songExists(String name, String genre) {
+    return songKeys.contains(songKey(name, genre));
+  }
+
+  public synchronized boolean assertionExists(int songId, int userId) {
+    return assignments.contains(LongHashSet.pack(userId, songId));
+  }
+
+  public synchronized void addUser(int id, String username) {
+    users.put(id, username);
+    usernames.add(username);
+  }
+
+  /**
+   * Removes a user together with the assignments deleted by the cascade of the foreign key.
+   */
+  public synchronized void removeUser(int id) {
+    String username = users.remove(id);
+    if (username != null) {
+      usernames.remove(username);
+    }
+    IntList songIds = songsByUser.remove(id);
+    if (songIds != null) {
+      for (int i = 0; i < songIds.size; i++) {
+        assignments.remove(LongHashSet.pack(id, songIds.values[i]));
+        remove(usersBySong, songIds.values[i], id);
+      }
+    }
+  }
+
+  public synchronized void addSong(int id, String name, String genre) {
+    String key = songKey(name, genre);
+    songs.put(id, key);
+    songKeys.add(key);
+  }
+
+  /**
+   * Removes a song together with the assignments deleted by the cascade of the foreign key.
+   */
+  public synchronized void removeSong(int id) {
+    String key = songs.remove(id);
+    if (key != null) {
+      songKeys.remove(key);
+    }
+    IntList userIds = usersBySong.remove(id);
+    if (userIds != null) {
+      for (int i = 0; i < userIds.size; i++) {
+        assignments.remove(LongHashSet.pack(userIds.values[i], id));
+        remove(songsByUser, userIds.values[i], id);
+      }
+    }
+  }
+
+  public synchronized void addAssignment(int userId, int songId) {
+    if (assignments.add(LongHashSet.pack(userId, songId))) {
+      add(songsByUser, userId, songId);
+      add(usersBySong, songId, userId);
+    }
+  }
+
+  public synchronized void removeAssignment(int userId, int songId) {
+    if (assignments.remove(LongHashSet.pack(userId, songId))) {
+      remove(songsByUser, userId, songId);
+      remove(usersBySong, songId, userId);
+    }
+  }
+
+  public synchronized void clear() {
+    users.clear();
+    usernames.clear();
+    songs.clear();
+    songKeys.clear();
+    assignments.clear();
+    songsByUser.clear();
+    usersBySong.clear();
+  }
+
+  private static void add(IntObjectHashMap<IntList> lists, int key, int value) {
+    IntList list = lists.get(key);
+    if (list == null) {
+      list = new IntList();
+      lists.put(key, list);
+    }
+    list.add(value);
+  }
+
+  private static void remove(IntObjectHashMap<IntList> lists, int key, int value) {
+    IntList list = lists.get(key);
+    if (list != null) {
+      list.remove(value);
+      if (list.size == 0) {
+        lists.remove(key);
+      }
+    }
+  }
+
+  private static String songKey(String name, String genre) {
+    return name + '\u0000' + genre;
+  }
+}
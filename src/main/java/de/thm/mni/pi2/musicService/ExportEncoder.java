@@ -0,0 +1,137 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Row;
+
+/**
+ * Encodes the rows of an export as NDJSON, one object per row, or as CSV with a header line, for a
+ * {@link RowStreamWriter}. The values are appended straight to the current chunk without building a JSON object
+ * per row, and a chunk is handed out once it holds {@link #CHUNK_SIZE} bytes, so the response is written in a few
+ * large writes instead of one per row.
+ */
+public class ExportEncoder implements RowStreamWriter.Encoder {
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * The formats of an export with their content types.
+   */
+  public enum Format {
+    NDJSON("application/x-ndjson"),
+    CSV("text/csv; charset=utf-8");
+
+    private final String contentType;
+
+    Format(String contentType) {
+      this.contentType = contentType;
+    }
+
+    public String contentType() {
+      return contentType;
+    }
+  }
+
+  private final Format format;
+  private final StringBuilder text = new StringBuilder(CHUNK_SIZE + 1024);
+  private String[] columns;
+
+  public ExportEncoder(Format format) {
+    this.format = format;
+  }
+
+  @Override
+  public Buffer encode(Row row) {
+    if (columns == null) {
+      columns = new String[row.size()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = row.getColumnName(i).toLowerCase();
+      }
+      if (format == Format.CSV) {
+        for (int i = 0; i < columns.length; i++) {
+          text.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        text.append("\r\n");
+      }
+    }
+    if (format == Format.CSV) {
+      appendCsv(row);
+    } else {
+      appendJson(row);
+    }
+    return text.length() >= CHUNK_SIZE ? finish() : null;
+  }
+
+  @Override
+  public Buffer finish() {
+    if (text.isEmpty()) {
+      return null;
+    }
+    Buffer chunk = Buffer.buffer(text.toString());
+    text.setLength(0);
+    return chunk;
+  }
+
+  private void appendJson(Row row) {
+    text.append('{');
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        text.append(',');
+      }
+      appendJsonString(columns[i]);
+      text.append(':');
+      Object value = row.getValue(i);
+      if (value == null) {
+        text.append("null");
+      } else if (value instanceof Number || value instanceof Boolean) {
+        text.append(value);
+      } else {
+        appendJsonString(value.toString());
+      }
+    }
+    text.append("}\n");
+  }
+
+  private void appendJsonString(String value) {
+    text.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"' -> text.append("\\\"");
+        case '\\' -> text.append("\\\\");
+        case '\n' -> text.append("\\n");
+        case '\r' -> text.append("\\r");
+        case '\t' -> text.append("\\t");
+        default -> {
+          if (c < 0x20) {
+            text.append(String.format("\\u%04x", (int) c));
+          } else {
+            text.append(c);
+          }
+        }
+      }
+    }
+    text.append('"');
+  }
+
+  /**
+   * Appends a CSV line as in RFC 4180: values containing a comma, a quote or a line break are quoted, quotes are
+   * doubled, and null is an empty value.
+   */
+  private void appendCsv(Row row) {
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        text.append(',');
+      }
+      Object value = row.getValue(i);
+      if (value == null) {
+        continue;
+      }
+      String string = value.toString();
+      if (string.indexOf(',') < 0 && string.indexOf('"') < 0 && string.indexOf('\n') < 0 && string.indexOf('\r') < 0) {
+        text.append(string);
+      } else {
+        text.append('"').append(string.replace("\"", "\"\"")).append('"');
+      }
+    }
+    text.append("\r\n");
+  }
+}
@@ -0,0 +1,53 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The fields of a response selected with the query parameter fields, e.g. fields=name for a list of user names.
+ * The repository reads only the columns and joins the selected fields need. The ID is always part of the response,
+ * as key of the entry or as field of a single object, so fields=id selects the IDs only.
+ */
+public final class Fields {
+  public static final Set<String> USER = Set.of("id", "name", "email", "songs");
+  public static final Set<String> SONG = Set.of("id", "name", "genre", "timestamp");
+  public static final Set<String> LIBRARY_SONG = Set.of("id", "name", "genre");
+  public static final Fields ALL = new Fields(null);
+
+  private final Set<String> names;
+
+  private Fields(Set<String> names) {
+    this.names = names;
+  }
+
+  /**
+   * Reads a comma separated list of fields.
+   *
+   * @param fields The list, or null for all fields.
+   * @param known  The fields of the resource.
+   * @return The selected fields.
+   * @throws IllegalArgumentException If the list is empty or contains an unknown field.
+   */
+  public static Fields parse(String fields, Set<String> known) {
+    if (fields == null) {
+      return ALL;
+    }
+    Set<String> names = new HashSet<>();
+    for (String name : fields.split(",", -1)) {
+      name = name.trim();
+      if (!known.contains(name)) {
+        throw new IllegalArgumentException(name.isEmpty() ? "Invalid fields" : "Unknown field: " + name);
+      }
+      names.add(name);
+    }
+    return names.containsAll(known) ? ALL : new Fields(names);
+  }
+
+  /**
+   * @param name The name of a field.
+   * @return Whether the field is selected.
+   */
+  public boolean contains(String name) {
+    return names == null || names.contains(name);
+  }
+}
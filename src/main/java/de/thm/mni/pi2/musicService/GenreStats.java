@@ -0,0 +1,135 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters of the songs and library assignments per genre, so the genre statistics are read in O(number of genres)
+ * instead of scanning songs joined with user_songs.
+ * <p>
+ * The counters are kept up to date by the write methods of the {@link MusicRepository}, including the assignments
+ * removed by the cascades when a user or song is deleted. To correct any drift, e.g. from writes by other processes,
+ * they are periodically replaced with counts from the database, see {@link #reconcile(long, Iterable)}.
+ */
+public class GenreStats {
+
+  /**
+   * The counts of one genre.
+   */
+  public record Genre(String name, long songs, long assignments) {
+  }
+
+  /**
+   * A song as counted by the database.
+   */
+  public record SongCount(int id, String genre, int assignments) {
+  }
+
+  private static class Counter {
+    private long songs;
+    private long assignments;
+  }
+
+  private static class Song {
+    private final String genre;
+    private int assignments;
+
+    Song(String genre) {
+      this.genre = genre;
+    }
+  }
+
+  private IntObjectHashMap<Song> songs = new IntObjectHashMap<>();
+  private Map<String, Counter> genres = new TreeMap<>();
+  private long modifications;
+
+  public synchronized void addSong(int id, String genre) {
+    modifications++;
+    if (songs.containsKey(id)) {
+      return;
+    }
+    Song song = new Song(genre == null ? "" : genre);
+    songs.put(id, song);
+    genres.computeIfAbsent(song.genre, g -> new Counter()).songs++;
+  }
+
+  /**
+   * Removes a song together with the assignments deleted by the cascade of the foreign key.
+   */
+  public synchronized void removeSong(int id) {
+    modifications++;
+    Song song = songs.remove(id);
+    if (song == null) {
+      return;
+    }
+    Counter counter = genres.get(song.genre);
+    counter.songs--;
+    counter.assignments -= song.assignments;
+    if (counter.songs == 0) {
+      genres.remove(song.genre);
+    }
+  }
+
+  public synchronized void addAssignment(int songId) {
+    modifications++;
+    Song song = songs.get(songId);
+    if (song != null) {
+      song.assignments++;
+      genres.get(song.genre).assignments++;
+    }
+  }
+
+  public synchronized void removeAssignment(int songId) {
+    modifications++;
+    Song song = songs.get(songId);
+    if (song != null && song.assignments > 0) {
+      song.assignments--;
+      genres.get(song.genre).assignments--;
+    }
+  }
+
+  /**
+   * @return The number of writes counted so far, to tell if a reconciliation raced with a write.
+   */
+  public synchronized long modifications() {
+    return modifications;
+  }
+
+  /**
+   * Replaces the counters with counts read from the database, unless a write has been counted since the counts were
+   * requested: the counts might then miss that write, and the reconciliation is left to the next run.
+   *
+   * @param modifications The value of {@link #modifications()} before the counts were requested.
+   * @param counts        The songs with their number of assignments.
+   * @return Whether the counters were replaced.
+   */
+  public synchronized boolean reconcile(long modifications, Iterable<SongCount> counts) {
+    if (modifications != this.modifications) {
+      return false;
+    }
+    IntObjectHashMap<Song> newSongs = new IntObjectHashMap<>();
+    Map<String, Counter> newGenres = new TreeMap<>();
+    for (SongCount count : counts) {
+      Song song = new Song(count.genre() == null ? "" : count.genre());
+      song.assignments = count.assignments();
+      newSongs.put(count.id(), song);
+      Counter counter = newGenres.computeIfAbsent(song.genre, g -> new Counter());
+      counter.songs++;
+      counter.assignments += count.assignments();
+    }
+    songs = newSongs;
+    genres = newGenres;
+    return true;
+  }
+
+  /**
+   * @return The genres with their counts, ordered by name.
+   */
+  public synchronized List<Genre> genres() {
+    List<Genre> list = new ArrayList<>(genres.size());
+    genres.forEach((name, counter) -> list.add(new Genre(name, counter.songs, counter.assignments)));
+    return list;
+  }
+}
@@ -0,0 +1,117 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Collects writes from all verticle instances and runs them in batches, each batch in one transaction, so many small
+ * writes share one commit instead of committing each on its own.
+ * <p>
+ * A batch is flushed as soon as it holds batchSize writes or its oldest write has waited maxDelay milliseconds.
+ * Only one batch is in flight at a time; the writes arriving meanwhile form the next batch, which is flushed as soon as
+ * the previous one has been committed. The future of a write completes, on the context it was submitted from, only
+ * after the commit of its batch, so a write is durable once it is reported as done, as with single commits.
+ * At most queueSize writes wait, further writes are rejected with an {@link OverloadedException}.
+ *
+ * @param <T> The type of the writes.
+ * @param <R> The type of the result of one write.
+ */
+public class GroupCommit<T, R> {
+  private record Pending<T, R>(T write, Context context, Promise<R> promise) {
+  }
+
+  private final Vertx vertx;
+  private final int batchSize;
+  private final long maxDelay;
+  private final int queueSize;
+  private final Function<List<T>, Future<List<AsyncResult<R>>>> flush;
+  private final ArrayDeque<Pending<T, R>> queue = new ArrayDeque<>();
+  private boolean flushing;
+  private long timer = -1;
+
+  /**
+   * @param flush Runs a batch in one transaction. Completes with the result of each write in the order of the batch,
+   *              a write rejected by a constraint must not prevent the others from being committed. Fails, failing
+   *              every write of the batch, if the transaction cannot be committed as a whole.
+   */
+  public GroupCommit(Vertx vertx, int batchSize, long maxDelay, int queueSize, Function<List<T>, Future<List<AsyncResult<R>>>> flush) {
+    this.vertx = vertx;
+    this.batchSize = batchSize;
+    this.maxDelay = maxDelay;
+    this.queueSize = queueSize;
+    this.flush = flush;
+  }
+
+  /**
+   * @return A future completed with the result of the write once its batch has been committed.
+   */
+  public Future<R> submit(T write) {
+    Promise<R> promise = Promise.promise();
+    boolean full;
+    synchronized (this) {
+      if (queue.size() >= queueSize) {
+        return Future.failedFuture(new OverloadedException("Too many pending writes, try again later"));
+      }
+      queue.add(new Pending<>(write, vertx.getOrCreateContext(), promise));
+      full = !flushing && queue.size() >= batchSize;
+      if (!full && !flushing && timer < 0) {
+        timer = vertx.setTimer(maxDelay, id -> {
+          synchronized (this) {
+            timer = -1;
+          }
+          flush();
+        });
+      }
+    }
+    if (full) {
+      flush();
+    }
+    return promise.future();
+  }
+
+  private void flush() {
+    List<Pending<T, R>> batch;
+    synchronized (this) {
+      if (flushing || queue.isEmpty()) {
+        return;
+      }
+      flushing = true;
+      if (timer >= 0) {
+        vertx.cancelTimer(timer);
+        timer = -1;
+      }
+      batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+      while (batch.size() < batchSize && !queue.isEmpty()) {
+        batch.add(queue.poll());
+      }
+    }
+    List<T> writes = new ArrayList<>(batch.size());
+    batch.forEach(pending -> writes.add(pending.write()));
+    Future<List<AsyncResult<R>>> flushed;
+    try {
+      flushed = flush.apply(writes);
+    } catch (RuntimeException e) {
+      flushed = Future.failedFuture(e);
+    }
+    flushed.onComplete(results -> {
+      for (int i = 0; i < batch.size(); i++) {
+        Pending<T, R> pending = batch.get(i);
+        AsyncResult<R> result = results.succeeded() ? results.result().get(i) : Future.failedFuture(results.cause());
+        pending.context().runOnContext(v -> pending.promise().handle(result));
+      }
+      synchronized (this) {
+        flushing = false;
+      }
+      // the writes queued meanwhile have already waited for this commit
+      flush();
+    });
+  }
+}
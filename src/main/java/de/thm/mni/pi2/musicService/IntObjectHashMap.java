@@ -0,0 +1,191 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive int keys, using open addressing with linear probing.
+ * Avoids boxing the keys and the entry objects of a {@link java.util.HashMap}. Not thread-safe.
+ *
+ * @param <V> The type of the values.
+ */
+public class IntObjectHashMap<V> {
+
+  /**
+   * Receives the entries of the map.
+   */
+  public interface EntryConsumer<V> {
+    void accept(int key, V value);
+  }
+
+  private static final int FREE = 0;
+
+  private int[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+  private boolean hasFreeKey;
+  private Object freeKeyValue;
+
+  public IntObjectHashMap() {
+    this(16);
+  }
+
+  public IntObjectHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(int key) {
+    if (key == FREE) {
+      return hasFreeKey;
+    }
+    return keys[slot(key)] == key;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    if (key == FREE) {
+      return hasFreeKey ? (V) freeKeyValue : null;
+    }
+    int slot = slot(key);
+    return keys[slot] == key ? (V) values[slot] : null;
+  }
+
+  /**
+   * Associates the value with the key.
+   *
+   * @return The previous value, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(int key, V value) {
+    if (key == FREE) {
+      V previous = hasFreeKey ? (V) freeKeyValue : null;
+      if (!hasFreeKey) {
+        hasFreeKey = true;
+        size++;
+      }
+      freeKeyValue = value;
+      return previous;
+    }
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      V previous = (V) values[slot];
+      values[slot] = value;
+      return previous;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * Removes the key.
+   *
+   * @return The removed value, or null if the key was not present.
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    if (key == FREE) {
+      if (!hasFreeKey) {
+        return null;
+      }
+      V previous = (V) freeKeyValue;
+      hasFreeKey = false;
+      freeKeyValue = null;
+      size--;
+      return previous;
+    }
+    int slot = slot(key);
+    if (keys[slot] != key) {
+      return null;
+    }
+    V previous = (V) values[slot];
+    shiftBack(slot);
+    size--;
+    return previous;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, FREE);
+    Arrays.fill(values, null);
+    hasFreeKey = false;
+    freeKeyValue = null;
+    size = 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public void forEach(EntryConsumer<V> consumer) {
+    if (hasFreeKey) {
+      consumer.accept(FREE, (V) freeKeyValue);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) {
+        consumer.accept(keys[i], (V) values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return The slot holding the key, or the free slot where it would be inserted.
+   */
+  private int slot(int key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Removes the entry at the slot and moves following entries of the probe chain back,
+   * so lookups never need tombstones.
+   */
+  private void shiftBack(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (keys[next] != FREE) {
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = FREE;
+    values[gap] = null;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
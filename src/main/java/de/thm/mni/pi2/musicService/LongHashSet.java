@@ -0,0 +1,152 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Hash set of primitive longs, using open addressing with linear probing.
+ * Used for pairs of IDs packed into one long, see {@link #pack(int, int)}. Not thread-safe.
+ */
+public class LongHashSet {
+  private static final long FREE = 0L;
+
+  private long[] keys;
+  private int mask;
+  private int size;
+  private boolean hasFreeKey;
+
+  public LongHashSet() {
+    this(16);
+  }
+
+  public LongHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+    keys = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Packs two ints into one long, the first one into the upper half.
+   */
+  public static long pack(int high, int low) {
+    return ((long) high << 32) | (low & 0xFFFFFFFFL);
+  }
+
+  public static int high(long packed) {
+    return (int) (packed >>> 32);
+  }
+
+  public static int low(long packed) {
+    return (int) packed;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(long key) {
+    if (key == FREE) {
+      return hasFreeKey;
+    }
+    return keys[slot(key)] == key;
+  }
+
+  /**
+   * @return true if the key was added, false if it was already present.
+   */
+  public boolean add(long key) {
+    if (key == FREE) {
+      if (hasFreeKey) {
+        return false;
+      }
+      hasFreeKey = true;
+      size++;
+      return true;
+    }
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      return false;
+    }
+    keys[slot] = key;
+    if (++size * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the key was removed, false if it was not present.
+   */
+  public boolean remove(long key) {
+    if (key == FREE) {
+      if (!hasFreeKey) {
+        return false;
+      }
+      hasFreeKey = false;
+      size--;
+      return true;
+    }
+    int slot = slot(key);
+    if (keys[slot] != key) {
+      return false;
+    }
+    shiftBack(slot);
+    size--;
+    return true;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, FREE);
+    hasFreeKey = false;
+    size = 0;
+  }
+
+  public void forEach(LongConsumer consumer) {
+    if (hasFreeKey) {
+      consumer.accept(FREE);
+    }
+    for (long key : keys) {
+      if (key != FREE) {
+        consumer.accept(key);
+      }
+    }
+  }
+
+  private int slot(long key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void shiftBack(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (keys[next] != FREE) {
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = FREE;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    keys = new long[capacity];
+    mask = capacity - 1;
+    for (long key : oldKeys) {
+      if (key != FREE) {
+        keys[slot(key)] = key;
+      }
+    }
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -1,191 +1,730 @@
 package de.thm.mni.pi2.musicService;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.ThreadingModel;
 import io.vertx.core.VerticleBase;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
+import io.vertx.jdbcclient.JDBCConnectOptions;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
 
-import java.sql.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class MainVerticle extends VerticleBase {
   private static final String DB_URL = "jdbc:mariadb://<your.database.url>";
   private static final String DB_USER = "<your_db_user>";
   private static final String DB_PASSWORD = "<your_db_password>";
+  private static final int HTTP_PORT = 8888;
+  private static final int METRICS_PORT = 9090;
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_BULK_SONG_IDS = 1000;
+  private static final int DEFAULT_SEARCH_RESULTS = 10;
+  private static final int DEFAULT_RECOMMENDATIONS = 10;
+  private static final long GENRES_RECONCILE_INTERVAL = 300_000;
+  private static final long READ_MODEL_REFRESH_INTERVAL = 300_000;
+  private static final int READ_MODEL_MAX_LIBRARY_SONGS = 1_000_000;
+  private static final long CHANGES_KEEP_ALIVE = 15_000;
+  private static final long READ_PIN_WINDOW = 5_000;
+  private static final long ADMISSION_DEADLINE = 10_000;
+  private static final String ADMISSION_TICKET = "admission.ticket";
+  private static final String ADMISSION_ABANDONED = "admission.abandoned";
 
-  private Connection connection;
+  private final boolean ownsRepository;
+  private MusicRepository repository;
+  private ChangeFeed changes;
+  private ReadYourWrites readYourWrites;
+  private AdmissionControl admission;
+  private BatchDispatcher batch;
+  private long admissionDeadline;
+  private long queryTimeout;
+  private int metricsPort;
+  private int fetchSize;
+  private int bulkBatchSize;
+
+  /**
+   * Creates the root verticle. It opens the database, loads the repository and deploys the HTTP instances,
+   * their number and threading model taken from the config keys instances and threadingModel.
+   */
+  public MainVerticle() {
+    this.ownsRepository = true;
+  }
+
+  /**
+   * Creates one HTTP instance serving the API on the repository shared by all instances.
+   *
+   * @param repository     The repository of the root verticle.
+   * @param changes        The change feed of the root verticle.
+   * @param readYourWrites The tracker of the writes per client, or null if all reads go to the primary.
+   * @param admission      The limit of the requests working on the database, or null if there is none.
+   */
+  MainVerticle(MusicRepository repository, ChangeFeed changes, ReadYourWrites readYourWrites, AdmissionControl admission) {
+    this.ownsRepository = false;
+    this.repository = repository;
+    this.changes = changes;
+    this.readYourWrites = readYourWrites;
+    this.admission = admission;
+  }
 
   @Override
   public Future<?> start() {
+    fetchSize = config().getJsonObject("db", new JsonObject()).getInteger("fetchSize", 500);
+    bulkBatchSize = config().getInteger("bulk.batchSize", 500);
+    admissionDeadline = config().getLong("admission.deadline", ADMISSION_DEADLINE);
+    queryTimeout = config().getJsonObject("db", new JsonObject()).getInteger("queryTimeout", 30) * 1000L;
+    if (!ownsRepository) {
+      return startServer();
+    }
+    DeploymentOptions instanceOptions;
     try {
-      connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Öffnen der Datenbankverbindung");
-      e.printStackTrace();
+      instanceOptions = new DeploymentOptions()
+        .setConfig(config())
+        .setInstances(config().getInteger("instances", Runtime.getRuntime().availableProcessors()))
+        .setThreadingModel(ThreadingModel.valueOf(config().getString("threadingModel", ThreadingModel.EVENT_LOOP.name())));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Ungültige Konfiguration für instances oder threadingModel");
       return Future.failedFuture(e);
     }
 
+    JsonObject db = config().getJsonObject("db", new JsonObject());
+    Pool pool = createPool(db);
+    ExistenceIndex index = config().getBoolean("existenceIndex", true) ? new ExistenceIndex() : null;
+    Metrics metrics = new Metrics();
+    JsonObject read = db.getJsonObject("read");
+    if (read != null) {
+      // the read pool takes the settings of the primary that are not overridden
+      JsonObject readDb = db.copy().mergeIn(read);
+      readDb.remove("read");
+      repository = new MusicRepository(pool, createPool(readDb), index, metrics);
+      readYourWrites = new ReadYourWrites(read.getLong("pinWindow", READ_PIN_WINDOW));
+    } else {
+      repository = new MusicRepository(pool, index, metrics);
+    }
+    changes = new ChangeFeed(vertx);
+    if (config().getBoolean("groupCommit.enabled", false)) {
+      repository.enableGroupCommit(vertx,
+        config().getInteger("groupCommit.batchSize", 64),
+        config().getLong("groupCommit.maxDelay", 2L),
+        config().getInteger("groupCommit.queueSize", 1024));
+    }
+    if (config().getBoolean("readModel.enabled", true)) {
+      repository.enableReadModel(config().getInteger("readModel.maxLibrarySongs", READ_MODEL_MAX_LIBRARY_SONGS));
+    }
+    int admissionLimit = config().getInteger("admission.limit", 0);
+    if (admissionLimit > 0) {
+      admission = new AdmissionControl(vertx, admissionLimit,
+        config().getInteger("admission.queueSize", 2 * admissionLimit),
+        config().getBoolean("admission.adaptive", false),
+        config().getInteger("admission.minLimit", 1),
+        config().getLong("admission.targetLatency", 250L));
+      metrics.monitorAdmission(admission);
+    }
+
+    return repository.init()
+      .onFailure(e -> {
+        System.err.println("Fehler beim Öffnen der Datenbankverbindung");
+        e.printStackTrace();
+      })
+      .onSuccess(v -> scheduleGenreReconciliation())
+      .onSuccess(v -> scheduleReadModelRefresh())
+      .compose(v -> startMetricsServer(metrics))
+      .compose(v -> vertx.deployVerticle(() -> new MainVerticle(repository, changes, readYourWrites, admission), instanceOptions))
+      .onSuccess(id -> System.out.println("Deployed " + instanceOptions.getInstances() + " instances with threading model " + instanceOptions.getThreadingModel()))
+      .onFailure(e -> {
+        System.err.println("Fehler beim Starten der HTTP-Instanzen");
+        e.printStackTrace();
+      });
+  }
+
+  /**
+   * Reloads the read model every readModel.refreshInterval milliseconds, so it picks up writes of other processes.
+   */
+  private void scheduleReadModelRefresh() {
+    long interval = config().getLong("readModel.refreshInterval", READ_MODEL_REFRESH_INTERVAL);
+    if (interval <= 0 || !config().getBoolean("readModel.enabled", true)) {
+      return;
+    }
+    vertx.setPeriodic(interval, timer -> repository.refreshReadModel()
+      .onFailure(e -> {
+        System.err.println("Fehler beim Neuladen des Read-Models");
+        e.printStackTrace();
+      }));
+  }
+
+  /**
+   * Creates a connection pool from the url, the credentials and the pool settings of the given database config.
+   */
+  private Pool createPool(JsonObject db) {
+    JDBCConnectOptions connectOptions = new JDBCConnectOptions()
+      .setJdbcUrl(db.getString("url", DB_URL))
+      .setUser(db.getString("user", DB_USER))
+      .setPassword(db.getString("password", DB_PASSWORD))
+      .setQueryTimeout(db.getInteger("queryTimeout", 30));
+    PoolOptions poolOptions = new PoolOptions()
+      .setMaxSize(db.getInteger("maxPoolSize", 8))
+      .setMaxWaitQueueSize(db.getInteger("maxWaitQueueSize", 128))
+      .setConnectionTimeout(db.getInteger("connectionTimeout", 5000))
+      .setConnectionTimeoutUnit(TimeUnit.MILLISECONDS)
+      .setIdleTimeout(db.getInteger("idleTimeout", 60000))
+      .setIdleTimeoutUnit(TimeUnit.MILLISECONDS);
+    return JDBCPool.pool(vertx, connectOptions, poolOptions);
+  }
+
+  /**
+   * Reconciles the genre counters with the database every genres.reconcileInterval milliseconds (default 5 minutes,
+   * 0 to switch off). The timer belongs to the root verticle and is cancelled when it is undeployed.
+   */
+  private void scheduleGenreReconciliation() {
+    long interval = config().getLong("genres.reconcileInterval", GENRES_RECONCILE_INTERVAL);
+    if (interval <= 0) {
+      return;
+    }
+    vertx.setPeriodic(interval, timer -> repository.reconcileGenres()
+      .onFailure(e -> {
+        System.err.println("Fehler beim Abgleich der Genre-Zähler");
+        e.printStackTrace();
+      }));
+  }
+
+  /**
+   * Serves the metrics in the Prometheus text format under /metrics, on its own port bound to the local interface
+   * by default, so it is not reachable through the public API port.
+   */
+  private Future<Void> startMetricsServer(Metrics metrics) {
+    Router router = Router.router(vertx);
+    router.get("/metrics").handler(routingContext -> routingContext.response()
+      .putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+      .end(metrics.scrape()));
+    return vertx.createHttpServer()
+      .requestHandler(router)
+      .listen(config().getInteger("metrics.port", METRICS_PORT), config().getString("metrics.host", "127.0.0.1"))
+      .onSuccess(http -> {
+        metricsPort = http.actualPort();
+        System.out.println("Metrics server started on port " + metricsPort);
+      })
+      .onFailure(e -> {
+        System.err.println("Fehler beim Starten des Metrics-Servers");
+        e.printStackTrace();
+      })
+      .mapEmpty();
+  }
+
+  /**
+   * Starts the HTTP server of one instance. All instances listen on the same port and Vert.x distributes
+   * the connections among them.
+   */
+  private Future<?> startServer() {
     Router router = Router.router(vertx);
+    batch = new BatchDispatcher(repository, admission);
+    router.route().handler(this::measure);
+    if (readYourWrites != null) {
+      router.route().handler(this::recordWrites);
+    }
+    // registered before the BodyHandler, so an NDJSON import can be read while it is still arriving
+    // an import may take longer than the deadline, it is bounded by db.queryTimeout per batch
+    router.post("/songs/bulk").handler(routingContext -> admit(routingContext, 0)).handler(this::importSongs);
+    router.get("/changes").handler(this::subscribeChanges);
     router.route().handler(BodyHandler.create());
-    router.post("/users").handler(this::createUser);
-    router.get("/users").handler(this::getAllUsers);
-    router.get("/users/:id").handler(this::getUser);
-    router.delete("/users/:id").handler(this::deleteUser);
+    // the routes answered from memory are not limited by the admission control
+    api(router, HttpMethod.POST, "/users", true, this::createUser);
+    api(router, HttpMethod.GET, "/users", true, this::getAllUsers);
+    api(router, HttpMethod.GET, "/users/:id", true, this::getUser);
+    api(router, HttpMethod.GET, "/users/:id/songs", true, this::getUserSongs);
+    api(router, HttpMethod.GET, "/users/:id/recommendations", false, this::getRecommendations);
+    api(router, HttpMethod.DELETE, "/users/:id", true, this::deleteUser);
 
-    router.post("/songs").handler(this::createSong);
-    router.put("/users/:userId/songs/:songId").handler(this::assignSong);
-    router.get("/songs").handler(this::getAllSongs);
-    router.delete("/users/:userId/songs/:songId").handler(this::unassignSong);
-    router.delete("/songs/:id").handler(this::deleteSong);
+    api(router, HttpMethod.POST, "/songs", true, this::createSong);
+    api(router, HttpMethod.PUT, "/users/:userId/songs/:songId", true, this::assignSong);
+    api(router, HttpMethod.PUT, "/users/:userId/songs", true, this::assignSongs);
+    api(router, HttpMethod.DELETE, "/users/:userId/songs", true, this::unassignSongs);
+    api(router, HttpMethod.GET, "/songs", true, this::getAllSongs);
+    api(router, HttpMethod.GET, "/songs/search", false, this::searchSongs);
+    api(router, HttpMethod.GET, "/songs/trending", false, this::getTrendingSongs);
+    api(router, HttpMethod.GET, "/genres", false, this::getGenres);
+    api(router, HttpMethod.GET, "/songs/:id/related", false, this::getRelatedSongs);
+    api(router, HttpMethod.DELETE, "/users/:userId/songs/:songId", true, this::unassignSong);
+    api(router, HttpMethod.DELETE, "/songs/:id", true, this::deleteSong);
+    router.get("/export/:table").handler(this::admit).handler(this::export);
+    // not admitted itself, its sub-requests are admitted one by one
+    router.post("/batch").handler(this::batch);
 
-    return vertx.createHttpServer()
+    int port = config().getInteger("http.port", HTTP_PORT);
+    // gzip or deflate, as negotiated with Accept-Encoding
+    HttpServerOptions serverOptions = new HttpServerOptions()
+      .setCompressionSupported(config().getBoolean("http.compression", true))
+      .setCompressionLevel(config().getInteger("http.compressionLevel", 6));
+    return vertx.createHttpServer(serverOptions)
       .requestHandler(router)
-      .listen(8888)
-      .onSuccess(http -> System.out.println("HTTP server started on port 8888"));
+      .listen(port)
+      .onSuccess(http -> System.out.println("HTTP server started on port " + http.actualPort()));
   }
 
+  /**
+   * Registers a handler of the API on the router, behind the admission control if it works on the database,
+   * and for the sub-requests of a batch.
+   *
+   * @param admitted Whether the requests are limited by the admission control.
+   */
+  private void api(Router router, HttpMethod method, String path, boolean admitted, Handler<Exchange> handler) {
+    Route route = router.route(method, path);
+    if (admitted) {
+      route.handler(this::admit);
+    }
+    route.handler(routingContext -> handler.handle(Exchange.of(routingContext)));
+    batch.route(method, path, admitted, handler);
+  }
+
+  @Override
+  public Future<?> stop() {
+    // the HTTP instances are undeployed before the root, which then closes the shared pool
+    return ownsRepository ? repository.close() : Future.succeededFuture();
+  }
+
+  ChangeFeed changes() {
+    return changes;
+  }
+
+  MusicRepository repository() {
+    return repository;
+  }
+
+  int metricsPort() {
+    return metricsPort;
+  }
 
   /**
-   * Creates a new user in the database based on the JSON input from the HTTP request body.
+   * Records the latency of the request once its response has ended, labelled with the path of the route that answered it.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void measure(RoutingContext routingContext) {
+    long start = System.nanoTime();
+    routingContext.addEndHandler(v -> {
+      Route route = routingContext.currentRoute();
+      String path = route == null || route.getPath() == null ? "unmatched" : route.getPath();
+      repository.metrics().recordRequest(routingContext.request().method().name(), path,
+        routingContext.response().getStatusCode(), System.nanoTime() - start);
+    });
+    routingContext.next();
+  }
+
+
+  /**
+   * Records a successful write for the read routing once its response headers are sent, so the next read of the client
+   * already goes to the primary.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void recordWrites(RoutingContext routingContext) {
+    HttpMethod method = routingContext.request().method();
+    if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+      routingContext.addHeadersEndHandler(v -> {
+        if (routingContext.response().getStatusCode() < 400) {
+          readYourWrites.recordWrite(routingContext.request().getHeader(ReadYourWrites.HEADER));
+        }
+      });
+    }
+    routingContext.next();
+  }
+
+  /**
+   * Lets the request continue once the admission control admits it, or answers 503 if it is rejected. The place of the
+   * request is released when its response has ended or its connection is closed, so a client that disconnects while
+   * waiting never reaches the database. A request that has not sent its response headers within admission.deadline
+   * milliseconds is answered with 503. If its handler is already working on the database, the place is only released
+   * once the handler is done, see {@link #abandonedDone(RoutingContext)}, or at the latest after db.queryTimeout,
+   * when the JDBC driver cancels the statement, so the limit still bounds the statements running on the database.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void admit(RoutingContext routingContext) {
+    admit(routingContext, admissionDeadline);
+  }
+
+  /**
+   * Like {@link #admit(RoutingContext)} with the given deadline.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param deadline       The deadline in milliseconds, or 0 for none.
+   */
+  private void admit(RoutingContext routingContext, long deadline) {
+    if (admission == null) {
+      routingContext.next();
+      return;
+    }
+    HttpServerRequest request = routingContext.request();
+    HttpServerResponse response = routingContext.response();
+    AdmissionControl.Ticket ticket = admission.request();
+    long timer = deadline > 0 ? vertx.setTimer(deadline, t -> {
+      if (!response.headWritten() && !response.closed()) {
+        routingContext.put(ADMISSION_ABANDONED, true);
+        overloaded(routingContext, new OverloadedException("Deadline of " + deadline + " ms exceeded"));
+      }
+    }) : -1;
+    routingContext.addEndHandler(v -> {
+      vertx.cancelTimer(timer);
+      boolean running = routingContext.get(ADMISSION_TICKET) != null;
+      if (!running || response.ended() && routingContext.get(ADMISSION_ABANDONED) == null) {
+        ticket.release(response.getStatusCode() >= 500);
+        return;
+      }
+      // answered after the deadline or closed by the client while the handler is still working on the database
+      routingContext.put(ADMISSION_ABANDONED, true);
+      vertx.setTimer(queryTimeout, t -> ticket.release(true));
+    });
+    if (ticket.admitted().succeeded()) {
+      routingContext.put(ADMISSION_TICKET, ticket);
+      routingContext.next();
+      return;
+    }
+    if (ticket.admitted().failed()) {
+      overloaded(routingContext, ticket.admitted().cause());
+      return;
+    }
+    // a streamed body must not be lost while the request waits
+    boolean paused = !request.isEnded();
+    if (paused) {
+      request.pause();
+    }
+    ticket.admitted()
+      .onSuccess(v -> {
+        if (response.ended() || response.closed()) {
+          return;
+        }
+        if (paused) {
+          request.resume();
+        }
+        routingContext.put(ADMISSION_TICKET, ticket);
+        routingContext.next();
+      })
+      .onFailure(e -> {
+        if (paused) {
+          request.resume();
+        }
+        overloaded(routingContext, e);
+      });
+  }
+
+  /**
+   * Releases the place of an admitted request whose response has already been ended by the deadline or closed by the
+   * client, once its handler is done with the database and would have sent its response.
    *
    * @param routingContext The routing context containing the HTTP request and response objects.
    */
-  private void createUser(RoutingContext routingContext) {
+  private void abandonedDone(RoutingContext routingContext) {
+    AdmissionControl.Ticket ticket = routingContext.get(ADMISSION_TICKET);
+    if (ticket != null && routingContext.get(ADMISSION_ABANDONED) != null) {
+      ticket.release(true);
+    }
+  }
+
+  /**
+   * Creates a new user in the database based on the JSON input from the HTTP request body.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void createUser(Exchange exchange) {
     try {
-      JsonObject jsonObject = routingContext.body().asJsonObject();
+      JsonObject jsonObject = exchange.bodyAsJsonObject();
       String username = jsonObject.getString("username");
       String email = jsonObject.getString("email");
       if (username.isEmpty() || email.isEmpty()) {
         throw new IllegalArgumentException("Invalid JSON input.");
       }
-      if (userExists(username)) {
-        throw new UserAlreadyExistsException(username);
-      }
-      String sql = "INSERT INTO users (name, email) VALUES (?, ?)";
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-        preparedStatement.setString(1, username);
-        preparedStatement.setString(2, email);
-        preparedStatement.executeUpdate();
-
-        try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
-          if (generatedKeys.next()) {
-            long id = generatedKeys.getLong(1);
-            response(routingContext.response(), 201, new JsonObject().put("success", "User successfully created with ID: " + id));
+      repository.insertUser(exchange.transaction(), username, email)
+        .onSuccess(id -> {
+          publish(exchange, "user.created", new JsonObject().put("userId", id).put("name", username));
+          response(exchange, 201, new JsonObject().put("success", "User successfully created with ID: " + id).put("id", id));
+        })
+        .onFailure(e -> {
+          if (e instanceof UserAlreadyExistsException) {
+            response(exchange, 409, new JsonObject().put("error", e.getMessage()));
           } else {
-            response(routingContext.response(), 500, new JsonObject().put("error", "Failed to retrieve generated ID"));
+            System.err.println("Error while trying to insert user into database.");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
           }
-        }
-      } catch (SQLException e) {
-        System.err.println("Error while trying to insert user into database.");
-        e.printStackTrace();
-      }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (UserAlreadyExistsException e) {
-      response(routingContext.response(), 409, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
    * Retrieves all users from the database and sends them in the HTTP response.
    *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void getAllUsers(Exchange exchange) {
+    Fields fields;
+    try {
+      fields = fields(exchange, Fields.USER);
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+      return;
+    }
+    if (notModified(exchange, repository.usersVersion(), readsFromPrimary(exchange.clientId()))) {
+      return;
+    }
+    if (isStreaming(exchange)) {
+      streamAllUsers(exchange.routingContext(), fields);
+      return;
+    }
+    if (isPaginated(exchange)) {
+      getUsersPage(exchange, fields);
+      return;
+    }
+    repository.fetchAllUsers(fields, readsFromPrimary(exchange.clientId()))
+      .onSuccess(usernames -> {
+        if (usernames.isEmpty()) {
+          response(exchange, 204, new JsonObject().put("error", "No Users found."));
+        } else {
+          response(exchange, 200, new JsonObject().put("users", usernames));
+        }
+      })
+      .onFailure(e -> {
+        System.err.println("Fehler beim fetchen von Usern");
+        e.printStackTrace();
+        response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+      });
+  }
+
+  /**
+   * Retrieves one page of users with their songs, selected by the query parameters limit and after or cursor.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   * @param fields   The fields of the users to return.
+   */
+  private void getUsersPage(Exchange exchange, Fields fields) {
+    try {
+      int limit = pageLimit(exchange);
+      int afterId = pageAfter(exchange);
+      repository.fetchUsersPage(afterId, limit, fields, readsFromPrimary(exchange.clientId()))
+        .onSuccess(page -> pageResponse(exchange, "users", page))
+        .onFailure(e -> {
+          System.err.println("Fehler beim fetchen von Usern");
+          e.printStackTrace();
+          response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    }
+  }
+
+  /**
+   * Streams all users with their songs as chunked JSON while they are read from the database cursor.
+   * Only the user currently being assembled is held in memory.
+   *
    * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param fields         The fields of the users to return.
    */
-  private void getAllUsers(RoutingContext routingContext) {
+  private void streamAllUsers(RoutingContext routingContext, Fields fields) {
+    HttpServerResponse response = routingContext.response();
+    RowStreamWriter writer = new RowStreamWriter(response, "application/json", "{\"users\":{", ",", "}}");
+    boolean names = fields.contains("name");
+    boolean emails = fields.contains("email");
+    boolean songs = fields.contains("songs");
+    repository.streamAllUsers(fetchSize, fields, readsFromPrimary(routingContext.request().getHeader(ReadYourWrites.HEADER)), stream -> writer.write(stream, new RowStreamWriter.Encoder() {
+        private Integer currentId;
+        private JsonObject current;
+
+        @Override
+        public Buffer encode(Row row) {
+          Integer id = row.getInteger("user_id");
+          Buffer completed = null;
+          if (!id.equals(currentId)) {
+            completed = finish();
+            currentId = id;
+            current = new JsonObject();
+            if (names) {
+              current.put("name", row.getString("user_name"));
+            }
+            if (emails) {
+              current.put("email", row.getString("user_email"));
+            }
+            if (songs) {
+              current.put("songs", new JsonObject());
+            }
+          }
+          if (!songs) {
+            return completed;
+          }
+          String songName = row.getString("song_name");
+          if (songName != null) {
+            current.getJsonObject("songs").put(String.valueOf(row.getInteger("song_id")), new JsonObject().put("name", songName));
+          }
+          return completed;
+        }
+
+        @Override
+        public Buffer finish() {
+          if (current == null) {
+            return null;
+          }
+          Buffer entry = entry(String.valueOf(currentId), current);
+          current = null;
+          return entry;
+        }
+      }))
+      .onFailure(e -> streamFailed(routingContext, "Fehler beim Streamen von Usern", e));
+  }
+
+  /**
+   * Retrieves a specific user from the database based on the ID provided in the URL path parameter.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void getUser(Exchange exchange) {
     try {
-      JsonObject usernames = fetchAllUsers();
-      response(routingContext.response(), 200, new JsonObject().put("users", usernames));
-      if (usernames.isEmpty()) {
-        throw new NoUsersFoundException("No Users found.");
+      int id = Integer.parseInt(exchange.pathParam("id"));
+      if (id < 1) {
+        throw new IllegalArgumentException("Invalid ID");
       }
-    } catch (NoUsersFoundException e) {
-      response(routingContext.response(), 204, new JsonObject().put("error", e.getMessage()));
+      Fields fields = fields(exchange, Fields.USER);
+      if (notModified(exchange, repository.usersVersion(), readsFromPrimary(exchange.clientId()))) {
+        return;
+      }
+      repository.fetchUser(id, fields, readsFromPrimary(exchange.clientId()))
+        .onSuccess(user -> response(exchange, 200, user))
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Suchen von User in Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Retrieves a specific user from the database based on the ID provided in the URL path parameter.
+   * Retrieves one page of the songs assigned to the user with the ID provided in the URL path parameter.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void getUser(RoutingContext routingContext) {
+  private void getUserSongs(Exchange exchange) {
     try {
-      int id = Integer.parseInt(routingContext.pathParam("id"));
+      int id = Integer.parseInt(exchange.pathParam("id"));
       if (id < 1) {
         throw new IllegalArgumentException("Invalid ID");
       }
-      if (!userExists(id)) {
-        throw new UserNotExistsException(id);
+      int limit = pageLimit(exchange);
+      int afterId = pageAfter(exchange);
+      Fields fields = fields(exchange, Fields.LIBRARY_SONG);
+      if (notModified(exchange, repository.usersVersion(), readsFromPrimary(exchange.clientId()))) {
+        return;
       }
-      String sql = "SELECT u.name, u.email, s.name FROM users u LEFT JOIN songs s ON s.id = u.id WHERE u.id = ?";
-      JsonObject user = new JsonObject();
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-        preparedStatement.setInt(1, id);
-        try (ResultSet resultSet = preparedStatement.executeQuery()) {
-          boolean exists = false;
-          while (resultSet.next()) {
-            if (!exists) {
-              user.put("id", id);
-              user.put("name", resultSet.getString("u.name"));
-              user.put("email", resultSet.getString("u.email"));
-              exists = true;
-            }
-            JsonObject songs = new JsonObject();
-            if (resultSet.getString("s.name") != null) {
-              songs.put("name", resultSet.getString("s.name"));
-            }
-            user.put("songs", songs);
+      repository.fetchUserSongsPage(id, afterId, limit, fields, readsFromPrimary(exchange.clientId()))
+        .onSuccess(page -> response(exchange, 200, new JsonObject()
+          .put("songs", page.items())
+          .put("next", encodeCursor(page.nextId()))))
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim fetchen der Songs von User");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
           }
-        }
-        routingContext.response().putHeader("content-type", "application/json").setStatusCode(200).end(Json.encodePrettily(user));
-      } catch (SQLException e) {
-        System.err.println("Fehler beim Suchen von User in Datenbank");
-        e.printStackTrace();
-      }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (UserNotExistsException e) {
-      response(routingContext.response(), 404, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Retrieves a specific user from the database based on the ID provided in the URL path parameter.
+   * Recommends songs to a user: the songs most often found in the libraries of users sharing songs with the user.
+   * The number of songs is set with the query parameter limit.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void deleteUser(RoutingContext routingContext) {
+  private void getRecommendations(Exchange exchange) {
     try {
-      int id = Integer.parseInt(routingContext.pathParam("id"));
+      int id = Integer.parseInt(exchange.pathParam("id"));
       if (id < 1) {
-        throw new IllegalArgumentException("Invalid name");
+        throw new IllegalArgumentException("Invalid ID");
       }
-      if (!userExists(id)) {
-        throw new UserNotExistsException(id);
+      int limit = limit(exchange, DEFAULT_RECOMMENDATIONS, CoOccurrenceIndex.MAX_NEIGHBOURS);
+      if (notModified(exchange, repository.usersVersion())) {
+        return;
       }
-      String sql = "DELETE FROM users WHERE id = ?";
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-        preparedStatement.setInt(1, id);
-        preparedStatement.executeUpdate();
-        response(routingContext.response(), 200, new JsonObject().put("success", "User with ID " + id + " successfully deleted"));
-      } catch (SQLException e) {
-        System.err.println("Error while trying to delete user from database.");
-        e.printStackTrace();
+      repository.recommendSongs(id, limit)
+        .onSuccess(songs -> response(exchange, 200, new JsonObject().put("songs", new JsonArray(songs))))
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Empfehlen von Songs");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    }
+  }
+
+  /**
+   * Deletes a specific user from the database based on the ID provided in the URL path parameter.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void deleteUser(Exchange exchange) {
+    try {
+      int id = Integer.parseInt(exchange.pathParam("id"));
+      if (id < 1) {
+        throw new IllegalArgumentException("Invalid name");
       }
+      repository.deleteUser(exchange.transaction(), id)
+        .onSuccess(v -> {
+          publish(exchange, "user.deleted", new JsonObject().put("userId", id));
+          response(exchange, 200, new JsonObject().put("success", "User with ID " + id + " successfully deleted"));
+        })
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Error while trying to delete user from database.");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (UserNotExistsException e) {
-      response(routingContext.response(), 404, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
 
   }
@@ -193,378 +732,982 @@ public class MainVerticle extends VerticleBase {
   /**
    * Creates a new song in the database based on the JSON input from the HTTP request body.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void createSong(RoutingContext routingContext) {
+  private void createSong(Exchange exchange) {
     try {
-      JsonObject jsonObject = routingContext.body().asJsonObject();
+      JsonObject jsonObject = exchange.bodyAsJsonObject();
       String name = jsonObject.getString("name");
       String genre = jsonObject.getString("genre");
       if (name.isEmpty() || genre.isEmpty()) {
         throw new IllegalArgumentException("Invalid JSON input.");
       }
-      if (songExists(name, genre)) {
-        throw new SongAlreadyExistsException(name, genre);
-      }
-      String sql = "INSERT INTO songs (name, genre) VALUES (?, ?)";
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-        preparedStatement.setString(1, name);
-        preparedStatement.setString(2, genre);
-        preparedStatement.executeUpdate();
-        try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
-          if (generatedKeys.next()) {
-            long id = generatedKeys.getLong(1);
-            response(routingContext.response(), 201, new JsonObject().put("success", "Song successfully created with ID: " + id));
+      repository.insertSong(exchange.transaction(), name, genre)
+        .onSuccess(id -> {
+          publish(exchange, "song.created", new JsonObject().put("songId", id).put("name", name).put("genre", genre));
+          response(exchange, 201, new JsonObject().put("success", "Song successfully created with ID: " + id).put("id", id));
+        })
+        .onFailure(e -> {
+          if (e instanceof SongAlreadyExistsException) {
+            response(exchange, 409, new JsonObject().put("error", e.getMessage()));
           } else {
-            response(routingContext.response(), 500, new JsonObject().put("error", "Failed to retrieve generated ID"));
+            System.err.println("Fehler beim einfügen von Song in Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
           }
-        }
-      } catch (SQLException e) {
-        System.err.println("Fehler beim einfügen von Song in Datenbank");
-        e.printStackTrace();
-      }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (SongAlreadyExistsException e) {
-      response(routingContext.response(), 409, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Assigns a song to a user based on the user ID and song ID provided in the URL path parameters.
+   * Imports many songs at once. Accepts either a JSON array of songs or, with the content type application/x-ndjson,
+   * one song per line. The songs are inserted in batches of bulk.batchSize, each batch in one transaction.
+   * A JSON array is answered with a JSON object containing the result for each song, an NDJSON import is answered with
+   * one result line per song, written as soon as its batch has been committed.
    *
    * @param routingContext The routing context containing the HTTP request and response objects.
    */
-  private void assignSong(RoutingContext routingContext) {
-    try {
-      int user_id = Integer.parseInt(routingContext.pathParam("userId"));
-      int song_id = Integer.parseInt(routingContext.pathParam("songId"));
-      if (user_id < 1 || song_id < 1) {
-        throw new IllegalArgumentException("Invalid ID input.");
+  private void importSongs(RoutingContext routingContext) {
+    HttpServerRequest request = routingContext.request();
+    String contentType = request.getHeader("content-type");
+    if (contentType != null && contentType.startsWith("application/x-ndjson")) {
+      importSongStream(routingContext);
+      return;
+    }
+    request.body()
+      .compose(body -> {
+        JsonArray songs = body.toJsonArray();
+        List<JsonObject> results = new ArrayList<>(songs.size());
+        Future<Void> imported = Future.succeededFuture();
+        for (int start = 0; start < songs.size(); start += bulkBatchSize) {
+          List<JsonObject> batch = new ArrayList<>();
+          for (int i = start; i < Math.min(start + bulkBatchSize, songs.size()); i++) {
+            Object song = songs.getValue(i);
+            batch.add(song instanceof JsonObject ? (JsonObject) song : new JsonObject());
+          }
+          imported = imported.compose(v -> repository.insertSongs(batch)
+            .onSuccess(this::publishCreatedSongs)
+            .map(results::addAll)
+            .mapEmpty());
+        }
+        return imported.map(v -> results);
+      })
+      .onSuccess(results -> {
+        JsonObject summary = new JsonObject()
+          .put("created", countStatus(results, "created"))
+          .put("duplicates", countStatus(results, "duplicate"))
+          .put("invalid", countStatus(results, "invalid"))
+          .put("songs", new JsonArray(new ArrayList<>(results)));
+        response(routingContext, 200, summary);
+      })
+      .onFailure(e -> {
+        if (e instanceof DecodeException || e instanceof ClassCastException) {
+          response(routingContext, 400, new JsonObject().put("error", "Invalid JSON input."));
+        } else {
+          System.err.println("Fehler beim Importieren von Songs");
+          e.printStackTrace();
+          response(routingContext, 500, new JsonObject().put("error", e.getMessage()));
+        }
+      });
+  }
+
+  /**
+   * Imports songs from an NDJSON request body while it is arriving. The request is paused while a batch is
+   * being inserted, so at most one batch is held in memory.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void importSongStream(RoutingContext routingContext) {
+    HttpServerResponse response = routingContext.response()
+      .setChunked(true)
+      .putHeader("content-type", "application/x-ndjson");
+    RecordParser parser = RecordParser.newDelimited("\n", routingContext.request());
+    List<JsonObject> batch = new ArrayList<>();
+    Future<?>[] imported = {Future.succeededFuture()};
+    parser.handler(line -> {
+      String json = line.toString().strip();
+      if (json.isEmpty()) {
+        return;
       }
-      if (!songExists(song_id)) {
-        throw new SongNotExistsException("ID " + song_id + " does not exist");
+      try {
+        batch.add(new JsonObject(json));
+      } catch (DecodeException e) {
+        batch.add(new JsonObject());
       }
-      if (!userExists(user_id)) {
-        throw new UserNotExistsException(user_id);
+      if (batch.size() >= bulkBatchSize) {
+        List<JsonObject> songs = new ArrayList<>(batch);
+        batch.clear();
+        parser.pause();
+        imported[0] = imported[0]
+          .compose(v -> writeImportResults(response, songs))
+          .onSuccess(v -> parser.resume())
+          .onFailure(e -> importFailed(response, e));
       }
-      if (assertionExists(user_id, song_id)) {
-        throw new AssertionAlreadyExistsException("User " + user_id + "with song " + song_id + " already exists");
+    });
+    parser.endHandler(v -> imported[0]
+      .compose(done -> batch.isEmpty() ? Future.succeededFuture() : writeImportResults(response, batch))
+      .onSuccess(done -> response.end())
+      .onFailure(e -> importFailed(response, e)));
+    parser.exceptionHandler(e -> response.reset());
+  }
+
+  /**
+   * Ends an NDJSON import with an error line. The results of the batches committed so far have already been sent.
+   */
+  private void importFailed(HttpServerResponse response, Throwable e) {
+    if (!response.ended()) {
+      System.err.println("Fehler beim Importieren von Songs");
+      e.printStackTrace();
+      response.end(new JsonObject().put("error", e.getMessage()).encode() + "\n");
+    }
+  }
+
+  private Future<Void> writeImportResults(HttpServerResponse response, List<JsonObject> songs) {
+    return repository.insertSongs(songs).map(results -> {
+      publishCreatedSongs(results);
+      for (JsonObject result : results) {
+        response.write(result.encode() + "\n");
       }
-      String sql = "INSERT INTO user_songs (user_id, song_id) VALUES (?, ?)";
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-        preparedStatement.setInt(1, user_id);
-        preparedStatement.setInt(2, song_id);
-        preparedStatement.executeUpdate();
-        response(routingContext.response(), 201, new JsonObject().put("success", "Song was successfully asserted with ID: " + song_id + " to user with ID: " + user_id));
-      } catch (SQLException e) {
-        System.err.println("Fehler beim Einfügen von Zuweisung in Datenbank");
-        e.printStackTrace();
+      return null;
+    });
+  }
+
+  private void publishCreatedSongs(List<JsonObject> results) {
+    for (JsonObject result : results) {
+      if ("created".equals(result.getString("status"))) {
+        changes.publish("song.created", new JsonObject()
+          .put("songId", result.getValue("id"))
+          .put("name", result.getString("name"))
+          .put("genre", result.getString("genre")));
+      }
+    }
+  }
+
+  private static long countStatus(List<JsonObject> results, String status) {
+    return results.stream().filter(result -> status.equals(result.getString("status"))).count();
+  }
+
+  /**
+   * Assigns a song to a user based on the user ID and song ID provided in the URL path parameters.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void assignSong(Exchange exchange) {
+    try {
+      int user_id = Integer.parseInt(exchange.pathParam("userId"));
+      int song_id = Integer.parseInt(exchange.pathParam("songId"));
+      if (user_id < 1 || song_id < 1) {
+        throw new IllegalArgumentException("Invalid ID input.");
       }
+      repository.insertAssertion(exchange.transaction(), user_id, song_id)
+        .onSuccess(v -> {
+          publish(exchange, "song.assigned", new JsonObject().put("userId", user_id).put("songId", song_id));
+          response(exchange, 201, new JsonObject().put("success", "Song was successfully asserted with ID: " + song_id + " to user with ID: " + user_id));
+        })
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException || e instanceof SongNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else if (e instanceof AssertionAlreadyExistsException) {
+            response(exchange, 409, new JsonObject().put("error", e.getMessage()));
+          } else if (e instanceof OverloadedException) {
+            overloaded(exchange, e);
+          } else {
+            System.err.println("Fehler beim Einfügen von Zuweisung in Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (AssertionAlreadyExistsException e) {
-      response(routingContext.response(), 404, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
 
   }
 
   /**
-   * Retrieves all songs from the database and sends them in the HTTP response.
+   * Assigns many songs to a user at once. The song IDs are read from the request body, either as JSON array
+   * or as JSON object with the array in songIds.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void getAllSongs(RoutingContext routingContext) {
+  private void assignSongs(Exchange exchange) {
     try {
-      JsonObject songs = fetchAllSongs();
-      if (songs.isEmpty()) {
-        throw new NoSongsFoundException("No Songs found.");
-      }
-      response(routingContext.response(), 200, new JsonObject().put("songs", songs));
-    } catch (NoSongsFoundException e) {
-      response(routingContext.response(), 204, new JsonObject().put("success", e.getMessage()));
+      int userId = Integer.parseInt(exchange.pathParam("userId"));
+      Set<Integer> songIds = songIds(exchange);
+      repository.insertAssertions(exchange.transaction(), userId, songIds)
+        .onSuccess(result -> {
+          publishAssignments(exchange, "song.assigned", userId, result.getJsonArray("added"));
+          response(exchange, 200, result);
+        })
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Einfügen von Zuweisungen in Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Unassigns a song from a user based on the user ID and song ID provided in the URL path parameters.
+   * Removes many songs from a user at once. The song IDs are read from the request body, either as JSON array
+   * or as JSON object with the array in songIds.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void unassignSong(RoutingContext routingContext) {
+  private void unassignSongs(Exchange exchange) {
     try {
-      int userId = Integer.parseInt(routingContext.pathParam("userId"));
-      int songId = Integer.parseInt(routingContext.pathParam("songId"));
-      if (userId < 1 || songId < 1) {
+      int userId = Integer.parseInt(exchange.pathParam("userId"));
+      Set<Integer> songIds = songIds(exchange);
+      repository.deleteAssertions(exchange.transaction(), userId, songIds)
+        .onSuccess(result -> {
+          publishAssignments(exchange, "song.unassigned", userId, result.getJsonArray("removed"));
+          response(exchange, 200, result);
+        })
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Entfernen von Zuweisungen aus Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    } catch (Exception e) {
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+    }
+  }
+
+  private void publishAssignments(Exchange exchange, String type, int userId, JsonArray songIds) {
+    for (Object songId : songIds) {
+      publish(exchange, type, new JsonObject().put("userId", userId).put("songId", songId));
+    }
+  }
+
+  /**
+   * Publishes the event of a write on the change feed, for a write in the transaction of an atomic batch only once
+   * the transaction has been committed.
+   *
+   * @param exchange The request that wrote, from the router or from a batch.
+   */
+  private void publish(Exchange exchange, String type, JsonObject event) {
+    if (exchange.transaction() == null) {
+      changes.publish(type, event);
+    } else {
+      exchange.transaction().onCommit(() -> changes.publish(type, event));
+    }
+  }
+
+  /**
+   * Reads the song IDs of a bulk assignment from the request body.
+   *
+   * @param exchange The request, from the router or from a batch.
+   * @return The song IDs in request order, without duplicates.
+   */
+  private Set<Integer> songIds(Exchange exchange) {
+    Object body;
+    try {
+      body = exchange.bodyAsJson();
+    } catch (DecodeException e) {
+      throw new IllegalArgumentException("Invalid JSON input.");
+    }
+    if (body == null) {
+      throw new IllegalArgumentException("Invalid JSON input.");
+    }
+    if (body instanceof JsonObject) {
+      body = ((JsonObject) body).getValue("songIds");
+    }
+    if (!(body instanceof JsonArray) || ((JsonArray) body).isEmpty() || ((JsonArray) body).size() > MAX_BULK_SONG_IDS) {
+      throw new IllegalArgumentException("Expected between 1 and " + MAX_BULK_SONG_IDS + " song IDs.");
+    }
+    Set<Integer> songIds = new LinkedHashSet<>();
+    for (Object songId : (JsonArray) body) {
+      if (!(songId instanceof Integer) || (Integer) songId < 1) {
         throw new IllegalArgumentException("Invalid ID input.");
       }
-      if (!songExists(songId)) {
-        throw new SongNotExistsException("ID " + songId + " does not exist");
-      }
-      if (!userExists(userId)) {
-        throw new UserNotExistsException(userId);
+      songIds.add((Integer) songId);
+    }
+    return songIds;
+  }
+
+  /**
+   * Retrieves all songs from the database and sends them in the HTTP response.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void getAllSongs(Exchange exchange) {
+    Fields fields;
+    try {
+      fields = fields(exchange, Fields.SONG);
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+      return;
+    }
+    if (notModified(exchange, repository.songsVersion(), readsFromPrimary(exchange.clientId()))) {
+      return;
+    }
+    if (isStreaming(exchange)) {
+      streamAllSongs(exchange.routingContext(), fields);
+      return;
+    }
+    if (isPaginated(exchange)) {
+      getSongsPage(exchange, fields);
+      return;
+    }
+    repository.fetchAllSongs(fields, readsFromPrimary(exchange.clientId()))
+      .onSuccess(songs -> {
+        if (songs.isEmpty()) {
+          response(exchange, 204, new JsonObject().put("success", "No Songs found."));
+        } else {
+          response(exchange, 200, new JsonObject().put("songs", songs));
+        }
+      })
+      .onFailure(e -> {
+        System.err.println("Fehler beim fetchen von Songs");
+        e.printStackTrace();
+        response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+      });
+  }
+
+  /**
+   * Searches the songs by name and genre for type-ahead, answered from the in-memory search index.
+   * The last term of the query parameter q is matched as a prefix, the number of results is set with limit.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void searchSongs(Exchange exchange) {
+    try {
+      String query = exchange.queryParam("q");
+      if (query == null || query.isBlank()) {
+        throw new IllegalArgumentException("Missing query parameter q.");
       }
-      if (!assertionExists(songId, userId)) {
-        throw new AssertionNotExistsException("User " + userId + "with song " + songId + " does not exists");
+      int limit = limit(exchange, DEFAULT_SEARCH_RESULTS, SongSearchIndex.MAX_RESULTS);
+      if (notModified(exchange, repository.songsVersion())) {
+        return;
       }
-      String sql = "DELETE from user_songs where user_id = ? and song_id = ?";
-      try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-        preparedStatement.setInt(1, userId);
-        preparedStatement.setInt(2, songId);
-        preparedStatement.executeUpdate();
-        response(routingContext.response(), 200, new JsonObject().put("success", "Song was successfully removed with ID: " + songId + " from user with ID: " + userId));
-      } catch (SQLException e) {
-        System.err.println("Fehler beim Entfernen von Zuweisung aus Datenbank");
-        e.printStackTrace();
+      JsonArray songs = new JsonArray();
+      for (SongSearchIndex.Song song : repository.searchSongs(query, limit)) {
+        songs.add(new JsonObject().put("id", song.id()).put("name", song.name()).put("genre", song.genre()));
       }
+      response(exchange, 200, new JsonObject().put("songs", songs));
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (UserNotExistsException | SongNotExistsException e) {
-      response(routingContext.response(), 404, new JsonObject().put("error", e.getMessage()));
-    } catch (AssertionNotExistsException e) {
-      response(routingContext.response(), 409, new JsonObject().put("error", e.getMessage()));
-    } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     }
+  }
 
+  /**
+   * Retrieves the genres with their number of songs and library assignments, from counters kept in memory.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void getGenres(Exchange exchange) {
+    JsonArray genres = new JsonArray();
+    for (GenreStats.Genre genre : repository.genres()) {
+      genres.add(new JsonObject()
+        .put("genre", genre.name())
+        .put("songs", genre.songs())
+        .put("assignments", genre.assignments()));
+    }
+    response(exchange, 200, new JsonObject().put("genres", genres));
   }
 
   /**
-   * Deletes a song from the database based on the ID provided in the URL path parameter.
+   * Retrieves the songs assigned most often in a recent time window, set with the query parameter window (default 1h).
+   * The number of songs is set with the query parameter limit.
    *
-   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private void deleteSong(RoutingContext routingContext) {
+  private void getTrendingSongs(Exchange exchange) {
     try {
-      int songId = Integer.parseInt(routingContext.pathParam("id"));
-      if (songId < 0) {
-        throw new IllegalArgumentException("Invalid ID input.");
+      String window = exchange.queryParam("window");
+      if (window == null) {
+        window = "1h";
       }
-      if (!songExists(songId)) {
-        throw new SongNotExistsException("ID " + songId + " does not exist");
+      int limit = limit(exchange, DEFAULT_RECOMMENDATIONS, TrendingCounter.MAX_RESULTS);
+      response(exchange, 200, new JsonObject()
+        .put("window", window)
+        .put("songs", new JsonArray(repository.trendingSongs(window, limit))));
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    }
+  }
+
+  /**
+   * Retrieves the songs most often assigned to the same users as the song with the ID from the URL path parameter.
+   * The number of songs is set with the query parameter limit.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void getRelatedSongs(Exchange exchange) {
+    try {
+      int id = Integer.parseInt(exchange.pathParam("id"));
+      if (id < 1) {
+        throw new IllegalArgumentException("Invalid ID");
       }
-      String sql1 = "DELETE FROM songs WHERE id = ?";
-      try (PreparedStatement prepareStatement1 = connection.prepareStatement(sql1)) {
-        prepareStatement1.setInt(1, songId);
-        prepareStatement1.executeUpdate();
-        response(routingContext.response(), 200, new JsonObject().put("success", "Song with ID '" + songId + "' successfully deleted"));
-      } catch (SQLException e) {
-        System.err.println("Fehler beim Löschen von Song in Datenbank");
-        e.printStackTrace();
+      int limit = limit(exchange, DEFAULT_RECOMMENDATIONS, CoOccurrenceIndex.MAX_NEIGHBOURS);
+      if (notModified(exchange, repository.usersVersion())) {
+        return;
       }
-
+      repository.relatedSongs(id, limit)
+        .onSuccess(songs -> response(exchange, 200, new JsonObject().put("songs", new JsonArray(songs))))
+        .onFailure(e -> {
+          if (e instanceof SongNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Laden verwandter Songs");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
     } catch (IllegalArgumentException e) {
-      response(routingContext.response(), 400, new JsonObject().put("error", e.getMessage()));
-    } catch (SongNotExistsException e) {
-      response(routingContext.response(), 404, new JsonObject().put("error", e.getMessage()));
-    } catch (Exception e) {
-      response(routingContext.response(), 500, new JsonObject().put("error", e.getMessage()));
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
     }
-
   }
 
   /**
-   * Sends a response with the specified status code and JSON payload.
+   * Retrieves one page of songs, selected by the query parameters limit and after or cursor.
    *
-   * @param response   The HTTP server response object to be used for sending the response.
-   * @param statusCode The HTTP status code to set for the response.
-   * @param json       The JSON object containing the data to be sent in the response.
+   * @param exchange The request and its response, from the router or from a batch.
+   * @param fields   The fields of the songs to return.
    */
-  private void response(HttpServerResponse response, Integer statusCode, JsonObject json) {
-    response
-      .putHeader("content-type", "application/json")
-      .setStatusCode(statusCode)
-      .end(Json.encodePrettily(json));
+  private void getSongsPage(Exchange exchange, Fields fields) {
+    try {
+      int limit = pageLimit(exchange);
+      int afterId = pageAfter(exchange);
+      repository.fetchSongsPage(afterId, limit, fields, readsFromPrimary(exchange.clientId()))
+        .onSuccess(page -> pageResponse(exchange, "songs", page))
+        .onFailure(e -> {
+          System.err.println("Fehler beim fetchen von Songs");
+          e.printStackTrace();
+          response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    }
   }
 
-  private boolean userExists(String username) {
-    String sql = "SELECT u.name from users u where u.name= ?";
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  /**
+   * Streams all songs as chunked JSON while they are read from the database cursor.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param fields         The fields of the songs to return.
+   */
+  private void streamAllSongs(RoutingContext routingContext, Fields fields) {
+    HttpServerResponse response = routingContext.response();
+    RowStreamWriter writer = new RowStreamWriter(response, "application/json", "{\"songs\":{", ",", "}}");
+    boolean names = fields.contains("name");
+    boolean genres = fields.contains("genre");
+    boolean timestamps = fields.contains("timestamp");
+    repository.streamAllSongs(fetchSize, fields, readsFromPrimary(routingContext.request().getHeader(ReadYourWrites.HEADER)), stream -> writer.write(stream, new RowStreamWriter.Encoder() {
+        @Override
+        public Buffer encode(Row row) {
+          JsonObject details = new JsonObject();
+          if (names) {
+            details.put("name", row.getString("name"));
+          }
+          if (genres) {
+            details.put("genre", row.getString("genre"));
+          }
+          if (timestamps) {
+            details.put("timestamp", String.valueOf(row.getValue("timestamp")));
+          }
+          return entry(String.valueOf(row.getInteger("id")), details);
+        }
 
-      preparedStatement.setString(1, username);
+        @Override
+        public Buffer finish() {
+          return null;
+        }
+      }))
+      .onFailure(e -> streamFailed(routingContext, "Fehler beim Streamen von Songs", e));
+  }
 
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        return resultSet.next();
-      }
+  /**
+   * Executes many API requests in one HTTP round trip. The body is a JSON array of requests with method, path and
+   * an optional body, or a JSON object with the array in requests and the flag atomic. The responses are returned
+   * in request order, see {@link BatchDispatcher}. An atomic batch whose commit failed is answered with 500, one whose
+   * transaction is rejected by the admission control with 503.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void batch(RoutingContext routingContext) {
+    List<BatchDispatcher.Request> requests;
+    boolean atomic;
+    try {
+      Object body = Json.decodeValue(routingContext.body().buffer());
+      JsonObject options = body instanceof JsonObject ? (JsonObject) body : new JsonObject().put("requests", body);
+      atomic = options.getBoolean("atomic", false);
+      requests = BatchDispatcher.parse(options.getJsonArray("requests"), atomic);
+    } catch (DecodeException | NullPointerException | ClassCastException e) {
+      response(routingContext, 400, new JsonObject().put("error", "Invalid JSON input."));
+      return;
+    } catch (IllegalArgumentException e) {
+      response(routingContext, 400, new JsonObject().put("error", e.getMessage()));
+      return;
+    }
+    batch.execute(requests, atomic, routingContext.request().getHeader(ReadYourWrites.HEADER))
+      .onSuccess(result -> response(routingContext, result.containsKey("error") ? 500 : 200, result))
+      .onFailure(e -> {
+        if (e instanceof OverloadedException) {
+          overloaded(routingContext, e);
+          return;
+        }
+        System.err.println("Fehler beim Ausführen eines Batches");
+        e.printStackTrace();
+        response(routingContext, 500, new JsonObject().put("error", e.getMessage()));
+      });
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Prüfen, ob User existiert");
-      e.printStackTrace();
-      return false;
+  /**
+   * Streams all rows of the table given in the URL path parameter, users, songs or assignments, as NDJSON or, with the
+   * query parameter format=csv or Accept: text/csv, as CSV. The rows go from the database cursor straight into
+   * the response chunks, so the memory used does not depend on the size of the table.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void export(RoutingContext routingContext) {
+    String table = routingContext.pathParam("table");
+    String formatParam = routingContext.queryParams().get("format");
+    ExportEncoder.Format format;
+    if (formatParam != null) {
+      try {
+        format = ExportEncoder.Format.valueOf(formatParam.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        response(routingContext, 400, new JsonObject().put("error", "Invalid format, expected ndjson or csv."));
+        return;
+      }
+    } else {
+      String accept = routingContext.request().getHeader(HttpHeaders.ACCEPT);
+      format = accept != null && accept.contains("text/csv") ? ExportEncoder.Format.CSV : ExportEncoder.Format.NDJSON;
+    }
+    HttpServerResponse response = routingContext.response()
+      .putHeader("Content-Disposition", "attachment; filename=\"" + table + "." + format.name().toLowerCase() + "\"");
+    RowStreamWriter writer = new RowStreamWriter(response, format.contentType(), "", "", "");
+    try {
+      repository.streamExport(table, fetchSize, readsFromPrimary(routingContext.request().getHeader(ReadYourWrites.HEADER)), stream -> writer.write(stream, new ExportEncoder(format)))
+        .onFailure(e -> streamFailed(routingContext, "Fehler beim Exportieren von " + table, e));
+    } catch (IllegalArgumentException e) {
+      response.headers().remove("Content-Disposition");
+      response(routingContext, 404, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Checks if a user with the given ID exists in the database.
+   * Unassigns a song from a user based on the user ID and song ID provided in the URL path parameters.
    *
-   * @param id The ID of the user to check.
-   * @return true if the user exists, false otherwise.
+   * @param exchange The request and its response, from the router or from a batch.
    */
-  private boolean userExists(int id) {
-    String sql = "SELECT name from users where id= ?";
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  private void unassignSong(Exchange exchange) {
+    try {
+      int userId = Integer.parseInt(exchange.pathParam("userId"));
+      int songId = Integer.parseInt(exchange.pathParam("songId"));
+      if (userId < 1 || songId < 1) {
+        throw new IllegalArgumentException("Invalid ID input.");
+      }
+      repository.deleteAssertion(exchange.transaction(), userId, songId)
+        .onSuccess(v -> {
+          publish(exchange, "song.unassigned", new JsonObject().put("userId", userId).put("songId", songId));
+          response(exchange, 200, new JsonObject().put("success", "Song was successfully removed with ID: " + songId + " from user with ID: " + userId));
+        })
+        .onFailure(e -> {
+          if (e instanceof UserNotExistsException || e instanceof SongNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else if (e instanceof AssertionNotExistsException) {
+            response(exchange, 409, new JsonObject().put("error", e.getMessage()));
+          } else if (e instanceof OverloadedException) {
+            overloaded(exchange, e);
+          } else {
+            System.err.println("Fehler beim Entfernen von Zuweisung aus Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    } catch (Exception e) {
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+    }
 
-      preparedStatement.setInt(1, id);
+  }
 
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        return resultSet.next();
+  /**
+   * Deletes a song from the database based on the ID provided in the URL path parameter.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void deleteSong(Exchange exchange) {
+    try {
+      int songId = Integer.parseInt(exchange.pathParam("id"));
+      if (songId < 0) {
+        throw new IllegalArgumentException("Invalid ID input.");
       }
-
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Prüfen, ob User existiert");
-      e.printStackTrace();
-      return false;
+      repository.deleteSong(exchange.transaction(), songId)
+        .onSuccess(v -> {
+          publish(exchange, "song.deleted", new JsonObject().put("songId", songId));
+          response(exchange, 200, new JsonObject().put("success", "Song with ID '" + songId + "' successfully deleted"));
+        })
+        .onFailure(e -> {
+          if (e instanceof SongNotExistsException) {
+            response(exchange, 404, new JsonObject().put("error", e.getMessage()));
+          } else {
+            System.err.println("Fehler beim Löschen von Song in Datenbank");
+            e.printStackTrace();
+            response(exchange, 500, new JsonObject().put("error", e.getMessage()));
+          }
+        });
+    } catch (IllegalArgumentException e) {
+      response(exchange, 400, new JsonObject().put("error", e.getMessage()));
+    } catch (Exception e) {
+      response(exchange, 500, new JsonObject().put("error", e.getMessage()));
     }
+
   }
 
   /**
-   * Fetches all users from the database along with their associated songs.
+   * Sends the changes made through the API as they happen, as Server-Sent Events or, when the request asks for an
+   * upgrade, as WebSocket text messages with one change each. The client resumes after a reconnect with the last
+   * sequence number it has received, in the header Last-Event-ID or the query parameter since.
    *
-   * @return A JsonObject containing all users and their songs.
+   * @param routingContext The routing context containing the HTTP request and response objects.
    */
-  private JsonObject fetchAllUsers() {
-    String sql = "SELECT u.id, u.name, u.email, s.id, s.name from users u left join user_songs us on us.user_id = u.id left join songs s on s.id = us.song_id";
-    JsonObject users = new JsonObject();
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  private void subscribeChanges(RoutingContext routingContext) {
+    HttpServerRequest request = routingContext.request();
+    Long since;
+    try {
+      String lastEventId = request.getHeader("Last-Event-ID");
+      String seq = lastEventId != null ? lastEventId : routingContext.queryParams().get("since");
+      since = seq == null ? null : Long.parseLong(seq.strip());
+      if (since != null && since < 0) {
+        throw new IllegalArgumentException("Invalid sequence number.");
+      }
+    } catch (IllegalArgumentException e) {
+      response(routingContext, 400, new JsonObject().put("error", "Invalid sequence number."));
+      return;
+    }
 
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        while (resultSet.next()) {
-          String id = String.valueOf(resultSet.getInt("u.id"));
-          JsonObject user;
-          if (users.containsKey(id)) {
-            user = users.getJsonObject(id);
-          } else {
-            user = new JsonObject();
-            user.put("name", resultSet.getString("u.name"));
-            user.put("email", resultSet.getString("u.email"));
-            user.put("songs", new JsonObject());
-            users.put(id, user);
-          }
+    if ("websocket".equalsIgnoreCase(request.getHeader(HttpHeaders.UPGRADE))) {
+      request.toWebSocket()
+        .onSuccess(webSocket -> {
+          Runnable cancel = changes.subscribe(since, webSocket, change -> webSocket.writeTextMessage(change.json()), webSocket::close);
+          webSocket.closeHandler(v -> cancel.run());
+        })
+        .onFailure(e -> {
+          System.err.println("Fehler beim Öffnen der WebSocket-Verbindung");
+          e.printStackTrace();
+        });
+      return;
+    }
 
-          int songId = resultSet.getInt("s.id");
-          String songName = resultSet.getString("s.name");
-          if (songName != null) {
-            user.getJsonObject("songs").put(String.valueOf(songId), new JsonObject().put("name", songName));
-          }
-        }
+    HttpServerResponse response = routingContext.response()
+      .setChunked(true)
+      .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream; charset=utf-8")
+      .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+      // not compressed, a compressor would hold back the events
+      .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+    response.write(": " + changes.sequence() + "\n\n");
+    Runnable cancel = changes.subscribe(since, response,
+      change -> response.write("id: " + change.seq() + "\nevent: " + change.type() + "\ndata: " + change.json() + "\n\n"),
+      response::end);
+    // comments keep proxies from closing an idle connection
+    long keepAlive = vertx.setPeriodic(CHANGES_KEEP_ALIVE, timer -> {
+      if (!response.ended() && !response.writeQueueFull()) {
+        response.write(":\n\n");
       }
+    });
+    response.closeHandler(v -> {
+      vertx.cancelTimer(keepAlive);
+      cancel.run();
+    });
+    response.endHandler(v -> {
+      vertx.cancelTimer(keepAlive);
+      cancel.run();
+    });
+  }
 
-      return users;
+  /**
+   * Answers a request rejected because too many requests or writes are waiting, asking the client to retry after a second.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   */
+  private void overloaded(RoutingContext routingContext, Throwable e) {
+    routingContext.response().putHeader(HttpHeaders.RETRY_AFTER, "1");
+    response(routingContext, 503, new JsonObject().put("error", e.getMessage()));
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim fetchen von Usern");
-      e.printStackTrace();
-      return null;
+  /**
+   * Like {@link #overloaded(RoutingContext, Throwable)}; a sub-request of a batch has no Retry-After header.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   */
+  private void overloaded(Exchange exchange, Throwable e) {
+    if (exchange.routingContext() != null) {
+      overloaded(exchange.routingContext(), e);
+    } else {
+      response(exchange, 503, new JsonObject().put("error", e.getMessage()));
     }
   }
 
   /**
-   * Checks if a song with the given name and genre exists in the database.
+   * Answers a request with the specified status code and JSON payload, see {@link #response(RoutingContext, Integer, JsonObject)}.
+   * A successful write of a sub-request of a batch is recorded for the read routing right away, so the later
+   * sub-requests of the client already read from the primary.
    *
-   * @param name  The name of the song to check.
-   * @param genre The genre of the song to check.
-   * @return true if the song exists, false otherwise.
+   * @param exchange   The request and its response, from the router or from a batch.
+   * @param statusCode The HTTP status code to set for the response.
+   * @param json       The JSON object containing the data to be sent in the response.
    */
-  private boolean songExists(String name, String genre) {
-    String sql = "SELECT name, genre from songs where name= ? AND genre= ?";
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  private void response(Exchange exchange, Integer statusCode, JsonObject json) {
+    if (exchange.routingContext() != null) {
+      response(exchange.routingContext(), statusCode, json);
+      return;
+    }
+    if (readYourWrites != null && statusCode < 400 && exchange.method() != HttpMethod.GET) {
+      readYourWrites.recordWrite(exchange.clientId());
+    }
+    exchange.end(statusCode, json);
+  }
 
-      preparedStatement.setString(1, name);
-      preparedStatement.setString(2, genre);
+  /**
+   * Sends a response with the specified status code and JSON payload.
+   * The JSON is compact unless the client asked for readable output with the query parameter pretty=true.
+   * Responses other than 2xx drop a previously set ETag, only successful representations can be revalidated.
+   * Nothing is sent if the response has already ended, e.g. with 503 after the deadline of the admission control.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param statusCode     The HTTP status code to set for the response.
+   * @param json           The JSON object containing the data to be sent in the response.
+   */
+  private void response(RoutingContext routingContext, Integer statusCode, JsonObject json) {
+    HttpServerResponse response = routingContext.response();
+    if (response.ended() || response.closed()) {
+      abandonedDone(routingContext);
+      return;
+    }
+    if (statusCode >= 300) {
+      response.headers().remove(HttpHeaders.ETAG);
+    }
+    response
+      .putHeader("content-type", "application/json")
+      .setStatusCode(statusCode)
+      .end(encode(json, "true".equals(routingContext.request().getParam("pretty"))));
+  }
 
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        return resultSet.next();
-      }
+  /**
+   * Encodes the payload of a response.
+   */
+  static String encode(JsonObject json, boolean pretty) {
+    return pretty ? json.encodePrettily() : json.encode();
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Prüfen, ob Song existiert");
-      e.printStackTrace();
+  /**
+   * Like {@link #notModified(Exchange, long)} for a response read from the database. A response read from a
+   * replica gets no ETag while the replica may still be behind the version, so a stale body is never cached under it.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   * @param version  The version of the tables the response is built from.
+   * @param primary  Whether the response is read from the primary.
+   * @return true if the request has been answered with 304.
+   */
+  private boolean notModified(Exchange exchange, long version, boolean primary) {
+    if (!primary && !readYourWrites.replicasCurrent()) {
       return false;
     }
+    return notModified(exchange, version);
   }
 
   /**
-   * Checks if a song with the given ID exists in the database.
+   * Checks if the reads of the request have to go to the primary database: always if there is no read pool,
+   * otherwise for a short time after a write of the client, identified by the header X-Client-Id.
    *
-   * @param id The ID of the song to check.
-   * @return true if the song exists, false otherwise.
+   * @param clientId The ID of the client in the header X-Client-Id, or null.
+   * @return true to read from the primary, false to read from the read pool.
    */
-  private boolean songExists(int id) {
-    String sql = "SELECT name from songs where id= ?";
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-
-      preparedStatement.setInt(1, id);
-
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        return resultSet.next();
-      }
+  private boolean readsFromPrimary(String clientId) {
+    return readYourWrites == null || readYourWrites.pinned(clientId);
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Prüfen, ob Song existiert");
-      e.printStackTrace();
+  /**
+   * Sets a strong ETag for the given version of the data behind the response. If the client already holds
+   * this version, as sent in If-None-Match, the request is answered with 304 without touching the database.
+   * A sub-request of a batch has no headers and is always answered in full.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   * @param version  The version of the tables the response is built from.
+   * @return true if the request has been answered with 304.
+   */
+  private boolean notModified(Exchange exchange, long version) {
+    RoutingContext routingContext = exchange.routingContext();
+    if (routingContext == null) {
       return false;
     }
+    String etag = "\"" + Long.toHexString(repository.epoch()) + "-" + version + "\"";
+    routingContext.response()
+      .putHeader(HttpHeaders.ETAG, etag)
+      .putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    String ifNoneMatch = routingContext.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // If-None-Match uses the weak comparison
+      if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+        routingContext.response().setStatusCode(304).end();
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
-   * Checks if an assertion between a song and a user exists in the database.
+   * Checks if the client asked for a streamed response with the query parameter stream=true.
+   * A sub-request of a batch is never streamed, its body becomes part of the batch response.
    *
-   * @param songId The ID of the song.
-   * @param userId The ID of the user.
-   * @return true if the assertion exists, false otherwise.
+   * @param exchange The request, from the router or from a batch.
+   * @return true if the response should be streamed, false otherwise.
    */
-  private boolean assertionExists(int songId, int userId) {
-    String sql = "SELECT song_id, user_id  from user_songs where song_id= ? AND user_id= ?";
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  private boolean isStreaming(Exchange exchange) {
+    return exchange.routingContext() != null && "true".equals(exchange.queryParam("stream"));
+  }
 
-      preparedStatement.setInt(1, songId);
-      preparedStatement.setInt(2, userId);
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        return resultSet.next();
-      }
+  /**
+   * Reads the fields to return from the query parameter fields, a comma separated list.
+   *
+   * @param exchange The request, from the router or from a batch.
+   * @param known    The fields of the resource.
+   * @return The selected fields, all if the parameter is missing.
+   * @throws IllegalArgumentException If a field is unknown.
+   */
+  private Fields fields(Exchange exchange, Set<String> known) {
+    return Fields.parse(exchange.queryParam("fields"), known);
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim Prüfen, ob Song existiert");
-      e.printStackTrace();
-      return false;
-    }
+  /**
+   * Checks if the client asked for a single page with the query parameter limit.
+   *
+   * @param exchange The request, from the router or from a batch.
+   * @return true if only one page should be returned, false otherwise.
+   */
+  private boolean isPaginated(Exchange exchange) {
+    return exchange.queryParam("limit") != null;
   }
 
   /**
-   * Fetches all songs from the database.
+   * Reads the page size from the query parameter limit.
    *
-   * @return A JsonObject containing all songs.
+   * @param exchange The request, from the router or from a batch.
+   * @return The page size, DEFAULT_PAGE_SIZE if the parameter is missing.
    */
-  private JsonObject fetchAllSongs() {
-    String sql = "SELECT * from songs";
-    JsonObject songs = new JsonObject();
+  private int pageLimit(Exchange exchange) {
+    return limit(exchange, DEFAULT_PAGE_SIZE, MAX_PAGE_SIZE);
+  }
+
+  /**
+   * Reads the query parameter limit.
+   *
+   * @param exchange     The request, from the router or from a batch.
+   * @param defaultLimit The limit if the parameter is missing.
+   * @param maxLimit     The largest allowed limit.
+   * @return The limit.
+   * @throws IllegalArgumentException If the limit is out of range.
+   */
+  private int limit(Exchange exchange, int defaultLimit, int maxLimit) {
+    String limit = exchange.queryParam("limit");
+    if (limit == null) {
+      return defaultLimit;
+    }
+    int value = Integer.parseInt(limit);
+    if (value < 1 || value > maxLimit) {
+      throw new IllegalArgumentException("Invalid limit, must be between 1 and " + maxLimit);
+    }
+    return value;
+  }
 
-    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+  /**
+   * Reads the ID to continue after, either from the opaque query parameter cursor or from the plain ID in after.
+   *
+   * @param exchange The request, from the router or from a batch.
+   * @return The ID to continue after, 0 for the first page.
+   */
+  private int pageAfter(Exchange exchange) {
+    String cursor = exchange.queryParam("cursor");
+    if (cursor != null) {
+      return decodeCursor(cursor);
+    }
+    String after = exchange.queryParam("after");
+    return after == null ? 0 : Integer.parseInt(after);
+  }
 
-      try (ResultSet resultSet = preparedStatement.executeQuery()) {
-        while (resultSet.next()) {
-          JsonObject details = new JsonObject();
-          details.put("name", resultSet.getString("name"));
-          details.put("genre", resultSet.getString("genre"));
-          details.put("timestamp", resultSet.getString("timestamp"));
-          songs.put(resultSet.getString("id"), details);
-        }
-      }
-      return songs;
+  /**
+   * Sends a page of a list, or 204 if the page is empty.
+   *
+   * @param exchange The request and its response, from the router or from a batch.
+   * @param key      The name of the list in the response.
+   * @param page     The page to send.
+   */
+  private void pageResponse(Exchange exchange, String key, Page page) {
+    if (page.items().isEmpty()) {
+      response(exchange, 204, new JsonObject().put("success", "No entries found."));
+    } else {
+      response(exchange, 200, new JsonObject().put(key, page.items()).put("next", encodeCursor(page.nextId())));
+    }
+  }
 
-    } catch (SQLException e) {
-      System.err.println("Fehler beim fetchen von Usern");
-      e.printStackTrace();
+  private static String encodeCursor(Integer id) {
+    if (id == null) {
       return null;
     }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(("id:" + id).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static int decodeCursor(String cursor) {
+    String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    if (!decoded.startsWith("id:")) {
+      throw new IllegalArgumentException("Invalid cursor");
+    }
+    return Integer.parseInt(decoded.substring(3));
   }
 
+  /**
+   * Encodes a single member of a JSON object, e.g. "1":{"name":"..."}.
+   *
+   * @param key   The key of the member.
+   * @param value The value of the member.
+   * @return The encoded member.
+   */
+  private static Buffer entry(String key, JsonObject value) {
+    return Buffer.buffer(Json.encode(key)).appendString(":").appendBuffer(value.toBuffer());
+  }
+
+  /**
+   * Handles a failed stream. An error response is only sent if nothing has been written yet,
+   * otherwise the response has already been reset by the {@link RowStreamWriter}.
+   *
+   * @param routingContext The routing context containing the HTTP request and response objects.
+   * @param message        The message to log.
+   * @param e              The cause of the failure.
+   */
+  private void streamFailed(RoutingContext routingContext, String message, Throwable e) {
+    System.err.println(message);
+    e.printStackTrace();
+    HttpServerResponse response = routingContext.response();
+    if (!response.headWritten() && !response.closed()) {
+      response(routingContext, 500, new JsonObject().put("error", e.getMessage()));
+    } else {
+      abandonedDone(routingContext);
+    }
+  }
 }
@@ -0,0 +1,227 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Request, query and connection pool metrics, rendered in the Prometheus text format.
+ * Recording only increments striped counters, so all instances can share one object
+ * and the metrics can stay enabled in production.
+ */
+public class Metrics {
+  /**
+   * Upper bounds of the histogram buckets in seconds.
+   */
+  private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+  private record RequestKey(String method, String route, int status) {
+  }
+
+  private final Map<RequestKey, Histogram> requests = new ConcurrentHashMap<>();
+  private final Map<String, Histogram> queries = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> queryErrors = new ConcurrentHashMap<>();
+  private final Histogram connectionWait = new Histogram();
+  private final LongAdder connectionFailures = new LongAdder();
+  private final AtomicInteger connectionsInUse = new AtomicInteger();
+  private final AtomicInteger connectionsWaiting = new AtomicInteger();
+  private volatile IntSupplier openConnections = () -> 0;
+  private volatile AdmissionControl admission;
+  private volatile ReadModel readModel;
+
+  /**
+   * Records a completed HTTP request.
+   *
+   * @param method The HTTP method.
+   * @param route  The path of the matched route, e.g. /users/:id, so the number of series stays bounded.
+   * @param status The status code of the response.
+   * @param nanos  The time from receiving the request to ending the response.
+   */
+  public void recordRequest(String method, String route, int status, long nanos) {
+    RequestKey key = new RequestKey(method, route, status);
+    Histogram histogram = requests.get(key);
+    if (histogram == null) {
+      histogram = requests.computeIfAbsent(key, k -> new Histogram());
+    }
+    histogram.record(nanos);
+  }
+
+  /**
+   * Records the execution of a statement.
+   *
+   * @param query     The name of the query, e.g. fetchAllUsers.
+   * @param nanos     The time from sending the statement to receiving the result.
+   * @param succeeded Whether the statement succeeded.
+   */
+  public void recordQuery(String query, long nanos, boolean succeeded) {
+    Histogram histogram = queries.get(query);
+    if (histogram == null) {
+      histogram = queries.computeIfAbsent(query, k -> new Histogram());
+    }
+    histogram.record(nanos);
+    if (!succeeded) {
+      queryErrors.computeIfAbsent(query, k -> new LongAdder()).increment();
+    }
+  }
+
+  /**
+   * Sets the source of the number of connections currently open in the pool.
+   */
+  public void monitorPool(IntSupplier openConnections) {
+    this.openConnections = openConnections;
+  }
+
+  /**
+   * Sets the admission control whose limit, admitted, waiting and rejected requests are reported.
+   */
+  public void monitorAdmission(AdmissionControl admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Sets the read model whose hits, misses, size and age are reported.
+   */
+  public void monitorReadModel(ReadModel readModel) {
+    this.readModel = readModel;
+  }
+
+  public void connectionRequested() {
+    connectionsWaiting.incrementAndGet();
+  }
+
+  /**
+   * @param nanos     The time waited for the connection.
+   * @param succeeded Whether a connection was acquired, or the wait failed e.g. with a timeout.
+   */
+  public void connectionAcquired(long nanos, boolean succeeded) {
+    connectionsWaiting.decrementAndGet();
+    connectionWait.record(nanos);
+    if (succeeded) {
+      connectionsInUse.incrementAndGet();
+    } else {
+      connectionFailures.increment();
+    }
+  }
+
+  public void connectionReleased() {
+    connectionsInUse.decrementAndGet();
+  }
+
+  /**
+   * @return All metrics in the Prometheus text exposition format.
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    header(out, "http_server_requests_seconds", "histogram", "Latency of the HTTP requests by route and status code.");
+    Map<String, Histogram> sortedRequests = new TreeMap<>();
+    requests.forEach((key, histogram) -> sortedRequests.put(
+      "method=\"" + escape(key.method()) + "\",route=\"" + escape(key.route()) + "\",status=\"" + key.status() + "\"", histogram));
+    sortedRequests.forEach((labels, histogram) -> histogram.write(out, "http_server_requests_seconds", labels));
+
+    header(out, "db_query_seconds", "histogram", "Execution time of the SQL statements by query.");
+    new TreeMap<>(queries).forEach((query, histogram) -> histogram.write(out, "db_query_seconds", "query=\"" + escape(query) + "\""));
+    header(out, "db_query_errors_total", "counter", "Failed SQL statements by query.");
+    new TreeMap<>(queryErrors).forEach((query, errors) ->
+      out.append("db_query_errors_total{query=\"").append(escape(query)).append("\"} ").append(errors.sum()).append('\n'));
+
+    int inUse = connectionsInUse.get();
+    header(out, "db_pool_connections_in_use", "gauge", "Connections of the pool currently borrowed.");
+    out.append("db_pool_connections_in_use ").append(inUse).append('\n');
+    header(out, "db_pool_connections_idle", "gauge", "Connections of the pool currently open and not borrowed.");
+    out.append("db_pool_connections_idle ").append(Math.max(0, openConnections.getAsInt() - inUse)).append('\n');
+    header(out, "db_pool_requests_waiting", "gauge", "Requests currently waiting for a connection.");
+    out.append("db_pool_requests_waiting ").append(connectionsWaiting.get()).append('\n');
+    header(out, "db_pool_wait_seconds", "histogram", "Time waited for a connection of the pool.");
+    connectionWait.write(out, "db_pool_wait_seconds", "");
+    header(out, "db_pool_acquire_failures_total", "counter", "Requests for a connection that failed, e.g. with a timeout.");
+    out.append("db_pool_acquire_failures_total ").append(connectionFailures.sum()).append('\n');
+
+    AdmissionControl admission = this.admission;
+    if (admission != null) {
+      header(out, "admission_limit", "gauge", "Current limit of the requests working on the database.");
+      out.append("admission_limit ").append(admission.limit()).append('\n');
+      header(out, "admission_in_flight", "gauge", "Admitted requests currently working on the database.");
+      out.append("admission_in_flight ").append(admission.inFlight()).append('\n');
+      header(out, "admission_queued", "gauge", "Requests currently waiting to be admitted.");
+      out.append("admission_queued ").append(admission.queued()).append('\n');
+      header(out, "admission_rejected_total", "counter", "Requests rejected because the wait queue was full.");
+      out.append("admission_rejected_total ").append(admission.rejected()).append('\n');
+    }
+
+    ReadModel readModel = this.readModel;
+    if (readModel != null) {
+      header(out, "readmodel_hits_total", "counter", "Reads of users answered from the read model.");
+      out.append("readmodel_hits_total ").append(readModel.hits()).append('\n');
+      header(out, "readmodel_misses_total", "counter", "Reads of users that went to the database because a library was not in memory.");
+      out.append("readmodel_misses_total ").append(readModel.misses()).append('\n');
+      header(out, "readmodel_evictions_total", "counter", "Libraries evicted to stay within the bound.");
+      out.append("readmodel_evictions_total ").append(readModel.evictions()).append('\n');
+      header(out, "readmodel_libraries", "gauge", "Users whose library is in memory.");
+      out.append("readmodel_libraries ").append(readModel.libraries()).append('\n');
+      header(out, "readmodel_memory_bytes", "gauge", "Estimated memory used by the read model.");
+      out.append("readmodel_memory_bytes ").append(readModel.memoryBytes()).append('\n');
+      long loadedAt = readModel.loadedAt();
+      header(out, "readmodel_staleness_seconds", "gauge", "Time since the read model was last reloaded, writes of other processes may be missing for as long.");
+      out.append("readmodel_staleness_seconds ")
+        .append(loadedAt == 0 ? 0 : (System.currentTimeMillis() - loadedAt) / 1000.0).append('\n');
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String escape(String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * Histogram with fixed buckets. The counts are kept per bucket and summed up when scraped.
+   */
+  private static class Histogram {
+    private static final long[] BOUNDS = new long[BUCKETS.length];
+
+    static {
+      for (int i = 0; i < BUCKETS.length; i++) {
+        BOUNDS[i] = (long) (BUCKETS[i] * 1e9);
+      }
+    }
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      int bucket = 0;
+      while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+        bucket++;
+      }
+      counts[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    void write(StringBuilder out, String name, String labels) {
+      String separator = labels.isEmpty() ? "" : ",";
+      long cumulative = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulative += counts[i].sum();
+        out.append(name).append("_bucket{").append(labels).append(separator)
+          .append("le=\"").append(i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf").append("\"} ")
+          .append(cumulative).append('\n');
+      }
+      String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+      out.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+      out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+  }
+}
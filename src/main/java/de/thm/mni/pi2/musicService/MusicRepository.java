@@ -0,0 +1,1486 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.text.Normalizer;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Data-access layer for users, songs and their assignments.
+ * Every query runs on a bounded connection {@link Pool} and completes asynchronously,
+ * so the HTTP handlers never block the event loop.
+ * Every write is a single statement: uniqueness and references are enforced by the database constraints,
+ * whose violations are reported as the matching exceptions of this package.
+ * The writes of a {@link Transaction} share one connection; their effects on the in-memory structures are applied
+ * only once it is committed.
+ * If an {@link ExistenceIndex} is given, the existence checks are answered from memory,
+ * writes that are bound to fail are rejected without a round trip and the write methods keep the index in sync.
+ * Song search and recommendations are answered from in-memory indexes, kept up to date by the same write methods.
+ * One repository is shared by all HTTP instances of the {@link MainVerticle}, so its in-memory structures are read
+ * and written from several event loops at once; each of them is guarded by its own monitor.
+ * The execution time of every statement and the state of the pool are recorded in the {@link Metrics}.
+ * With {@link #enableGroupCommit(Vertx, int, long, int)}, single assignments and their removals share transactions.
+ * With {@link #enableReadModel(int)}, the lists and details of the users are answered from a {@link ReadModel}.
+ * The writes run on the pool of the primary database. The read methods take a flag whether to read from the primary
+ * as well or from the read pool, e.g. of a replica; without a read pool both are the same.
+ */
+public class MusicRepository {
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}");
+  private static final Pattern TRAILING_SPACES = Pattern.compile(" +$");
+
+  /**
+   * One statement, run on its own or as part of a group commit.
+   */
+  private record Statement(String query, String sql, Tuple params) {
+  }
+
+  /**
+   * A transaction spanning several writes on one connection of the primary, e.g. the writes of an atomic batch,
+   * started with {@link #begin()} and ended with {@link #commit(Transaction)} or {@link #rollback(Transaction)}.
+   * Its writes are checked by the database instead of the existence index and bypass the group commit, as both only
+   * know committed rows. Their updates of the in-memory structures and versions wait for the commit, so no other
+   * request sees a write before the database does, and are dropped with a rollback.
+   */
+  public static final class Transaction {
+    private final SqlConnection connection;
+    private final io.vertx.sqlclient.Transaction transaction;
+    private final List<Runnable> committed = new ArrayList<>();
+
+    private Transaction(SqlConnection connection, io.vertx.sqlclient.Transaction transaction) {
+      this.connection = connection;
+      this.transaction = transaction;
+    }
+
+    /**
+     * Runs the action once the transaction has been committed, after the actions added before it.
+     * It is not run if the transaction is rolled back.
+     */
+    public void onCommit(Runnable action) {
+      committed.add(action);
+    }
+  }
+
+  private final Pool pool;
+  private final Pool readPool;
+  private final ExistenceIndex index;
+  private final Metrics metrics;
+  private final SongSearchIndex search = new SongSearchIndex();
+  private final CoOccurrenceIndex cooccurrence = new CoOccurrenceIndex();
+  private final TrendingCounter trending = new TrendingCounter();
+  private final GenreStats genreStats = new GenreStats();
+  private final AtomicLong roundTrips = new AtomicLong();
+  private final long epoch = System.currentTimeMillis();
+  private final AtomicLong usersVersion = new AtomicLong();
+  private final AtomicLong songsVersion = new AtomicLong();
+  private final AtomicLong assignmentsVersion = new AtomicLong();
+  private GroupCommit<Statement, RowSet<Row>> assignmentCommits;
+  private ReadModel readModel;
+
+  /**
+   * Creates a repository on a single database without a replica.
+   *
+   * @param pool    The connection pool to run the queries on.
+   * @param index   The index for the existence checks, or null to check against the database.
+   * @param metrics The metrics to record the statements and the state of the pool in.
+   */
+  public MusicRepository(Pool pool, ExistenceIndex index, Metrics metrics) {
+    this(pool, pool, index, metrics);
+  }
+
+  /**
+   * @param pool     The connection pool of the primary database, for the writes and the reads from the primary.
+   * @param readPool The connection pool for the other reads, e.g. of a replica.
+   * @param index    The index for the existence checks, or null to check against the database.
+   * @param metrics  The metrics to record the statements and the state of the pools in.
+   */
+  public MusicRepository(Pool pool, Pool readPool, ExistenceIndex index, Metrics metrics) {
+    this.pool = pool;
+    this.readPool = readPool;
+    this.index = index;
+    this.metrics = metrics;
+    metrics.monitorPool(readPool == pool ? pool::size : () -> pool.size() + readPool.size());
+  }
+
+  /**
+   * Runs the single assignments and removals of assignments in group commits instead of committing each on its own.
+   * Must be called before the repository is shared with other verticles.
+   *
+   * @param batchSize The maximum number of writes per transaction.
+   * @param maxDelay  The maximum time in milliseconds a write waits for its batch to fill up.
+   * @param queueSize The maximum number of waiting writes, further writes fail with an {@link OverloadedException}.
+   */
+  public void enableGroupCommit(Vertx vertx, int batchSize, long maxDelay, int queueSize) {
+    assignmentCommits = new GroupCommit<>(vertx, batchSize, maxDelay, queueSize, this::executeBatch);
+  }
+
+  /**
+   * Answers the lists and details of the users from an in-memory read model, loaded by {@link #init()} and kept up to
+   * date by the write methods. Must be called before {@link #init()}.
+   *
+   * @param maxLibrarySongs The maximum number of song IDs kept in the libraries of the users.
+   */
+  public void enableReadModel(int maxLibrarySongs) {
+    readModel = new ReadModel(maxLibrarySongs);
+    metrics.monitorReadModel(readModel);
+  }
+
+  /**
+   * Loads the search index, the co-occurrence of the songs, the counts of the recent assignments, the genre counters
+   * and, if there are, the existence index and the read model from the database. The co-occurrence is computed on the common fork-join pool, off the event loop.
+   *
+   * @return A future completed once the repository is ready to use.
+   */
+  public Future<Void> init() {
+    search.clear();
+    cooccurrence.clear();
+    trending.clear();
+    if (index != null) {
+      index.clear();
+    }
+    return execute("loadSongs", "SELECT id, name, genre from songs", Tuple.tuple())
+      .compose(songs -> {
+        for (Row row : songs) {
+          search.addSong(row.getInteger("id"), row.getString("name"), row.getString("genre"));
+          if (index != null) {
+            index.addSong(row.getInteger("id"), row.getString("name"), row.getString("genre"));
+          }
+        }
+        if (index == null) {
+          return Future.succeededFuture();
+        }
+        return execute("loadUsers", "SELECT id, name from users", Tuple.tuple())
+          .<Void>map(users -> {
+            for (Row row : users) {
+              index.addUser(row.getInteger("id"), row.getString("name"));
+            }
+            return null;
+          });
+      })
+      .compose(v -> execute("loadAssignments", "SELECT user_id, song_id, timestamp from user_songs", Tuple.tuple()))
+      .compose(assignments -> {
+        long[] pairs = new long[assignments.size()];
+        int size = 0;
+        for (Row row : assignments) {
+          int userId = row.getInteger("user_id");
+          int songId = row.getInteger("song_id");
+          pairs[size++] = LongHashSet.pack(userId, songId);
+          LocalDateTime timestamp = row.getLocalDateTime("timestamp");
+          if (timestamp != null) {
+            trending.record(songId, timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+          }
+          if (index != null) {
+            index.addAssignment(userId, songId);
+          }
+        }
+        int count = size;
+        CompletableFuture<Void> rebuilt = CompletableFuture.runAsync(() -> cooccurrence.rebuild(pairs, count), ForkJoinPool.commonPool());
+        Context context = Vertx.currentContext();
+        return context == null ? Future.fromCompletionStage(rebuilt) : Future.fromCompletionStage(rebuilt, context);
+      })
+      .compose(v -> reconcileGenres())
+      .compose(v -> readModel == null ? Future.succeededFuture() : refreshReadModel())
+      .mapEmpty();
+  }
+
+  /**
+   * Reloads the read model from the primary database, picking up the writes of other processes.
+   * Skipped if a write is applied while the rows are read, the next run catches up.
+   *
+   * @return A future completed with whether the model was replaced.
+   */
+  public Future<Boolean> refreshReadModel() {
+    long modifications = readModel.modifications();
+    IntObjectHashMap<ReadModel.User> users = new IntObjectHashMap<>();
+    IntObjectHashMap<ReadModel.Song> songs = new IntObjectHashMap<>();
+    return execute("loadReadModelUsers", "SELECT id, name, email from users", Tuple.tuple())
+      .compose(rows -> {
+        for (Row row : rows) {
+          users.put(row.getInteger("id"), new ReadModel.User(row.getString("name"), row.getString("email")));
+        }
+        return execute("loadReadModelSongs", "SELECT id, name, genre from songs", Tuple.tuple());
+      })
+      .compose(rows -> {
+        for (Row row : rows) {
+          songs.put(row.getInteger("id"), new ReadModel.Song(row.getString("name"), row.getString("genre")));
+        }
+        return execute("loadReadModelAssignments", "SELECT user_id, song_id from user_songs order by user_id, song_id", Tuple.tuple());
+      })
+      .map(rows -> {
+        long[] pairs = new long[rows.size()];
+        int size = 0;
+        for (Row row : rows) {
+          pairs[size++] = LongHashSet.pack(row.getInteger("user_id"), row.getInteger("song_id"));
+        }
+        return readModel.reload(modifications, users, songs, pairs, size);
+      });
+  }
+
+  /**
+   * Reads the library of a user from the primary database after a miss of the read model and caches it there.
+   *
+   * @return A future completed with the sorted IDs of the songs of the user.
+   */
+  private Future<int[]> loadLibrary(int userId) {
+    long modifications = readModel.modifications();
+    return execute("loadLibrary", "SELECT song_id from user_songs where user_id = ? order by song_id", Tuple.of(userId))
+      .map(rows -> {
+        int[] songIds = new int[rows.size()];
+        int size = 0;
+        for (Row row : rows) {
+          songIds[size++] = row.getInteger("song_id");
+        }
+        readModel.putLibrary(modifications, userId, songIds);
+        return songIds;
+      });
+  }
+
+  /**
+   * Replaces the genre counters with counts from the database, correcting any drift.
+   * Skipped if a write is counted while the counts are read, the next run catches up.
+   *
+   * @return A future completed with whether the counters were replaced.
+   */
+  public Future<Boolean> reconcileGenres() {
+    long modifications = genreStats.modifications();
+    String sql = "SELECT s.id, s.genre, count(us.user_id) AS assignments from songs s "
+      + "left join user_songs us on us.song_id = s.id group by s.id, s.genre";
+    return execute("reconcileGenres", sql, Tuple.tuple())
+      .map(rows -> {
+        List<GenreStats.SongCount> counts = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+          counts.add(new GenreStats.SongCount(row.getInteger("id"), row.getString("genre"), row.getInteger("assignments")));
+        }
+        return genreStats.reconcile(modifications, counts);
+      });
+  }
+
+  /**
+   * @return The genres with their number of songs and library assignments, from the in-memory counters.
+   */
+  public List<GenreStats.Genre> genres() {
+    return genreStats.genres();
+  }
+
+  /**
+   * Searches the songs by name and genre in the in-memory search index.
+   *
+   * @param query The search query, its last term is matched as a prefix.
+   * @param limit The maximum number of results.
+   * @return The best matching songs, best first.
+   */
+  public List<SongSearchIndex.Song> searchSongs(String query, int limit) {
+    return search.search(query, limit);
+  }
+
+  /**
+   * Finds the songs most often assigned to the same users as the given song, from the in-memory co-occurrence.
+   *
+   * @param songId The ID of the song.
+   * @param limit  The maximum number of songs.
+   * @return A future completed with the related songs, each with the number of users having both, most frequent first,
+   * or failed with a {@link SongNotExistsException}.
+   */
+  public Future<List<JsonObject>> relatedSongs(int songId, int limit) {
+    if (search.song(songId) == null) {
+      return Future.failedFuture(new SongNotExistsException("ID " + songId + " does not exist"));
+    }
+    return Future.succeededFuture(describe(cooccurrence.related(songId, limit), "users"));
+  }
+
+  /**
+   * Recommends songs to a user from the songs related to those in the library, leaving out the songs the user has.
+   *
+   * @param userId The ID of the user.
+   * @param limit  The maximum number of songs.
+   * @return A future completed with the recommended songs, each with its score, best first,
+   * or failed with a {@link UserNotExistsException}.
+   */
+  public Future<List<JsonObject>> recommendSongs(int userId, int limit) {
+    // from the primary, like the writes the in-memory index has been built from
+    Future<Boolean> exists = cooccurrence.hasLibrary(userId) ? Future.succeededFuture(true) : userExists(userId, true);
+    return exists.map(found -> {
+      if (!found) {
+        throw new UserNotExistsException(userId);
+      }
+      return describe(cooccurrence.recommendations(userId, limit), "score");
+    });
+  }
+
+  /**
+   * Finds the songs assigned most often in a recent time window, from the in-memory counter of the assignments.
+   *
+   * @param window The name of the window, one of {@link TrendingCounter#WINDOWS}.
+   * @param limit  The maximum number of songs.
+   * @return The songs with their estimated number of assignments in the window, most often first.
+   * @throws IllegalArgumentException If the window is not supported.
+   */
+  public List<JsonObject> trendingSongs(String window, int limit) {
+    List<JsonObject> songs = new ArrayList<>();
+    for (TrendingCounter.Count count : trending.top(window, limit)) {
+      describe(songs, count.songId(), "assignments", count.count());
+    }
+    return songs;
+  }
+
+  /**
+   * Adds the name and genre of the songs from the search index.
+   */
+  private List<JsonObject> describe(List<CoOccurrenceIndex.Neighbour> neighbours, String countField) {
+    List<JsonObject> songs = new ArrayList<>(neighbours.size());
+    for (CoOccurrenceIndex.Neighbour neighbour : neighbours) {
+      describe(songs, neighbour.songId(), countField, neighbour.count());
+    }
+    return songs;
+  }
+
+  private void describe(List<JsonObject> songs, int songId, String countField, long count) {
+    SongSearchIndex.Song song = search.song(songId);
+    if (song != null) {
+      songs.add(new JsonObject()
+        .put("id", song.id())
+        .put("name", song.name())
+        .put("genre", song.genre())
+        .put(countField, count));
+    }
+  }
+
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * @return The time this repository was created, distinguishing its versions from those before a restart.
+   */
+  public long epoch() {
+    return epoch;
+  }
+
+  /**
+   * The versions are increased after every successful write through this repository,
+   * so they only cover writes made by this process.
+   *
+   * @return The version of the songs, increased by every write to the songs table.
+   */
+  public long songsVersion() {
+    return songsVersion.get();
+  }
+
+  /**
+   * @return The version of the users with their songs, increased by every write to the users, songs or user_songs table.
+   */
+  public long usersVersion() {
+    return usersVersion.get() + songsVersion.get() + assignmentsVersion.get();
+  }
+
+  /**
+   * @return The number of statements sent to the database so far.
+   */
+  public long roundTrips() {
+    return roundTrips.get();
+  }
+
+  /**
+   * Starts a transaction on a connection of the primary, which is held until the transaction ends.
+   *
+   * @return A future completed with the transaction to pass to the write methods.
+   */
+  public Future<Transaction> begin() {
+    long requested = System.nanoTime();
+    metrics.connectionRequested();
+    return pool.getConnection()
+      .onComplete(result -> metrics.connectionAcquired(System.nanoTime() - requested, result.succeeded()))
+      .compose(connection -> connection.begin()
+        .map(transaction -> new Transaction(connection, transaction))
+        .onFailure(e -> release(connection)));
+  }
+
+  /**
+   * Commits a transaction and then applies its writes to the in-memory structures.
+   *
+   * @return A future completed once the transaction has been committed, or failed if the database rolled it back.
+   */
+  public Future<Void> commit(Transaction transaction) {
+    return transaction.transaction.commit()
+      .onSuccess(v -> transaction.committed.forEach(Runnable::run))
+      .eventually(() -> release(transaction.connection));
+  }
+
+  /**
+   * Rolls back a transaction. None of its writes reach the database or the in-memory structures.
+   *
+   * @return A future completed once the transaction has been rolled back.
+   */
+  public Future<Void> rollback(Transaction transaction) {
+    return transaction.transaction.rollback()
+      .eventually(() -> release(transaction.connection));
+  }
+
+  /**
+   * Inserts a new user.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param username    The name of the user.
+   * @param email       The email address of the user.
+   * @return A future completed with the generated ID of the user,
+   * or failed with a {@link UserAlreadyExistsException} if the name is taken.
+   */
+  public Future<Long> insertUser(Transaction transaction, String username, String email) {
+    if (transaction == null && index != null && index.userExists(username)) {
+      return Future.failedFuture(new UserAlreadyExistsException(username));
+    }
+    String sql = "INSERT INTO users (name, email) VALUES (?, ?)";
+    return execute(transaction, "insertUser", sql, Tuple.of(username, email))
+      .recover(e -> Future.failedFuture(isDuplicateKey(e) ? new UserAlreadyExistsException(username) : e))
+      .map(this::generatedId)
+      .onSuccess(id -> applied(transaction, () -> {
+        usersVersion.incrementAndGet();
+        if (index != null) {
+          index.addUser(id.intValue(), username);
+        }
+        if (readModel != null) {
+          readModel.addUser(id.intValue(), username, email);
+        }
+      }));
+  }
+
+  /**
+   * Deletes the user with the given ID.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param id          The ID of the user to delete.
+   * @return A future completed once the user has been deleted,
+   * or failed with a {@link UserNotExistsException} if there is no such user.
+   */
+  public Future<Void> deleteUser(Transaction transaction, int id) {
+    if (transaction == null && index != null && !index.userExists(id)) {
+      return Future.failedFuture(new UserNotExistsException(id));
+    }
+    String sql = "DELETE FROM users WHERE id = ?";
+    return execute(transaction, "deleteUser", sql, Tuple.of(id))
+      .<Void>map(rows -> {
+        if (rows.rowCount() == 0) {
+          throw new UserNotExistsException(id);
+        }
+        return null;
+      })
+      .onSuccess(v -> applied(transaction, () -> {
+        usersVersion.incrementAndGet();
+        assignmentsVersion.incrementAndGet();
+        if (index != null) {
+          index.removeUser(id);
+        }
+        if (readModel != null) {
+          readModel.removeUser(id);
+        }
+        for (int songId : cooccurrence.removeUser(id)) {
+          genreStats.removeAssignment(songId);
+        }
+      }));
+  }
+
+  /**
+   * Fetches a single user along with the songs assigned to the user, in one query.
+   * With a read model, the user is answered from memory; a library that is not in memory is read from the primary
+   * and cached.
+   *
+   * @param id      The ID of the user.
+   * @param fields  The fields of the user to read; without songs, the songs are not joined.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with the user as JsonObject, or failed with a {@link UserNotExistsException}.
+   */
+  public Future<JsonObject> fetchUser(int id, Fields fields, boolean primary) {
+    if (readModel != null) {
+      if (!readModel.containsUser(id)) {
+        return Future.failedFuture(new UserNotExistsException(id));
+      }
+      JsonObject user = readModel.user(id, fields);
+      if (user != null) {
+        return Future.succeededFuture(user);
+      }
+      return loadLibrary(id).map(songIds -> {
+        JsonObject loaded = readModel.user(id, songIds, fields);
+        if (loaded == null) {
+          throw new UserNotExistsException(id);
+        }
+        return loaded;
+      });
+    }
+    String sql = userColumns(fields) + " from users u" + userSongJoins(fields) + " where u.id = ?"
+      + (fields.contains("songs") ? " order by us.song_id" : "");
+    return read(primary, "fetchUser", sql, Tuple.of(id))
+      .map(rows -> {
+        if (rows.size() == 0) {
+          throw new UserNotExistsException(id);
+        }
+        JsonObject user = assembleUsers(rows, fields).getJsonObject(String.valueOf(id));
+        return new JsonObject().put("id", id).mergeIn(user);
+      });
+  }
+
+  /**
+   * Fetches all users from the database along with their associated songs.
+   * With a read model holding all libraries, the users are answered from memory.
+   *
+   * @param fields  The fields of the users to read; without songs, the songs are not joined.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with a JsonObject containing all users and their songs.
+   */
+  public Future<JsonObject> fetchAllUsers(Fields fields, boolean primary) {
+    JsonObject users = readModel == null ? null : readModel.users(fields);
+    if (users != null) {
+      return Future.succeededFuture(users);
+    }
+    String sql = userColumns(fields) + " from users u" + userSongJoins(fields);
+    return read(primary, "fetchAllUsers", sql, Tuple.tuple())
+      .map(rows -> assembleUsers(rows, fields));
+  }
+
+  /**
+   * Fetches one page of users along with their songs, using keyset pagination on the user ID.
+   * With a read model holding the libraries of the page, the page is answered from memory.
+   *
+   * @param afterId Only users with a greater ID are returned.
+   * @param limit   The maximum number of users on the page.
+   * @param fields  The fields of the users to read; without songs, the songs are not joined.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with the page of users.
+   */
+  public Future<Page> fetchUsersPage(int afterId, int limit, Fields fields, boolean primary) {
+    JsonObject users = readModel == null ? null : readModel.users(afterId, limit + 1, fields);
+    if (users != null) {
+      return Future.succeededFuture(page(users, limit));
+    }
+    String sql = fields.contains("songs")
+      ? userColumns(fields) + " from (SELECT id, name, email from users where id > ? order by id limit ?) u"
+      + userSongJoins(fields) + " order by u.id"
+      : userColumns(fields) + " from users u where u.id > ? order by u.id limit ?";
+    return read(primary, "fetchUsersPage", sql, Tuple.of(afterId, limit + 1))
+      .map(rows -> page(assembleUsers(rows, fields), limit));
+  }
+
+  /**
+   * Streams all users joined with their songs, ordered by user ID so the rows of one user arrive together.
+   * The columns are the same as in {@link #fetchAllUsers(Fields, boolean)}.
+   *
+   * @param fetchSize The number of rows fetched from the cursor at once.
+   * @param fields    The fields of the users to read; without songs, the songs are not joined.
+   * @param primary   Whether to read from the primary instead of the read pool.
+   * @param consumer  Reads the stream and completes the returned future once it is done.
+   * @return A future completed once the consumer is done and the connection has been released.
+   */
+  public Future<Void> streamAllUsers(int fetchSize, Fields fields, boolean primary, Function<RowStream<Row>, Future<Void>> consumer) {
+    String sql = userColumns(fields) + " from users u" + userSongJoins(fields) + " order by u.id";
+    return stream(primary, "streamAllUsers", sql, fetchSize, consumer);
+  }
+
+  /**
+   * Inserts a new song.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param name        The name of the song.
+   * @param genre       The genre of the song.
+   * @return A future completed with the generated ID of the song,
+   * or failed with a {@link SongAlreadyExistsException} if there is a song with the same name and genre.
+   */
+  public Future<Long> insertSong(Transaction transaction, String name, String genre) {
+    if (transaction == null && index != null && index.songExists(name, genre)) {
+      return Future.failedFuture(new SongAlreadyExistsException(name, genre));
+    }
+    String sql = "INSERT INTO songs (name, genre) VALUES (?, ?)";
+    return execute(transaction, "insertSong", sql, Tuple.of(name, genre))
+      .recover(e -> Future.failedFuture(isDuplicateKey(e) ? new SongAlreadyExistsException(name, genre) : e))
+      .map(this::generatedId)
+      .onSuccess(id -> applied(transaction, () -> {
+        songsVersion.incrementAndGet();
+        if (index != null) {
+          index.addSong(id.intValue(), name, genre);
+        }
+        search.addSong(id.intValue(), name, genre);
+        genreStats.addSong(id.intValue(), genre);
+        if (readModel != null) {
+          readModel.addSong(id.intValue(), name, genre);
+        }
+      }));
+  }
+
+  /**
+   * Inserts a batch of songs in one transaction. Songs that already exist, also earlier in the same batch,
+   * are reported as duplicates instead of failing the batch.
+   * Costs three round trips per batch: looking up the existing songs, one multi-row insert and reading back the new IDs.
+   *
+   * @param songs The songs to insert, each with name and genre.
+   * @return A future completed with one result per song in the same order, each with a status of
+   * created, duplicate or invalid and the ID of the song if there is one.
+   */
+  public Future<List<JsonObject>> insertSongs(List<JsonObject> songs) {
+    return withTransaction(connection -> insertSongs(connection, songs))
+      // a concurrent insert of the same song slipped in between lookup and insert, the retry sees it
+      .recover(e -> isDuplicateKey(e) ? withTransaction(connection -> insertSongs(connection, songs)) : Future.failedFuture(e))
+      .onSuccess(results -> {
+        boolean created = false;
+        for (JsonObject result : results) {
+          if ("created".equals(result.getString("status"))) {
+            created = true;
+            if (index != null) {
+              index.addSong(result.getInteger("id"), result.getString("name"), result.getString("genre"));
+            }
+            search.addSong(result.getInteger("id"), result.getString("name"), result.getString("genre"));
+            genreStats.addSong(result.getInteger("id"), result.getString("genre"));
+            if (readModel != null) {
+              readModel.addSong(result.getInteger("id"), result.getString("name"), result.getString("genre"));
+            }
+          }
+        }
+        // duplicates and invalid songs leave the table unchanged, the ETags stay valid
+        if (created) {
+          songsVersion.incrementAndGet();
+        }
+      });
+  }
+
+  private Future<List<JsonObject>> insertSongs(SqlConnection connection, List<JsonObject> songs) {
+    List<JsonObject> results = new ArrayList<>(songs.size());
+    Map<String, List<JsonObject>> pending = new LinkedHashMap<>();
+    for (JsonObject song : songs) {
+      String name = song.getString("name");
+      String genre = song.getString("genre");
+      JsonObject result = new JsonObject().put("name", name).put("genre", genre);
+      results.add(result);
+      if (name == null || name.isEmpty() || genre == null || genre.isEmpty()) {
+        result.put("status", "invalid").put("error", "Invalid JSON input.");
+      } else {
+        pending.computeIfAbsent(songKey(name, genre), key -> new ArrayList<>()).add(result);
+      }
+    }
+    if (pending.isEmpty()) {
+      return Future.succeededFuture(results);
+    }
+    return selectSongIds(connection, pending)
+      .compose(existing -> {
+        for (Map.Entry<String, Integer> entry : existing.entrySet()) {
+          for (JsonObject result : pending.remove(entry.getKey())) {
+            result.put("status", "duplicate").put("id", entry.getValue());
+          }
+        }
+        if (pending.isEmpty()) {
+          return Future.succeededFuture(results);
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO songs (name, genre) VALUES ");
+        Tuple params = Tuple.tuple();
+        for (List<JsonObject> duplicates : pending.values()) {
+          JsonObject first = duplicates.get(0);
+          sql.append(params.size() == 0 ? "(?, ?)" : ", (?, ?)");
+          params.addString(first.getString("name")).addString(first.getString("genre"));
+        }
+        return execute(connection, "insertSongs", sql.toString(), params)
+          .compose(rows -> selectSongIds(connection, pending))
+          .map(created -> {
+            for (Map.Entry<String, Integer> entry : created.entrySet()) {
+              List<JsonObject> duplicates = pending.get(entry.getKey());
+              for (int i = 0; i < duplicates.size(); i++) {
+                duplicates.get(i).put("status", i == 0 ? "created" : "duplicate").put("id", entry.getValue());
+              }
+            }
+            return results;
+          });
+      });
+  }
+
+  /**
+   * Looks up the IDs of the songs with the given keys in one query, by the pairs of name and genre.
+   *
+   * @return The IDs of the songs that exist, by key.
+   */
+  private Future<Map<String, Integer>> selectSongIds(SqlClient client, Map<String, List<JsonObject>> songs) {
+    StringBuilder sql = new StringBuilder("SELECT id, name, genre FROM songs WHERE (name, genre) IN (");
+    Tuple params = Tuple.tuple();
+    for (List<JsonObject> duplicates : songs.values()) {
+      sql.append(params.size() == 0 ? "(?, ?)" : ", (?, ?)");
+      params.addString(duplicates.get(0).getString("name")).addString(duplicates.get(0).getString("genre"));
+    }
+    sql.append(")");
+    return execute(client, "selectSongIds", sql.toString(), params)
+      .map(rows -> {
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        for (Row row : rows) {
+          String key = songKey(row.getString("name"), row.getString("genre"));
+          if (songs.containsKey(key)) {
+            ids.put(key, row.getInteger("id"));
+          }
+        }
+        return ids;
+      });
+  }
+
+  /**
+   * Deletes the song with the given ID.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param id          The ID of the song to delete.
+   * @return A future completed once the song has been deleted,
+   * or failed with a {@link SongNotExistsException} if there is no such song.
+   */
+  public Future<Void> deleteSong(Transaction transaction, int id) {
+    if (transaction == null && index != null && !index.songExists(id)) {
+      return Future.failedFuture(new SongNotExistsException("ID " + id + " does not exist"));
+    }
+    String sql = "DELETE FROM songs WHERE id = ?";
+    return execute(transaction, "deleteSong", sql, Tuple.of(id))
+      .<Void>map(rows -> {
+        if (rows.rowCount() == 0) {
+          throw new SongNotExistsException("ID " + id + " does not exist");
+        }
+        return null;
+      })
+      .onSuccess(v -> applied(transaction, () -> {
+        songsVersion.incrementAndGet();
+        assignmentsVersion.incrementAndGet();
+        if (index != null) {
+          index.removeSong(id);
+        }
+        search.removeSong(id);
+        int[] owners = cooccurrence.removeSong(id);
+        trending.removeSong(id);
+        genreStats.removeSong(id);
+        if (readModel != null) {
+          readModel.removeSong(id, owners);
+        }
+      }));
+  }
+
+  /**
+   * Fetches all songs from the database.
+   *
+   * @param fields  The fields of the songs to read.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with a JsonObject containing all songs.
+   */
+  public Future<JsonObject> fetchAllSongs(Fields fields, boolean primary) {
+    String sql = songColumns(fields) + " from songs";
+    return read(primary, "fetchAllSongs", sql, Tuple.tuple())
+      .map(rows -> assembleSongs(rows, fields));
+  }
+
+  /**
+   * Fetches one page of songs, using keyset pagination on the song ID.
+   *
+   * @param afterId Only songs with a greater ID are returned.
+   * @param limit   The maximum number of songs on the page.
+   * @param fields  The fields of the songs to read.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with the page of songs.
+   */
+  public Future<Page> fetchSongsPage(int afterId, int limit, Fields fields, boolean primary) {
+    String sql = songColumns(fields) + " from songs where id > ? order by id limit ?";
+    return read(primary, "fetchSongsPage", sql, Tuple.of(afterId, limit + 1))
+      .map(rows -> page(assembleSongs(rows, fields), limit));
+  }
+
+  /**
+   * Fetches one page of the songs assigned to a user, using keyset pagination on the song ID.
+   * The page is read in one query along the index on user_songs (user_id, song_id), so its cost does not depend
+   * on the total number of assignments. The user is joined in to tell an empty library from a missing user.
+   * With a read model, the page is answered from memory like {@link #fetchUser(int, Fields, boolean)}.
+   * Without name and genre, the songs table is not joined.
+   *
+   * @param userId  The ID of the user.
+   * @param afterId Only songs with a greater ID are returned.
+   * @param limit   The maximum number of songs on the page.
+   * @param fields  The fields of the songs to read.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with the page of songs, or failed with a {@link UserNotExistsException}.
+   */
+  public Future<Page> fetchUserSongsPage(int userId, int afterId, int limit, Fields fields, boolean primary) {
+    if (readModel != null) {
+      if (!readModel.containsUser(userId)) {
+        return Future.failedFuture(new UserNotExistsException(userId));
+      }
+      JsonObject songs = readModel.librarySongs(userId, afterId, limit + 1, fields);
+      if (songs != null) {
+        return Future.succeededFuture(page(songs, limit));
+      }
+      return loadLibrary(userId).map(songIds -> page(readModel.songs(songIds, afterId, limit + 1, fields), limit));
+    }
+    boolean details = fields.contains("name") || fields.contains("genre");
+    String sql = (details ? "SELECT s.id" : "SELECT us.song_id AS id")
+      + (fields.contains("name") ? ", s.name" : "") + (fields.contains("genre") ? ", s.genre" : "")
+      + " from users u left join user_songs us on us.user_id = u.id and us.song_id > ?"
+      + (details ? " left join songs s on s.id = us.song_id" : "")
+      + " where u.id = ? order by us.song_id limit ?";
+    return read(primary, "fetchUserSongsPage", sql, Tuple.of(afterId, userId, limit + 1))
+      .map(rows -> {
+        if (rows.size() == 0) {
+          throw new UserNotExistsException(userId);
+        }
+        JsonObject songs = new JsonObject();
+        for (Row row : rows) {
+          if (row.getInteger("id") == null) {
+            continue;
+          }
+          JsonObject song = new JsonObject();
+          if (fields.contains("name")) {
+            song.put("name", row.getString("name"));
+          }
+          if (fields.contains("genre")) {
+            song.put("genre", row.getString("genre"));
+          }
+          songs.put(String.valueOf(row.getInteger("id")), song);
+        }
+        return page(songs, limit);
+      });
+  }
+
+  /**
+   * Streams all songs ordered by ID. The columns are the same as in {@link #fetchAllSongs(Fields, boolean)}.
+   *
+   * @param fetchSize The number of rows fetched from the cursor at once.
+   * @param fields    The fields of the songs to read.
+   * @param primary   Whether to read from the primary instead of the read pool.
+   * @param consumer  Reads the stream and completes the returned future once it is done.
+   * @return A future completed once the consumer is done and the connection has been released.
+   */
+  public Future<Void> streamAllSongs(int fetchSize, Fields fields, boolean primary, Function<RowStream<Row>, Future<Void>> consumer) {
+    return stream(primary, "streamAllSongs", songColumns(fields) + " from songs order by id", fetchSize, consumer);
+  }
+
+  /**
+   * Streams all rows of one table as stored, without joins, in the order of its primary key or index:
+   * users (id, name, email), songs (id, name, genre, timestamp) or assignments (user_id, song_id, timestamp).
+   *
+   * @param table     The name of the export: users, songs or assignments.
+   * @param fetchSize The number of rows fetched from the cursor at once.
+   * @param primary   Whether to read from the primary instead of the read pool.
+   * @param consumer  Reads the stream and completes the returned future once it is done.
+   * @return A future completed once the consumer is done and the connection has been released.
+   * @throws IllegalArgumentException If there is no export of that name.
+   */
+  public Future<Void> streamExport(String table, int fetchSize, boolean primary, Function<RowStream<Row>, Future<Void>> consumer) {
+    String sql = switch (table) {
+      case "users" -> "SELECT id, name, email from users order by id";
+      case "songs" -> "SELECT id, name, genre, timestamp from songs order by id";
+      case "assignments" -> "SELECT user_id, song_id, timestamp from user_songs order by user_id, song_id";
+      default -> throw new IllegalArgumentException("Unknown export: " + table);
+    };
+    return stream(primary, "export." + table, sql, fetchSize, consumer);
+  }
+
+  /**
+   * Assigns a song to a user.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param userId      The ID of the user.
+   * @param songId      The ID of the song.
+   * @return A future completed once the assignment has been stored, or failed with a {@link SongNotExistsException},
+   * {@link UserNotExistsException} or {@link AssertionAlreadyExistsException}.
+   */
+  public Future<Void> insertAssertion(Transaction transaction, int userId, int songId) {
+    if (transaction == null && index != null) {
+      RuntimeException rejected = checkAssertion(userId, songId, true);
+      if (rejected != null) {
+        return Future.failedFuture(rejected);
+      }
+    }
+    String sql = "INSERT INTO user_songs (user_id, song_id) VALUES (?, ?)";
+    return executeAssignment(transaction, "insertAssertion", sql, Tuple.of(userId, songId))
+      .recover(e -> {
+        if (violates(e, "fk_user_songs_song")) {
+          return Future.failedFuture(new SongNotExistsException("ID " + songId + " does not exist"));
+        } else if (violates(e, "fk_user_songs_user")) {
+          return Future.failedFuture(new UserNotExistsException(userId));
+        } else if (isDuplicateKey(e)) {
+          return Future.failedFuture(new AssertionAlreadyExistsException("User " + userId + "with song " + songId + " already exists"));
+        }
+        return Future.failedFuture(e);
+      })
+      .<Void>mapEmpty()
+      .onSuccess(v -> applied(transaction, () -> {
+        assignmentsVersion.incrementAndGet();
+        if (index != null) {
+          index.addAssignment(userId, songId);
+        }
+        cooccurrence.addAssignment(userId, songId);
+        trending.record(songId);
+        genreStats.addAssignment(songId);
+        if (readModel != null) {
+          readModel.addAssignment(userId, songId);
+        }
+      }));
+  }
+
+  /**
+   * Removes a song from a user.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param userId      The ID of the user.
+   * @param songId      The ID of the song.
+   * @return A future completed once the assignment has been removed, or failed with a {@link SongNotExistsException},
+   * {@link UserNotExistsException} or {@link AssertionNotExistsException}.
+   */
+  public Future<Void> deleteAssertion(Transaction transaction, int userId, int songId) {
+    if (transaction == null && index != null) {
+      RuntimeException rejected = checkAssertion(userId, songId, false);
+      if (rejected != null) {
+        return Future.failedFuture(rejected);
+      }
+    }
+    String sql = "DELETE from user_songs where user_id = ? and song_id = ?";
+    return executeAssignment(transaction, "deleteAssertion", sql, Tuple.of(userId, songId))
+      .compose(rows -> rows.rowCount() > 0 ? Future.<Void>succeededFuture() : missingAssertion(transaction, userId, songId))
+      .onSuccess(v -> applied(transaction, () -> {
+        assignmentsVersion.incrementAndGet();
+        if (index != null) {
+          index.removeAssignment(userId, songId);
+        }
+        cooccurrence.removeAssignment(userId, songId);
+        genreStats.removeAssignment(songId);
+        if (readModel != null) {
+          readModel.removeAssignment(userId, songId);
+        }
+      }));
+  }
+
+  /**
+   * Assigns many songs to a user in one transaction. The songs are validated with one set-based query,
+   * or from the existence index if there is one, and the new assignments are stored with one multi-row insert.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param userId      The ID of the user.
+   * @param songIds     The IDs of the songs, without duplicates.
+   * @return A future completed with the IDs of the songs that were added, skipped because they were already assigned
+   * and missing because they do not exist, or failed with a {@link UserNotExistsException}.
+   */
+  public Future<JsonObject> insertAssertions(Transaction transaction, int userId, Collection<Integer> songIds) {
+    return withTransaction(transaction, connection -> insertAssertions(connection, userId, songIds, transaction == null))
+      .recover(e -> {
+        if (violates(e, "fk_user_songs_user")) {
+          return Future.failedFuture(new UserNotExistsException(userId));
+        }
+        // a concurrent assignment or delete of a song slipped in between validation and insert, or the index
+        // misses a write of another process: the retry validates against the database and sees it
+        if (transaction == null && (isDuplicateKey(e) || violates(e, "fk_user_songs_song"))) {
+          return withTransaction(connection -> insertAssertions(connection, userId, songIds, false))
+            .recover(retried -> Future.failedFuture(violates(retried, "fk_user_songs_user") ? new UserNotExistsException(userId) : retried));
+        }
+        return Future.failedFuture(e);
+      })
+      .onSuccess(result -> applied(transaction, () -> {
+        assignmentsVersion.incrementAndGet();
+        for (Object songId : result.getJsonArray("added")) {
+          if (index != null) {
+            index.addAssignment(userId, (Integer) songId);
+          }
+          cooccurrence.addAssignment(userId, (Integer) songId);
+          trending.record((Integer) songId);
+          genreStats.addAssignment((Integer) songId);
+          if (readModel != null) {
+            readModel.addAssignment(userId, (Integer) songId);
+          }
+        }
+      }));
+  }
+
+  private Future<JsonObject> insertAssertions(SqlConnection connection, int userId, Collection<Integer> songIds, boolean useIndex) {
+    return classifyAssertions(connection, userId, songIds, useIndex)
+      .compose(classified -> {
+        JsonObject result = new JsonObject()
+          .put("added", classified.get("unassigned"))
+          .put("skipped", classified.get("assigned"))
+          .put("missing", classified.get("missing"));
+        List<Integer> added = classified.get("unassigned");
+        if (added.isEmpty()) {
+          return Future.succeededFuture(result);
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO user_songs (user_id, song_id) VALUES ");
+        Tuple params = Tuple.tuple();
+        for (Integer songId : added) {
+          sql.append(params.size() == 0 ? "(?, ?)" : ", (?, ?)");
+          params.addInteger(userId).addInteger(songId);
+        }
+        return execute(connection, "insertAssertions", sql.toString(), params).map(result);
+      });
+  }
+
+  /**
+   * Removes many songs from a user in one transaction. The songs are validated with one set-based query,
+   * or from the existence index if there is one, and the assignments are removed with one delete.
+   *
+   * @param transaction The transaction to write in, or null to commit the write on its own.
+   * @param userId      The ID of the user.
+   * @param songIds     The IDs of the songs, without duplicates.
+   * @return A future completed with the IDs of the songs that were removed, skipped because they were not assigned
+   * and missing because they do not exist, or failed with a {@link UserNotExistsException}.
+   */
+  public Future<JsonObject> deleteAssertions(Transaction transaction, int userId, Collection<Integer> songIds) {
+    return withTransaction(transaction, connection -> classifyAssertions(connection, userId, songIds, transaction == null)
+        .compose(classified -> {
+          JsonObject result = new JsonObject()
+            .put("removed", classified.get("assigned"))
+            .put("skipped", classified.get("unassigned"))
+            .put("missing", classified.get("missing"));
+          List<Integer> removed = classified.get("assigned");
+          if (removed.isEmpty()) {
+            return Future.succeededFuture(result);
+          }
+          StringBuilder sql = new StringBuilder("DELETE from user_songs where user_id = ? and song_id in (");
+          Tuple params = Tuple.of(userId);
+          for (Integer songId : removed) {
+            sql.append(params.size() == 1 ? "?" : ", ?");
+            params.addInteger(songId);
+          }
+          sql.append(")");
+          return execute(connection, "deleteAssertions", sql.toString(), params).map(result);
+        }))
+      .onSuccess(result -> applied(transaction, () -> {
+        assignmentsVersion.incrementAndGet();
+        for (Object songId : result.getJsonArray("removed")) {
+          if (index != null) {
+            index.removeAssignment(userId, (Integer) songId);
+          }
+          cooccurrence.removeAssignment(userId, (Integer) songId);
+          genreStats.removeAssignment((Integer) songId);
+          if (readModel != null) {
+            readModel.removeAssignment(userId, (Integer) songId);
+          }
+        }
+      }));
+  }
+
+  /**
+   * Sorts the songs into those assigned to the user, those not assigned to the user and those that do not exist.
+   *
+   * @param useIndex Whether the existence index may be used, false to read the current state from the database.
+   */
+  private Future<Map<String, List<Integer>>> classifyAssertions(SqlConnection connection, int userId, Collection<Integer> songIds,
+                                                                boolean useIndex) {
+    Map<String, List<Integer>> classified = new LinkedHashMap<>();
+    classified.put("assigned", new ArrayList<>());
+    classified.put("unassigned", new ArrayList<>());
+    classified.put("missing", new ArrayList<>());
+    if (index != null && useIndex) {
+      if (!index.userExists(userId)) {
+        return Future.failedFuture(new UserNotExistsException(userId));
+      }
+      for (Integer songId : songIds) {
+        String kind = !index.songExists(songId) ? "missing" : index.assertionExists(songId, userId) ? "assigned" : "unassigned";
+        classified.get(kind).add(songId);
+      }
+      return Future.succeededFuture(classified);
+    }
+    StringBuilder sql = new StringBuilder("SELECT s.id AS song_id, us.user_id AS assigned from users u ")
+      .append("left join songs s on s.id in (");
+    Tuple params = Tuple.tuple();
+    for (Integer songId : songIds) {
+      sql.append(params.size() == 0 ? "?" : ", ?");
+      params.addInteger(songId);
+    }
+    sql.append(") left join user_songs us on us.song_id = s.id and us.user_id = u.id where u.id = ?");
+    params.addInteger(userId);
+    return execute(connection, "classifyAssertions", sql.toString(), params)
+      .map(rows -> {
+        if (rows.size() == 0) {
+          throw new UserNotExistsException(userId);
+        }
+        IntObjectHashMap<Boolean> existing = new IntObjectHashMap<>(rows.size());
+        for (Row row : rows) {
+          Integer songId = row.getInteger("song_id");
+          if (songId != null) {
+            existing.put(songId, row.getInteger("assigned") != null);
+          }
+        }
+        for (Integer songId : songIds) {
+          Boolean assigned = existing.get(songId);
+          classified.get(assigned == null ? "missing" : assigned ? "assigned" : "unassigned").add(songId);
+        }
+        return classified;
+      });
+  }
+
+  /**
+   * Checks if a user with the given ID exists in the database.
+   *
+   * @param id      The ID of the user to check.
+   * @param primary Whether to read from the primary instead of the read pool.
+   * @return A future completed with true if the user exists, false otherwise.
+   */
+  public Future<Boolean> userExists(int id, boolean primary) {
+    if (index != null) {
+      return Future.succeededFuture(index.userExists(id));
+    }
+    return exists(primary, "userExists", "SELECT name from users where id= ?", Tuple.of(id));
+  }
+
+  /**
+   * Closes the underlying connection pools.
+   *
+   * @return A future completed once all connections have been released.
+   */
+  public Future<Void> close() {
+    return readPool == pool ? pool.close() : Future.join(pool.close(), readPool.close()).mapEmpty();
+  }
+
+  /**
+   * Groups the joined rows of users and their songs into one object per user, keyed by the ID of the user.
+   * Only the selected fields are read from the rows, see {@link #userColumns(Fields)}.
+   */
+  static JsonObject assembleUsers(Iterable<Row> rows, Fields fields) {
+    boolean name = fields.contains("name");
+    boolean email = fields.contains("email");
+    boolean songs = fields.contains("songs");
+    JsonObject users = new JsonObject();
+    for (Row row : rows) {
+      String id = String.valueOf(row.getInteger("user_id"));
+      JsonObject user;
+      if (users.containsKey(id)) {
+        user = users.getJsonObject(id);
+      } else {
+        user = new JsonObject();
+        if (name) {
+          user.put("name", row.getString("user_name"));
+        }
+        if (email) {
+          user.put("email", row.getString("user_email"));
+        }
+        if (songs) {
+          user.put("songs", new JsonObject());
+        }
+        users.put(id, user);
+      }
+      if (!songs) {
+        continue;
+      }
+
+      Integer songId = row.getInteger("song_id");
+      String songName = row.getString("song_name");
+      if (songName != null) {
+        user.getJsonObject("songs").put(String.valueOf(songId), new JsonObject().put("name", songName));
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Builds one object per song with the selected fields, keyed by the ID of the song.
+   */
+  static JsonObject assembleSongs(Iterable<Row> rows, Fields fields) {
+    boolean name = fields.contains("name");
+    boolean genre = fields.contains("genre");
+    boolean timestamp = fields.contains("timestamp");
+    JsonObject songs = new JsonObject();
+    for (Row row : rows) {
+      JsonObject details = new JsonObject();
+      if (name) {
+        details.put("name", row.getString("name"));
+      }
+      if (genre) {
+        details.put("genre", row.getString("genre"));
+      }
+      if (timestamp) {
+        details.put("timestamp", String.valueOf(row.getValue("timestamp")));
+      }
+      songs.put(String.valueOf(row.getInteger("id")), details);
+    }
+    return songs;
+  }
+
+  /**
+   * Selects the columns of users u for the selected fields, aliased as read by {@link #assembleUsers(Iterable, Fields)}.
+   * The song columns need the joins of {@link #userSongJoins(Fields)}.
+   */
+  static String userColumns(Fields fields) {
+    return "SELECT u.id AS user_id"
+      + (fields.contains("name") ? ", u.name AS user_name" : "")
+      + (fields.contains("email") ? ", u.email AS user_email" : "")
+      + (fields.contains("songs") ? ", s.id AS song_id, s.name AS song_name" : "");
+  }
+
+  /**
+   * Joins the songs of users u, only if songs are selected.
+   */
+  static String userSongJoins(Fields fields) {
+    return fields.contains("songs") ? " left join user_songs us on us.user_id = u.id left join songs s on s.id = us.song_id" : "";
+  }
+
+  /**
+   * Selects the columns of songs for the selected fields.
+   */
+  static String songColumns(Fields fields) {
+    return "SELECT id"
+      + (fields.contains("name") ? ", name" : "")
+      + (fields.contains("genre") ? ", genre" : "")
+      + (fields.contains("timestamp") ? ", timestamp" : "");
+  }
+
+  /**
+   * Cuts the entries fetched with limit + 1 down to the page size.
+   * The extra entry only tells whether there is a next page.
+   */
+  private Page page(JsonObject items, int limit) {
+    if (items.size() <= limit) {
+      return new Page(items, null);
+    }
+    String last = null;
+    String extra = null;
+    for (String key : items.fieldNames()) {
+      last = extra;
+      extra = key;
+    }
+    items.remove(extra);
+    return new Page(items, Integer.valueOf(last));
+  }
+
+  /**
+   * Checks an assignment against the existence index.
+   *
+   * @param insert true if the assignment is about to be inserted, false if it is about to be removed.
+   * @return The exception to reject the write with, or null if the write can proceed.
+   */
+  private RuntimeException checkAssertion(int userId, int songId, boolean insert) {
+    if (!index.songExists(songId)) {
+      return new SongNotExistsException("ID " + songId + " does not exist");
+    }
+    if (!index.userExists(userId)) {
+      return new UserNotExistsException(userId);
+    }
+    boolean exists = index.assertionExists(songId, userId);
+    if (insert && exists) {
+      return new AssertionAlreadyExistsException("User " + userId + "with song " + songId + " already exists");
+    }
+    if (!insert && !exists) {
+      return new AssertionNotExistsException("User " + userId + "with song " + songId + " does not exists");
+    }
+    return null;
+  }
+
+  /**
+   * Finds out why no assignment was deleted. Only runs on the error path, the successful delete stays one round trip.
+   */
+  private Future<Void> missingAssertion(Transaction transaction, int userId, int songId) {
+    String sql = "SELECT (SELECT count(*) from songs where id = ?) AS songs, (SELECT count(*) from users where id = ?) AS users";
+    return execute(transaction, "missingAssertion", sql, Tuple.of(songId, userId))
+      .map(rows -> {
+        Row row = rows.iterator().next();
+        if (row.getLong("songs") == 0) {
+          throw new SongNotExistsException("ID " + songId + " does not exist");
+        }
+        if (row.getLong("users") == 0) {
+          throw new UserNotExistsException(userId);
+        }
+        throw new AssertionNotExistsException("User " + userId + "with song " + songId + " does not exists");
+      });
+  }
+
+  /**
+   * Checks if the error is a violation of a unique key or primary key constraint.
+   */
+  private static boolean isDuplicateKey(Throwable e) {
+    return e instanceof SQLException sqlException
+      && (sqlException.getErrorCode() == 1062 || "23505".equals(sqlException.getSQLState()));
+  }
+
+  /**
+   * Checks if the error is a violation of a foreign key constraint, on insert (1452) or on delete (1451).
+   */
+  private static boolean isForeignKeyViolation(Throwable e) {
+    return e instanceof SQLException sqlException
+      && (sqlException.getErrorCode() == 1452 || sqlException.getErrorCode() == 1451
+      || "23503".equals(sqlException.getSQLState()) || "23506".equals(sqlException.getSQLState()));
+  }
+
+  /**
+   * Checks if the error is a violation of the constraint with the given name.
+   */
+  private static boolean violates(Throwable e, String constraint) {
+    return e instanceof SQLIntegrityConstraintViolationException
+      && e.getMessage() != null
+      && e.getMessage().toLowerCase(Locale.ROOT).contains(constraint);
+  }
+
+  /**
+   * Runs one statement on a connection of the pool.
+   *
+   * @param query The name the timing of the statement is recorded under.
+   */
+  private Future<RowSet<Row>> execute(String query, String sql, Tuple params) {
+    return withConnection(pool, connection -> execute(connection, query, sql, params));
+  }
+
+  /**
+   * Runs one statement of a write on the connection of the transaction, or on its own if there is none.
+   */
+  private Future<RowSet<Row>> execute(Transaction transaction, String query, String sql, Tuple params) {
+    return transaction == null ? execute(query, sql, params) : execute(transaction.connection, query, sql, params);
+  }
+
+  /**
+   * Runs one reading statement on a connection of the primary pool or of the read pool.
+   */
+  private Future<RowSet<Row>> read(boolean primary, String query, String sql, Tuple params) {
+    return withConnection(primary ? pool : readPool, connection -> execute(connection, query, sql, params));
+  }
+
+  private Future<RowSet<Row>> execute(SqlClient client, String query, String sql, Tuple params) {
+    roundTrips.incrementAndGet();
+    long start = System.nanoTime();
+    return client.preparedQuery(sql)
+      .execute(params)
+      .onComplete(result -> metrics.recordQuery(query, System.nanoTime() - start, result.succeeded()));
+  }
+
+  /**
+   * Runs a write of a single assignment, in the given transaction, or else in a group commit if enabled.
+   */
+  private Future<RowSet<Row>> executeAssignment(Transaction transaction, String query, String sql, Tuple params) {
+    if (transaction != null || assignmentCommits == null) {
+      return execute(transaction, query, sql, params);
+    }
+    return assignmentCommits.submit(new Statement(query, sql, params));
+  }
+
+  /**
+   * Runs the statements of a group commit one after the other in one transaction. A statement violating a unique or
+   * foreign key only fails itself, the database rolls back just that statement and the transaction goes on.
+   * Any other failure, such as a deadlock or lock wait timeout, may have rolled back the whole transaction: the batch
+   * is aborted and rolled back, and every statement in it fails, so no caller is told its write was stored.
+   */
+  private Future<List<AsyncResult<RowSet<Row>>>> executeBatch(List<Statement> statements) {
+    return withTransaction(connection -> {
+      List<AsyncResult<RowSet<Row>>> results = new ArrayList<>(statements.size());
+      Future<Void> executed = Future.succeededFuture();
+      for (Statement statement : statements) {
+        executed = executed.compose(v -> execute(connection, statement.query(), statement.sql(), statement.params())
+          .transform(result -> {
+            if (result.failed() && !isDuplicateKey(result.cause()) && !isForeignKeyViolation(result.cause())) {
+              return Future.failedFuture(result.cause());
+            }
+            results.add(result);
+            return Future.<Void>succeededFuture();
+          }));
+      }
+      return executed.map(v -> results);
+    });
+  }
+
+  /**
+   * Borrows a connection from the given pool for the function and returns it once the future of the function completes.
+   * Records the time waited for the connection and keeps the gauges of the pool up to date.
+   */
+  private <T> Future<T> withConnection(Pool pool, Function<SqlConnection, Future<T>> function) {
+    long requested = System.nanoTime();
+    metrics.connectionRequested();
+    return pool.getConnection()
+      .onComplete(result -> metrics.connectionAcquired(System.nanoTime() - requested, result.succeeded()))
+      .compose(connection -> function.apply(connection)
+        .eventually(() -> {
+          metrics.connectionReleased();
+          return connection.close();
+        }));
+  }
+
+  /**
+   * Runs the function in a transaction on a borrowed connection, committed if its future succeeds and rolled back otherwise.
+   * The JDBC client leaves auto-commit switched off after the transaction, so it is switched on again before the
+   * connection goes back to the pool. Otherwise the single statements run on it later would never be committed.
+   */
+  private <T> Future<T> withTransaction(Function<SqlConnection, Future<T>> function) {
+    return withConnection(pool, connection -> connection.begin()
+      .compose(transaction -> function.apply(connection)
+        .compose(
+          result -> transaction.commit().map(result),
+          e -> transaction.rollback().transform(rollback -> Future.failedFuture(e))))
+      .eventually(() -> connection.query("SET autocommit = 1").execute()));
+  }
+
+  /**
+   * Runs the function on the connection of the given transaction, or else in a transaction of its own.
+   */
+  private <T> Future<T> withTransaction(Transaction transaction, Function<SqlConnection, Future<T>> function) {
+    return transaction == null ? withTransaction(function) : function.apply(transaction.connection);
+  }
+
+  /**
+   * Returns the connection of a transaction to the pool, with auto-commit switched on again like
+   * {@link #withTransaction(Function)} does.
+   */
+  private Future<Void> release(SqlConnection connection) {
+    return connection.query("SET autocommit = 1").execute()
+      .<Void>mapEmpty()
+      .eventually(() -> {
+        metrics.connectionReleased();
+        return connection.close();
+      });
+  }
+
+  /**
+   * Applies a successful write to the in-memory structures right away, or once its transaction has been committed.
+   */
+  private static void applied(Transaction transaction, Runnable update) {
+    if (transaction == null) {
+      update.run();
+    } else {
+      transaction.onCommit(update);
+    }
+  }
+
+  /**
+   * The key of a song as the unique key of the songs compares it in the default collation of MariaDB, which ignores
+   * case, accents and trailing spaces. Songs the database treats as the same are thus found and inserted only once.
+   */
+  private static String songKey(String name, String genre) {
+    return collationKey(name) + '\u0000' + collationKey(genre);
+  }
+
+  private static String collationKey(String text) {
+    String folded = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    return TRAILING_SPACES.matcher(folded).replaceFirst("");
+  }
+
+  private Future<Void> stream(boolean primary, String query, String sql, int fetchSize, Function<RowStream<Row>, Future<Void>> consumer) {
+    roundTrips.incrementAndGet();
+    return withConnection(primary ? pool : readPool, connection -> {
+      long start = System.nanoTime();
+      return connection.prepare(sql)
+        .compose(statement -> consumer.apply(statement.createStream(fetchSize))
+          .eventually(statement::close))
+        .onComplete(result -> metrics.recordQuery(query, System.nanoTime() - start, result.succeeded()));
+    });
+  }
+
+  private Future<Boolean> exists(boolean primary, String query, String sql, Tuple params) {
+    return read(primary, query, sql, params)
+      .map(rows -> rows.iterator().hasNext());
+  }
+
+  private long generatedId(RowSet<Row> rows) {
+    Row keys = rows.property(JDBCPool.GENERATED_KEYS);
+    if (keys == null) {
+      throw new IllegalStateException("Failed to retrieve generated ID");
+    }
+    return keys.getLong(0);
+  }
+}
@@ -0,0 +1,7 @@
+package de.thm.mni.pi2.musicService;
+
+public class OverloadedException extends RuntimeException {
+  public OverloadedException(String message) {
+    super(message);
+  }
+}
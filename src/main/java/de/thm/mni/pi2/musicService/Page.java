@@ -0,0 +1,12 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * One page of a keyset-paginated list.
+ *
+ * @param items  The entries of the page, keyed by their ID.
+ * @param nextId The ID to continue after, or null if this is the last page.
+ */
+public record Page(JsonObject items, Integer nextId) {
+}
@@ -0,0 +1,516 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * In-memory read model of the users, the songs and the libraries of the users, so the lists and details of the users
+ * are answered without joining users, user_songs and songs for every request.
+ * <p>
+ * Users and songs are kept completely, keyed by their int IDs. The libraries are kept as sorted arrays of song IDs,
+ * bounded to maxLibrarySongs song IDs in total: beyond that, the least recently read libraries are evicted and loaded
+ * again from the database when they are read, see {@link #putLibrary(long, int, int[])}. While any library is evicted,
+ * the complete list of users is not answered from the model.
+ * <p>
+ * The model is kept up to date by the write methods of the {@link MusicRepository}, including the assignments removed
+ * by the cascades when a user or song is deleted. Writes by other processes are only seen once the model is reloaded,
+ * see {@link #reload(long, IntObjectHashMap, IntObjectHashMap, long[], int)}.
+ */
+public class ReadModel {
+  // rough sizes in bytes for the memory estimate: object headers, fields and the slots in the hash maps
+  private static final int USER_BYTES = 112;
+  private static final int SONG_BYTES = 112;
+  private static final int LIBRARY_BYTES = 80;
+
+  public record User(String name, String email) {
+  }
+
+  public record Song(String name, String genre) {
+  }
+
+  /**
+   * The sorted song IDs of one user, linked into the list of libraries from the most to the least recently read.
+   */
+  private static class Library {
+    private final int userId;
+    private int[] songIds;
+    private Library newer;
+    private Library older;
+
+    Library(int userId, int[] songIds) {
+      this.userId = userId;
+      this.songIds = songIds;
+    }
+  }
+
+  private final int maxLibrarySongs;
+  private IntObjectHashMap<User> users = new IntObjectHashMap<>();
+  private int[] userIds = new int[0];
+  private IntObjectHashMap<Song> songs = new IntObjectHashMap<>();
+  private IntObjectHashMap<Library> libraries = new IntObjectHashMap<>();
+  private Library newest;
+  private Library oldest;
+  private long librarySongs;
+  private long stringBytes;
+  private long modifications;
+  private long loadedAt;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxLibrarySongs The maximum number of song IDs kept in the libraries.
+   */
+  public ReadModel(int maxLibrarySongs) {
+    this.maxLibrarySongs = maxLibrarySongs;
+  }
+
+  /**
+   * Replaces the model with one built from the database, unless a write has been applied since the rows were
+   * requested: the rows might then miss that write, and the reload is left to the next run.
+   *
+   * @param modifications The value of {@link #modifications()} before the rows were requested.
+   * @param users         All users by ID.
+   * @param songs         All songs by ID.
+   * @param assignments   The assignments packed with {@link LongHashSet#pack(int, int)} as user and song ID,
+   *                      ordered by user ID and song ID.
+   * @param count         The number of assignments.
+   * @return Whether the model was replaced.
+   */
+  public boolean reload(long modifications, IntObjectHashMap<User> users, IntObjectHashMap<Song> songs,
+                        long[] assignments, int count) {
+    int[] userIds = new int[users.size()];
+    int[] size = {0};
+    long[] stringBytes = {0};
+    users.forEach((id, user) -> {
+      userIds[size[0]++] = id;
+      stringBytes[0] += user.name().length() + user.email().length();
+    });
+    Arrays.sort(userIds);
+    songs.forEach((id, song) -> stringBytes[0] += length(song.name()) + length(song.genre()));
+    synchronized (this) {
+      if (modifications != this.modifications) {
+        return false;
+      }
+      this.users = users;
+      this.userIds = userIds;
+      this.songs = songs;
+      this.stringBytes = stringBytes[0];
+      libraries = new IntObjectHashMap<>();
+      newest = null;
+      oldest = null;
+      librarySongs = 0;
+      int start = 0;
+      for (int userId : userIds) {
+        // assignments of users created after the users were read
+        while (start < count && LongHashSet.high(assignments[start]) < userId) {
+          start++;
+        }
+        int end = start;
+        while (end < count && LongHashSet.high(assignments[end]) == userId) {
+          end++;
+        }
+        // a library that does not fit any more is loaded when it is read
+        if (librarySongs + (end - start) <= maxLibrarySongs) {
+          int[] songIds = new int[end - start];
+          for (int i = start; i < end; i++) {
+            songIds[i - start] = LongHashSet.low(assignments[i]);
+          }
+          link(new Library(userId, songIds));
+        }
+        start = end;
+      }
+      loadedAt = System.currentTimeMillis();
+      return true;
+    }
+  }
+
+  /**
+   * Caches the library of a user read from the database after a miss, unless a write has been applied since it was
+   * requested, or the user no longer exists.
+   *
+   * @param modifications The value of {@link #modifications()} before the library was requested.
+   * @param userId        The ID of the user.
+   * @param songIds       The IDs of the songs of the user, sorted.
+   */
+  public synchronized void putLibrary(long modifications, int userId, int[] songIds) {
+    if (modifications != this.modifications || !users.containsKey(userId) || libraries.containsKey(userId)
+      || songIds.length > maxLibrarySongs) {
+      return;
+    }
+    link(new Library(userId, songIds));
+    evict();
+  }
+
+  /**
+   * @return The number of writes applied so far, to tell if a read from the database raced with a write.
+   */
+  public synchronized long modifications() {
+    return modifications;
+  }
+
+  public synchronized boolean containsUser(int id) {
+    return users.containsKey(id);
+  }
+
+  /**
+   * @param fields The fields of the users to describe; without songs, no library has to be in memory.
+   * @return All users with the names of their songs, keyed by ID and ordered by ID,
+   * or null if a library is not in memory.
+   */
+  public synchronized JsonObject users(Fields fields) {
+    boolean songs = fields.contains("songs");
+    if (songs && libraries.size() < users.size()) {
+      misses++;
+      return null;
+    }
+    hits++;
+    JsonObject json = new JsonObject();
+    for (int id : userIds) {
+      json.put(String.valueOf(id), user(users.get(id), songs ? libraries.get(id).songIds : null, fields));
+    }
+    return json;
+  }
+
+  /**
+   * @param afterId Only users with a greater ID are returned.
+   * @param limit   The maximum number of users.
+   * @param fields  The fields of the users to describe; without songs, no library has to be in memory.
+   * @return The users with the names of their songs, keyed by ID and ordered by ID,
+   * or null if one of their libraries is not in memory.
+   */
+  public synchronized JsonObject users(int afterId, int limit, Fields fields) {
+    boolean songs = fields.contains("songs");
+    int start = after(userIds, userIds.length, afterId);
+    int end = (int) Math.min(userIds.length, (long) start + limit);
+    for (int i = start; songs && i < end; i++) {
+      if (!libraries.containsKey(userIds[i])) {
+        misses++;
+        return null;
+      }
+    }
+    hits++;
+    JsonObject json = new JsonObject();
+    for (int i = start; i < end; i++) {
+      Library library = songs ? libraries.get(userIds[i]) : null;
+      if (library != null) {
+        touch(library);
+      }
+      json.put(String.valueOf(userIds[i]), user(users.get(userIds[i]), library == null ? null : library.songIds, fields));
+    }
+    return json;
+  }
+
+  /**
+   * @param id     The ID of the user.
+   * @param fields The fields of the user to describe; without songs, the library does not have to be in memory.
+   * @return The user with its ID and the names of its songs, or null if the user or its library is not in memory.
+   */
+  public synchronized JsonObject user(int id, Fields fields) {
+    User user = users.get(id);
+    if (user == null) {
+      return null;
+    }
+    Library library = null;
+    if (fields.contains("songs")) {
+      library = libraries.get(id);
+      if (library == null) {
+        misses++;
+        return null;
+      }
+      touch(library);
+    }
+    hits++;
+    return user(id, user, library == null ? null : library.songIds, fields);
+  }
+
+  /**
+   * Describes a user with a library read from the database after a miss.
+   *
+   * @param id      The ID of the user.
+   * @param songIds The IDs of the songs of the user, sorted.
+   * @param fields  The fields of the user to describe.
+   * @return The user with its ID and the names of its songs, or null if the user is not in memory.
+   */
+  public synchronized JsonObject user(int id, int[] songIds, Fields fields) {
+    User user = users.get(id);
+    return user == null ? null : user(id, user, songIds, fields);
+  }
+
+  /**
+   * @param userId  The ID of the user.
+   * @param afterId Only songs with a greater ID are returned.
+   * @param limit   The maximum number of songs.
+   * @param fields  The fields of the songs to describe.
+   * @return The songs of the user with name and genre, keyed by ID and ordered by ID,
+   * or null if the user or its library is not in memory.
+   */
+  public synchronized JsonObject librarySongs(int userId, int afterId, int limit, Fields fields) {
+    if (!users.containsKey(userId)) {
+      return null;
+    }
+    Library library = libraries.get(userId);
+    if (library == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    touch(library);
+    return songs(library.songIds, afterId, limit, fields);
+  }
+
+  /**
+   * Describes songs read from the database with the names and genres in memory.
+   *
+   * @param songIds The IDs of the songs, sorted.
+   * @param afterId Only songs with a greater ID are returned.
+   * @param limit   The maximum number of songs.
+   * @param fields  The fields of the songs to describe.
+   * @return The songs with name and genre, keyed by ID and ordered by ID.
+   */
+  public synchronized JsonObject songs(int[] songIds, int afterId, int limit, Fields fields) {
+    JsonObject json = new JsonObject();
+    for (int i = after(songIds, songIds.length, afterId); i < songIds.length && json.size() < limit; i++) {
+      Song song = songs.get(songIds[i]);
+      if (song != null) {
+        JsonObject details = new JsonObject();
+        if (fields.contains("name")) {
+          details.put("name", song.name());
+        }
+        if (fields.contains("genre")) {
+          details.put("genre", song.genre());
+        }
+        json.put(String.valueOf(songIds[i]), details);
+      }
+    }
+    return json;
+  }
+
+  public synchronized void addUser(int id, String name, String email) {
+    modifications++;
+    if (users.put(id, new User(name, email)) == null) {
+      stringBytes += name.length() + email.length();
+      int index = after(userIds, userIds.length, id);
+      int[] grown = new int[userIds.length + 1];
+      System.arraycopy(userIds, 0, grown, 0, index);
+      grown[index] = id;
+      System.arraycopy(userIds, index, grown, index + 1, userIds.length - index);
+      userIds = grown;
+      link(new Library(id, new int[0]));
+      evict();
+    }
+  }
+
+  /**
+   * Removes a user together with its library, deleted by the cascade of the foreign key.
+   */
+  public synchronized void removeUser(int id) {
+    modifications++;
+    User user = users.remove(id);
+    if (user == null) {
+      return;
+    }
+    stringBytes -= user.name().length() + user.email().length();
+    userIds = remove(userIds, id);
+    Library library = libraries.get(id);
+    if (library != null) {
+      unlink(library);
+    }
+  }
+
+  public synchronized void addSong(int id, String name, String genre) {
+    modifications++;
+    if (songs.put(id, new Song(name, genre)) == null) {
+      stringBytes += length(name) + length(genre);
+    }
+  }
+
+  /**
+   * Removes a song together with the assignments deleted by the cascade of the foreign key. Only the libraries of the
+   * given users are looked at; should another library still hold the ID, the song is skipped when it is described.
+   *
+   * @param id     The ID of the song.
+   * @param owners The IDs of the users who had the song, e.g. from {@link CoOccurrenceIndex#removeSong(int)}.
+   */
+  public synchronized void removeSong(int id, int[] owners) {
+    modifications++;
+    Song song = songs.remove(id);
+    if (song == null) {
+      return;
+    }
+    stringBytes -= length(song.name()) + length(song.genre());
+    for (int userId : owners) {
+      Library library = libraries.get(userId);
+      if (library != null && Arrays.binarySearch(library.songIds, id) >= 0) {
+        library.songIds = remove(library.songIds, id);
+        librarySongs--;
+      }
+    }
+  }
+
+  public synchronized void addAssignment(int userId, int songId) {
+    modifications++;
+    Library library = libraries.get(userId);
+    if (library == null) {
+      return;
+    }
+    int index = Arrays.binarySearch(library.songIds, songId);
+    if (index >= 0) {
+      return;
+    }
+    index = -index - 1;
+    int[] grown = new int[library.songIds.length + 1];
+    System.arraycopy(library.songIds, 0, grown, 0, index);
+    grown[index] = songId;
+    System.arraycopy(library.songIds, index, grown, index + 1, library.songIds.length - index);
+    library.songIds = grown;
+    librarySongs++;
+    touch(library);
+    evict();
+  }
+
+  public synchronized void removeAssignment(int userId, int songId) {
+    modifications++;
+    Library library = libraries.get(userId);
+    if (library != null && Arrays.binarySearch(library.songIds, songId) >= 0) {
+      library.songIds = remove(library.songIds, songId);
+      librarySongs--;
+    }
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  /**
+   * @return The number of users whose library is in memory.
+   */
+  public synchronized int libraries() {
+    return libraries.size();
+  }
+
+  /**
+   * @return The estimated memory used by the model in bytes.
+   */
+  public synchronized long memoryBytes() {
+    return (long) users.size() * USER_BYTES + (long) songs.size() * SONG_BYTES + (long) libraries.size() * LIBRARY_BYTES
+      + librarySongs * Integer.BYTES + (long) userIds.length * Integer.BYTES + stringBytes;
+  }
+
+  /**
+   * @return The time of the last reload from the database in milliseconds since the epoch, or 0 if not loaded yet.
+   */
+  public synchronized long loadedAt() {
+    return loadedAt;
+  }
+
+  private JsonObject user(int id, User user, int[] songIds, Fields fields) {
+    return user(new JsonObject().put("id", id), user, songIds, fields);
+  }
+
+  private JsonObject user(User user, int[] songIds, Fields fields) {
+    return user(new JsonObject(), user, songIds, fields);
+  }
+
+  /**
+   * Adds the selected fields of a user to the given object. The song IDs are only read if songs are selected.
+   */
+  private JsonObject user(JsonObject json, User user, int[] songIds, Fields fields) {
+    if (fields.contains("name")) {
+      json.put("name", user.name());
+    }
+    if (fields.contains("email")) {
+      json.put("email", user.email());
+    }
+    if (fields.contains("songs")) {
+      JsonObject songs = new JsonObject();
+      for (int songId : songIds) {
+        Song song = this.songs.get(songId);
+        if (song != null) {
+          songs.put(String.valueOf(songId), new JsonObject().put("name", song.name()));
+        }
+      }
+      json.put("songs", songs);
+    }
+    return json;
+  }
+
+  private void link(Library library) {
+    libraries.put(library.userId, library);
+    librarySongs += library.songIds.length;
+    library.older = newest;
+    if (newest != null) {
+      newest.newer = library;
+    }
+    newest = library;
+    if (oldest == null) {
+      oldest = library;
+    }
+  }
+
+  private void unlink(Library library) {
+    libraries.remove(library.userId);
+    librarySongs -= library.songIds.length;
+    if (library.newer != null) {
+      library.newer.older = library.older;
+    } else {
+      newest = library.older;
+    }
+    if (library.older != null) {
+      library.older.newer = library.newer;
+    } else {
+      oldest = library.newer;
+    }
+    library.newer = null;
+    library.older = null;
+  }
+
+  private void touch(Library library) {
+    if (library != newest) {
+      unlink(library);
+      link(library);
+    }
+  }
+
+  /**
+   * Evicts the least recently read libraries until the song IDs fit into the bound again.
+   */
+  private void evict() {
+    while (librarySongs > maxLibrarySongs) {
+      unlink(oldest);
+      evictions++;
+    }
+  }
+
+  /**
+   * @return The index of the first ID greater than the given one in the sorted IDs.
+   */
+  private static int after(int[] ids, int size, int id) {
+    int index = Arrays.binarySearch(ids, 0, size, id);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  private static int[] remove(int[] ids, int id) {
+    int index = Arrays.binarySearch(ids, id);
+    if (index < 0) {
+      return ids;
+    }
+    int[] shrunk = new int[ids.length - 1];
+    System.arraycopy(ids, 0, shrunk, 0, index);
+    System.arraycopy(ids, index + 1, shrunk, index, ids.length - index - 1);
+    return shrunk;
+  }
+
+  private static int length(String string) {
+    return string == null ? 0 : string.length();
+  }
+}
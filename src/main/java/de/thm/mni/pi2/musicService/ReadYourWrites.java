@@ -0,0 +1,84 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides whether a read may go to a replica or must go to the primary, so a client sees its own writes even while
+ * the replicas are behind.
+ * <p>
+ * Clients opt in by sending an ID of their choice in the header {@link #HEADER}. For window milliseconds after a
+ * successful write of a client, its reads go to the primary; after that the replicas are assumed to have caught up.
+ * The time of the last write of any client is kept as well: within the window after it, a response read from a replica
+ * may be older than the in-memory versions of the tables, see {@link #replicasCurrent()}.
+ * The methods are thread-safe, so one object can be shared by several verticle instances.
+ */
+public class ReadYourWrites {
+  public static final String HEADER = "X-Client-Id";
+  private static final int MAX_CLIENT_ID_LENGTH = 128;
+  private static final int PURGE_THRESHOLD = 100_000;
+
+  private final long window;
+  private final LongSupplier clock;
+  private final ConcurrentHashMap<String, Long> lastWrites = new ConcurrentHashMap<>();
+  private volatile long lastWrite = Long.MIN_VALUE / 2;
+
+  /**
+   * @param window The time in milliseconds the reads of a client go to the primary after its write.
+   */
+  public ReadYourWrites(long window) {
+    this(window, System::currentTimeMillis);
+  }
+
+  /**
+   * @param window The time in milliseconds the reads of a client go to the primary after its write.
+   * @param clock  The source of the current time in milliseconds.
+   */
+  public ReadYourWrites(long window, LongSupplier clock) {
+    this.window = window;
+    this.clock = clock;
+  }
+
+  /**
+   * Records a successful write.
+   *
+   * @param clientId The ID of the client that wrote, or null if it sent none.
+   */
+  public void recordWrite(String clientId) {
+    long now = clock.getAsLong();
+    lastWrite = now;
+    if (clientId == null || clientId.length() > MAX_CLIENT_ID_LENGTH) {
+      return;
+    }
+    if (lastWrites.size() >= PURGE_THRESHOLD) {
+      lastWrites.values().removeIf(time -> time + window <= now);
+    }
+    lastWrites.put(clientId, now);
+  }
+
+  /**
+   * @param clientId The ID of the client, or null if it sent none.
+   * @return Whether the reads of the client have to go to the primary.
+   */
+  public boolean pinned(String clientId) {
+    if (clientId == null) {
+      return false;
+    }
+    Long time = lastWrites.get(clientId);
+    if (time == null) {
+      return false;
+    }
+    if (time + window > clock.getAsLong()) {
+      return true;
+    }
+    lastWrites.remove(clientId, time);
+    return false;
+  }
+
+  /**
+   * @return Whether no client has written within the window, so the replicas are assumed to be up to date.
+   */
+  public boolean replicasCurrent() {
+    return lastWrite + window <= clock.getAsLong();
+  }
+}
@@ -0,0 +1,128 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowStream;
+
+/**
+ * Writes the rows of a database cursor to an HTTP response using chunked transfer encoding.
+ * The cursor is paused whenever the response write queue is full and resumed once it has drained,
+ * so memory use stays bounded by the fetch size no matter how large the result is.
+ */
+public class RowStreamWriter {
+
+  /**
+   * Turns rows into response chunks.
+   */
+  public interface Encoder {
+    /**
+     * Encodes a row.
+     *
+     * @param row The current row of the cursor.
+     * @return The chunk to write, or null if the row does not complete a chunk yet.
+     */
+    Buffer encode(Row row);
+
+    /**
+     * Called after the last row.
+     *
+     * @return The chunk that is still pending, or null if there is none.
+     */
+    Buffer finish();
+  }
+
+  private final HttpServerResponse response;
+  private final String contentType;
+  private final String prefix;
+  private final String separator;
+  private final String suffix;
+  private boolean started;
+
+  /**
+   * @param response    The response to write to.
+   * @param contentType The content type of the response.
+   * @param prefix      Written once before the first chunk.
+   * @param separator   Written between two chunks.
+   * @param suffix      Written once after the last chunk.
+   */
+  public RowStreamWriter(HttpServerResponse response, String contentType, String prefix, String separator, String suffix) {
+    this.response = response;
+    this.contentType = contentType;
+    this.prefix = prefix;
+    this.separator = separator;
+    this.suffix = suffix;
+  }
+
+  /**
+   * Pumps all rows of the stream into the response and ends it.
+   * If the cursor is empty, the response is ended with 204 instead.
+   *
+   * @param stream  The cursor to read from.
+   * @param encoder The encoder turning rows into chunks.
+   * @return A future completed once the response has been ended, or failed if the cursor or the client failed,
+   * or the response has been ended elsewhere.
+   */
+  public Future<Void> write(RowStream<Row> stream, Encoder encoder) {
+    Promise<Void> promise = Promise.promise();
+    response.closeHandler(v -> {
+      stream.close();
+      promise.tryFail("Client closed the connection");
+    });
+    stream.exceptionHandler(e -> {
+      if (started) {
+        response.reset();
+      }
+      promise.tryFail(e);
+    });
+    stream.endHandler(v -> {
+      if (response.ended()) {
+        promise.tryFail("Response already ended");
+        return;
+      }
+      Buffer pending = encoder.finish();
+      if (pending != null) {
+        writeChunk(pending);
+      }
+      if (started) {
+        response.end(suffix);
+      } else {
+        response.setStatusCode(204).end();
+      }
+      promise.tryComplete();
+    });
+    stream.handler(row -> {
+      // e.g. answered with 503 after the deadline of the admission control
+      if (response.ended()) {
+        stream.close();
+        promise.tryFail("Response already ended");
+        return;
+      }
+      Buffer chunk = encoder.encode(row);
+      if (chunk != null) {
+        writeChunk(chunk);
+        if (response.writeQueueFull()) {
+          stream.pause();
+          response.drainHandler(d -> stream.resume());
+        }
+      }
+    });
+    return promise.future();
+  }
+
+  private void writeChunk(Buffer chunk) {
+    if (!started) {
+      started = true;
+      response
+        .setChunked(true)
+        .putHeader("content-type", contentType)
+        .setStatusCode(200)
+        .write(prefix);
+    } else {
+      response.write(separator);
+    }
+    response.write(chunk);
+  }
+}
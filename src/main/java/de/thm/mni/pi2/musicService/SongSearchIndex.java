@@ -0,0 +1,572 @@
+package de.thm.mni.pi2.musicService;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search index over the names and genres of the songs, for type-ahead search.
+ * <p>
+ * Names and genres are split into normalized tokens (lower case, without diacritics), which are stored in a prefix trie.
+ * Each node holds the songs whose token ends there, and nodes with many songs below them additionally cache the
+ * best {@link #MAX_RESULTS} songs of their subtree, so a prefix query costs the length of the prefix
+ * plus the size of the result, independent of the size of the catalog.
+ * <p>
+ * Songs are ranked by a static key: matches in the name before matches in the genre, then shorter names, then lower IDs.
+ */
+public class SongSearchIndex {
+  public static final int MAX_RESULTS = 50;
+
+  /**
+   * Nodes with more entries below them than this cache their best results.
+   */
+  private static final int CACHE_THRESHOLD = 1024;
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+  private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+  /**
+   * Prefixes expanding to more tokens than this are checked against the tokens of the songs instead of joined.
+   */
+  private static final int MAX_EXPANSIONS = 16;
+  private static final long NAME = 0L;
+  private static final long GENRE = 1L;
+
+  /**
+   * A song as found by the search.
+   */
+  public record Song(int id, String name, String genre) {
+  }
+
+  private record Entry(Song song, String[] nameTokens, String[] genreTokens) {
+  }
+
+  private final IntObjectHashMap<Entry> songs = new IntObjectHashMap<>();
+  private final Node root = new Node();
+
+  /**
+   * Adds a song, or replaces it if there is already a song with the ID.
+   */
+  public synchronized void addSong(int id, String name, String genre) {
+    removeSong(id);
+    Entry entry = new Entry(new Song(id, name, genre), tokens(name), tokens(genre));
+    songs.put(id, entry);
+    for (String token : entry.nameTokens()) {
+      insert(token, key(NAME, name, id));
+    }
+    for (String token : entry.genreTokens()) {
+      insert(token, key(GENRE, name, id));
+    }
+  }
+
+  public synchronized void removeSong(int id) {
+    Entry entry = songs.remove(id);
+    if (entry == null) {
+      return;
+    }
+    String name = entry.song().name();
+    for (String token : entry.nameTokens()) {
+      delete(token, key(NAME, name, id));
+    }
+    for (String token : entry.genreTokens()) {
+      delete(token, key(GENRE, name, id));
+    }
+  }
+
+  /**
+   * @return The song with the ID, or null if there is none.
+   */
+  public synchronized Song song(int id) {
+    Entry entry = songs.get(id);
+    return entry == null ? null : entry.song();
+  }
+
+  public synchronized int size() {
+    return songs.size();
+  }
+
+  public synchronized void clear() {
+    songs.clear();
+    root.clear();
+  }
+
+  /**
+   * Finds the songs matching the query. Every term but the last has to match a token of the name or genre exactly,
+   * the last term is matched as a prefix, as it may still be being typed.
+   *
+   * @param query The search query.
+   * @param limit The maximum number of results, at most {@link #MAX_RESULTS}.
+   * @return The best matching songs, best first.
+   */
+  public synchronized List<Song> search(String query, int limit) {
+    String[] terms = tokens(query);
+    if (terms.length == 0 || limit < 1) {
+      return List.of();
+    }
+    TopK top = new TopK(Math.min(limit, MAX_RESULTS));
+    String prefix = terms[terms.length - 1];
+    if (terms.length == 1) {
+      Node node = root.find(prefix);
+      if (node != null) {
+        node.collect(top);
+      }
+    } else {
+      // leapfrog join over the postings of the complete terms and, if it expands to few tokens, of the prefix,
+      // in rank order, so the join stops as soon as no further song can make it into the results
+      List<Cursor> cursors = new ArrayList<>(terms.length);
+      for (int i = 0; i < terms.length - 1; i++) {
+        Node node = root.find(terms[i]);
+        if (node == null || node.postings == null || node.postings.isEmpty()) {
+          return List.of();
+        }
+        cursors.add(new Cursor(List.of(node.postings)));
+      }
+      Node node = root.find(prefix);
+      if (node == null) {
+        return List.of();
+      }
+      List<LongList> expansions = new ArrayList<>();
+      if (node.expand(expansions)) {
+        cursors.add(new Cursor(expansions));
+      }
+      join(cursors, terms, top);
+    }
+    List<Song> results = new ArrayList<>(top.size);
+    for (int i = 0; i < top.size; i++) {
+      results.add(songs.get(id(top.keys[i])).song());
+    }
+    return results;
+  }
+
+  /**
+   * Offers every song found in all cursors and matching the terms, until no further song can beat the collected ones.
+   */
+  private void join(List<Cursor> cursors, String[] terms, TopK top) {
+    long candidate = 0;
+    while (true) {
+      int agreed = 0;
+      for (int i = 0; agreed < cursors.size(); i = (i + 1) % cursors.size()) {
+        // a song ranks at best with its name, whose rank key equals the rank in the postings
+        if (top.isFull() && candidate >= top.worst()) {
+          return;
+        }
+        long next = cursors.get(i).seek(candidate);
+        if (next == Long.MAX_VALUE) {
+          return;
+        }
+        if (next == candidate) {
+          agreed++;
+        } else {
+          candidate = next;
+          agreed = 1;
+        }
+      }
+      Entry entry = songs.get(id(candidate));
+      int match = matches(entry, terms);
+      if (match >= 0) {
+        top.offer(key(match == 0 ? NAME : GENRE, entry.song().name(), entry.song().id()));
+      }
+      candidate++;
+    }
+  }
+
+  /**
+   * Splits a text into normalized tokens without duplicates.
+   */
+  static String[] tokens(String text) {
+    if (text == null) {
+      return new String[0];
+    }
+    String normalized = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+      .toLowerCase(Locale.ROOT);
+    Set<String> tokens = new LinkedHashSet<>();
+    for (String token : SEPARATORS.split(normalized)) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  /**
+   * @return -1 if the song does not match all terms, 0 if the last term matches its name and 1 if only its genre.
+   */
+  private static int matches(Entry entry, String[] terms) {
+    for (int i = 0; i < terms.length - 1; i++) {
+      if (!contains(entry.nameTokens(), terms[i], false) && !contains(entry.genreTokens(), terms[i], false)) {
+        return -1;
+      }
+    }
+    String prefix = terms[terms.length - 1];
+    if (contains(entry.nameTokens(), prefix, true)) {
+      return 0;
+    }
+    return contains(entry.genreTokens(), prefix, true) ? 1 : -1;
+  }
+
+  private static boolean contains(String[] tokens, String term, boolean prefix) {
+    for (String token : tokens) {
+      if (prefix ? token.startsWith(term) : token.equals(term)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Packs the rank of a song into a long, so smaller keys rank higher: the field, the length of the name and the ID.
+   */
+  private static long key(long field, String name, int id) {
+    return field << 62 | (long) Math.min(name.length(), 0x3FFFFFFF) << 32 | id;
+  }
+
+  private static int id(long key) {
+    return (int) key;
+  }
+
+  /**
+   * Converts a rank key into a posting, which orders by the length of the name and the ID first, so the postings of
+   * a token are sorted by the best rank of their song, no matter whether the token is in its name or genre.
+   */
+  private static long posting(long key) {
+    return (key & ~(GENRE << 62)) << 1 | key >>> 62;
+  }
+
+  private static long key(long posting) {
+    return (posting & 1) << 62 | posting >>> 1;
+  }
+
+  private void insert(String token, long key) {
+    Node node = root;
+    node.added(key);
+    for (int i = 0; i < token.length(); i++) {
+      node = node.child(token.charAt(i), true);
+      node.added(key);
+    }
+    if (node.postings == null) {
+      node.postings = new LongList();
+    }
+    node.postings.add(posting(key));
+  }
+
+  private void delete(String token, long key) {
+    Node node = root;
+    node.removed(key);
+    for (int i = 0; i < token.length() && node != null; i++) {
+      node = node.child(token.charAt(i), false);
+      if (node != null) {
+        node.removed(key);
+      }
+    }
+    if (node != null && node.postings != null) {
+      node.postings.remove(posting(key));
+    }
+  }
+
+  /**
+   * Node of the trie. The children are kept in arrays sorted by their character to keep the nodes small.
+   */
+  private static class Node {
+    private static final char[] NO_LABELS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private char[] labels = NO_LABELS;
+    private Node[] children = NO_CHILDREN;
+    // the songs whose token ends at this node, only allocated for such nodes
+    private LongList postings;
+    private int entries;
+    private TopK cache;
+    private boolean stale;
+
+    Node find(String prefix) {
+      Node node = this;
+      for (int i = 0; i < prefix.length() && node != null; i++) {
+        node = node.child(prefix.charAt(i), false);
+      }
+      return node;
+    }
+
+    Node child(char label, boolean create) {
+      int index = Arrays.binarySearch(labels, label);
+      if (index >= 0) {
+        return children[index];
+      }
+      if (!create) {
+        return null;
+      }
+      int insert = -index - 1;
+      Node child = new Node();
+      char[] newLabels = new char[labels.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(labels, 0, newLabels, 0, insert);
+      System.arraycopy(children, 0, newChildren, 0, insert);
+      newLabels[insert] = label;
+      newChildren[insert] = child;
+      System.arraycopy(labels, insert, newLabels, insert + 1, labels.length - insert);
+      System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+      labels = newLabels;
+      children = newChildren;
+      return child;
+    }
+
+    void added(long key) {
+      entries++;
+      if (cache != null) {
+        cache.offer(key);
+      }
+    }
+
+    void removed(long key) {
+      entries--;
+      if (cache == null) {
+        return;
+      }
+      if (entries < CACHE_THRESHOLD / 2) {
+        cache = null;
+      } else if (cache.remove(key)) {
+        // refilled from the subtree on the next search
+        stale = true;
+      }
+    }
+
+    /**
+     * Offers the best entries of this subtree to the collector, from the cache if the subtree is large.
+     */
+    void collect(TopK top) {
+      if (cache != null ? stale : entries > CACHE_THRESHOLD) {
+        TopK fresh = new TopK(MAX_RESULTS);
+        collectAll(fresh);
+        cache = fresh;
+        stale = false;
+      }
+      if (cache != null) {
+        for (int i = 0; i < cache.size; i++) {
+          top.offer(cache.keys[i]);
+        }
+      } else {
+        collectAll(top);
+      }
+    }
+
+    private void collectAll(TopK top) {
+      if (postings != null) {
+        postings.forEach(posting -> top.offer(key(posting)));
+      }
+      for (Node child : children) {
+        child.collect(top);
+      }
+    }
+
+    /**
+     * Adds the postings of all tokens starting with this node's prefix.
+     *
+     * @return false if there are more than {@link #MAX_EXPANSIONS} such tokens.
+     */
+    boolean expand(List<LongList> expansions) {
+      if (postings != null && !postings.isEmpty()) {
+        if (expansions.size() == MAX_EXPANSIONS) {
+          return false;
+        }
+        expansions.add(postings);
+      }
+      for (Node child : children) {
+        if (!child.expand(expansions)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void clear() {
+      labels = NO_LABELS;
+      children = NO_CHILDREN;
+      postings = null;
+      entries = 0;
+      cache = null;
+      stale = false;
+    }
+  }
+
+  /**
+   * The smallest keys offered, at most one per song, sorted ascending.
+   */
+  private static class TopK {
+    private final long[] keys;
+    private int size;
+
+    TopK(int capacity) {
+      keys = new long[capacity];
+    }
+
+    void offer(long key) {
+      if (size == keys.length && key >= keys[size - 1]) {
+        return;
+      }
+      for (int i = 0; i < size; i++) {
+        if (id(keys[i]) == id(key)) {
+          if (keys[i] <= key) {
+            return;
+          }
+          removeAt(i);
+          break;
+        }
+      }
+      int index = Arrays.binarySearch(keys, 0, size, key);
+      int insert = index >= 0 ? index : -index - 1;
+      if (size == keys.length) {
+        size--;
+      }
+      System.arraycopy(keys, insert, keys, insert + 1, size - insert);
+      keys[insert] = key;
+      size++;
+    }
+
+    boolean isFull() {
+      return size == keys.length;
+    }
+
+    long worst() {
+      return keys[size - 1];
+    }
+
+    boolean remove(long key) {
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == key) {
+          removeAt(i);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void removeAt(int index) {
+      System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+      size--;
+    }
+  }
+
+  /**
+   * Walks the union of sorted posting lists in the order of the song ranks.
+   */
+  private static class Cursor {
+    private final LongList[] lists;
+    private final int[] positions;
+
+    Cursor(List<LongList> lists) {
+      this.lists = lists.toArray(new LongList[0]);
+      this.positions = new int[this.lists.length];
+      for (LongList list : this.lists) {
+        list.sort();
+      }
+    }
+
+    /**
+     * @return The smallest rank of a song in the lists not smaller than the given one, or Long.MAX_VALUE.
+     */
+    long seek(long rank) {
+      long target = rank << 1;
+      long next = Long.MAX_VALUE;
+      for (int i = 0; i < lists.length; i++) {
+        positions[i] = lists[i].seek(target, positions[i]);
+        if (positions[i] < lists[i].size()) {
+          next = Math.min(next, lists[i].get(positions[i]) >>> 1);
+        }
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Growable list of primitive longs. It is unordered until it is sorted once, and stays sorted from then on,
+   * so loading the catalog only appends.
+   */
+  private static class LongList {
+    private long[] values = new long[2];
+    private int size;
+    private boolean sorted;
+
+    void add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      int insert = sorted ? indexOf(value) : size;
+      System.arraycopy(values, insert, values, insert + 1, size - insert);
+      values[insert] = value;
+      size++;
+    }
+
+    void remove(long value) {
+      int index = sorted ? Arrays.binarySearch(values, 0, size, value) : linearSearch(value);
+      if (index < 0) {
+        return;
+      }
+      if (sorted) {
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+      } else {
+        values[index] = values[--size];
+      }
+    }
+
+    private int linearSearch(long value) {
+      for (int i = 0; i < size; i++) {
+        if (values[i] == value) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    void sort() {
+      if (!sorted) {
+        Arrays.sort(values, 0, size);
+        sorted = true;
+      }
+    }
+
+    /**
+     * @return The index of the first value not smaller than the given one, only valid once sorted.
+     */
+    int indexOf(long value) {
+      int index = Arrays.binarySearch(values, 0, size, value);
+      return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Gallops forward from an index to the first value not smaller than the given one, only valid once sorted.
+     */
+    int seek(long value, int from) {
+      if (from >= size || values[from] >= value) {
+        return from;
+      }
+      int step = 1;
+      while (from + step < size && values[from + step] < value) {
+        step <<= 1;
+      }
+      int index = Arrays.binarySearch(values, from + (step >> 1) + 1, Math.min(from + step, size), value);
+      return index >= 0 ? index : -index - 1;
+    }
+
+    long get(int index) {
+      return values[index];
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void forEach(LongConsumer consumer) {
+      for (int i = 0; i < size; i++) {
+        consumer.accept(values[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package de.thm.mni.pi2.musicService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts the assignments of the songs in sliding time windows, for the trending songs, without a GROUP BY over user_songs.
+ * <p>
+ * Each window is split into {@link #BUCKETS} buckets, each holding a count-min sketch of the assignments in its time span.
+ * The sum of the buckets in the window is kept in a sketch of its own: an assignment is added to the current bucket and
+ * to the sum, a bucket leaving the window is subtracted from the sum. Next to the sum, each window tracks the
+ * {@link #MAX_RESULTS} songs with the highest estimated counts, so the trending songs are read in O(K).
+ * The memory is fixed by the size of the sketches, independent of the number of songs and assignments.
+ * <p>
+ * The counts are estimates: the sketches may overestimate a count, and a song only enters the top songs
+ * when it is assigned.
+ */
+public class TrendingCounter {
+  public static final int MAX_RESULTS = 50;
+  public static final int BUCKETS = 60;
+  private static final int DEPTH = 4;
+  private static final int WIDTH_BITS = 10;
+  private static final int WIDTH = 1 << WIDTH_BITS;
+  private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+  /**
+   * The supported windows by name, in milliseconds.
+   */
+  public static final Map<String, Long> WINDOWS = new TreeMap<>(Map.of(
+    "15m", 15 * 60_000L,
+    "1h", 60 * 60_000L,
+    "24h", 24 * 60 * 60_000L,
+    "7d", 7 * 24 * 60 * 60_000L));
+
+  /**
+   * A song with its estimated number of assignments in the window.
+   */
+  public record Count(int songId, long count) {
+  }
+
+  private final LongSupplier clock;
+  private final Map<String, Window> windows = new TreeMap<>();
+
+  public TrendingCounter() {
+    this(System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock The source of the current time in milliseconds.
+   */
+  public TrendingCounter(LongSupplier clock) {
+    this.clock = clock;
+    clear();
+  }
+
+  /**
+   * Counts an assignment made now.
+   */
+  public synchronized void record(int songId) {
+    record(songId, clock.getAsLong());
+  }
+
+  /**
+   * Counts an assignment made at the given time, e.g. when loading the assignments after a restart.
+   * Assignments older than a window are not counted in it.
+   */
+  public synchronized void record(int songId, long millis) {
+    long now = clock.getAsLong();
+    for (Window window : windows.values()) {
+      window.advance(now);
+      window.record(songId, Math.min(millis, now));
+    }
+  }
+
+  /**
+   * Stops reporting a deleted song. Its assignments stay in the sketches until they leave the windows.
+   */
+  public synchronized void removeSong(int songId) {
+    for (Window window : windows.values()) {
+      window.top.remove(songId);
+    }
+  }
+
+  /**
+   * @param window The name of the window, one of {@link #WINDOWS}.
+   * @param limit  The maximum number of songs.
+   * @return The songs assigned most often in the window, most often first.
+   */
+  public synchronized List<Count> top(String window, int limit) {
+    Window counts = windows.get(window);
+    if (counts == null) {
+      throw new IllegalArgumentException("Invalid window, must be one of " + WINDOWS.keySet());
+    }
+    counts.advance(clock.getAsLong());
+    return counts.top.sorted(limit);
+  }
+
+  public synchronized void clear() {
+    windows.clear();
+    WINDOWS.forEach((name, millis) -> windows.put(name, new Window(millis / BUCKETS)));
+  }
+
+  /**
+   * The buckets of one window as a ring, with the sketch of their sum and the top songs.
+   */
+  private static class Window {
+    private final long bucketMillis;
+    private final int[][] buckets = new int[BUCKETS][];
+    private final int[] sum = new int[DEPTH * WIDTH];
+    private final TopSongs top = new TopSongs();
+    // the number of the newest bucket since the epoch
+    private long current = Long.MIN_VALUE;
+
+    Window(long bucketMillis) {
+      this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Moves the window forward to the given time, subtracting the buckets that leave it.
+     */
+    void advance(long now) {
+      long bucket = now / bucketMillis;
+      if (bucket <= current) {
+        return;
+      }
+      if (current == Long.MIN_VALUE || bucket - current >= BUCKETS) {
+        Arrays.fill(buckets, null);
+        Arrays.fill(sum, 0);
+      } else {
+        for (long expired = current + 1; expired <= bucket; expired++) {
+          int[] sketch = buckets[slot(expired)];
+          if (sketch != null) {
+            for (int i = 0; i < sum.length; i++) {
+              sum[i] -= sketch[i];
+            }
+            buckets[slot(expired)] = null;
+          }
+        }
+      }
+      current = bucket;
+      top.refresh(this);
+    }
+
+    void record(int songId, long millis) {
+      long bucket = millis / bucketMillis;
+      if (bucket <= current - BUCKETS) {
+        return;
+      }
+      int slot = slot(bucket);
+      if (buckets[slot] == null) {
+        // allocated on first use, so quiet windows cost no memory
+        buckets[slot] = new int[DEPTH * WIDTH];
+      }
+      int[] sketch = buckets[slot];
+      for (int row = 0; row < DEPTH; row++) {
+        int cell = cell(row, songId);
+        sketch[cell]++;
+        sum[cell]++;
+      }
+      top.offer(songId, estimate(songId));
+    }
+
+    long estimate(int songId) {
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++) {
+        estimate = Math.min(estimate, sum[cell(row, songId)]);
+      }
+      return estimate;
+    }
+
+    private static int slot(long bucket) {
+      return (int) Math.floorMod(bucket, (long) BUCKETS);
+    }
+
+    private static int cell(int row, int songId) {
+      long hash = (songId + 1L) * SEEDS[row];
+      return row * WIDTH + (int) (hash >>> (64 - WIDTH_BITS));
+    }
+  }
+
+  /**
+   * The songs with the highest estimated counts, in parallel arrays of at most {@link #MAX_RESULTS} entries.
+   * Linear scans over this few entries are cheaper than keeping a heap and an index into it.
+   */
+  private static class TopSongs {
+    private final int[] ids = new int[MAX_RESULTS];
+    private final long[] counts = new long[MAX_RESULTS];
+    private int size;
+
+    void offer(int songId, long count) {
+      int min = -1;
+      for (int i = 0; i < size; i++) {
+        if (ids[i] == songId) {
+          counts[i] = count;
+          return;
+        }
+        if (min < 0 || counts[i] < counts[min]) {
+          min = i;
+        }
+      }
+      if (size < MAX_RESULTS) {
+        ids[size] = songId;
+        counts[size++] = count;
+      } else if (count > counts[min]) {
+        ids[min] = songId;
+        counts[min] = count;
+      }
+    }
+
+    void remove(int songId) {
+      for (int i = 0; i < size; i++) {
+        if (ids[i] == songId) {
+          ids[i] = ids[--size];
+          counts[i] = counts[size];
+          return;
+        }
+      }
+    }
+
+    /**
+     * Updates the counts after buckets have left the window, dropping the songs no longer assigned in it.
+     */
+    void refresh(Window window) {
+      for (int i = size - 1; i >= 0; i--) {
+        counts[i] = window.estimate(ids[i]);
+        if (counts[i] == 0) {
+          ids[i] = ids[--size];
+          counts[i] = counts[size];
+        }
+      }
+    }
+
+    List<Count> sorted(int limit) {
+      List<Count> sorted = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        sorted.add(new Count(ids[i], counts[i]));
+      }
+      sorted.sort((a, b) -> a.count() != b.count() ? Long.compare(b.count(), a.count()) : Integer.compare(a.songId(), b.songId()));
+      return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+  }
+}
@@ -3,20 +3,25 @@ use pi2;
 create table users (
                         id int auto_increment primary key,
                         name varchar(64) NOT NULL,
-                        email varchar(64) NOT NULL
+                        email varchar(64) NOT NULL,
+                        constraint uq_users_name unique (name)
 );
 
 create table songs (
                      id int auto_increment primary key,
                      name varchar(64),
                      genre varchar(64),
-                     timestamp timestamp default current_timestamp
+                     timestamp timestamp default current_timestamp,
+                     constraint uq_songs_name_genre unique (name, genre)
 );
 
 create table user_songs (
                           song_id int not null,
                           user_id int not null,
+                          timestamp timestamp default current_timestamp,
                           primary key (song_id, user_id),
-                          foreign key (song_id) references songs(id) on delete cascade ,
-                          foreign key (user_id) references users(id) on delete cascade
+                          constraint fk_user_songs_song foreign key (song_id) references songs(id) on delete cascade ,
+                          constraint fk_user_songs_user foreign key (user_id) references users(id) on delete cascade
 );
+
+create index idx_user_songs_user on user_songs (user_id, song_id);
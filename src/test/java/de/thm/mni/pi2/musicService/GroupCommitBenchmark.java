@@ -0,0 +1,126 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of single assignments and removals (PUT and DELETE /users/:userId/songs/:songId) committed
+ * one by one against group commits. Runs against a file-based H2 database, so every commit writes to disk.
+ * Run with ./mvnw test -Pbenchmark -Dtest=GroupCommitBenchmark, the load is set with -Dbenchmark.clients and
+ * -Dbenchmark.duration (seconds).
+ */
+@Tag("benchmark")
+public class GroupCommitBenchmark {
+  private static final int PORT = 8896;
+  private static final int SONGS = 100;
+  private static final int CLIENTS = Integer.getInteger("benchmark.clients", 64);
+  private static final int DURATION = Integer.getInteger("benchmark.duration", 10);
+
+  @Test
+  void single_vs_group_commit() throws Exception {
+    double single = run(false);
+    double grouped = run(true);
+    System.out.printf("%d clients assigning and removing songs: single commits %.0f writes/s, group commit %.0f writes/s (%.1fx)%n",
+      CLIENTS, single, grouped, grouped / single);
+  }
+
+  /**
+   * Starts the service on a new database and lets every client assign and remove songs of its own user.
+   *
+   * @return The writes per second.
+   */
+  private double run(boolean groupCommit) throws Exception {
+    String url = "jdbc:h2:file:" + Path.of("target", "benchmark", UUID.randomUUID().toString()).toAbsolutePath()
+      + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE";
+    JsonObject db = TestMainVerticle.createDatabase(url).put("maxPoolSize", 8);
+    try (Connection connection = DriverManager.getConnection(url, "sa", "")) {
+      seed(connection);
+    }
+    Vertx vertx = Vertx.vertx();
+    try {
+      WebClient client = WebClient.create(vertx, new WebClientOptions(), new PoolOptions().setHttp1MaxSize(CLIENTS));
+      JsonObject config = new JsonObject()
+        .put("http.port", PORT)
+        .put("metrics.port", 0)
+        .put("groupCommit.enabled", groupCommit)
+        .put("db", db);
+      vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+        .toCompletionStage().toCompletableFuture().get();
+
+      AtomicInteger writes = new AtomicInteger();
+      AtomicInteger failures = new AtomicInteger();
+      long deadline = System.nanoTime() + DURATION * 1_000_000_000L;
+      long start = System.nanoTime();
+      List<Future<Void>> clients = new ArrayList<>();
+      for (int user = 1; user <= CLIENTS; user++) {
+        Promise<Void> finished = Promise.promise();
+        write(client, user, 1, true, deadline, writes, failures, finished);
+        clients.add(finished.future());
+      }
+      Future.all(clients).toCompletionStage().toCompletableFuture().get();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      assertEquals(0, failures.get());
+      return writes.get() / seconds;
+    } finally {
+      vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+  }
+
+  /**
+   * Assigns a song to the user and removes it again, then goes on with the next song, until the deadline has passed.
+   */
+  private void write(WebClient client, int user, int song, boolean assign, long deadline,
+                     AtomicInteger writes, AtomicInteger failures, Promise<Void> finished) {
+    if (System.nanoTime() > deadline) {
+      finished.complete();
+      return;
+    }
+    String path = "/users/" + user + "/songs/" + song;
+    (assign ? client.put(PORT, "localhost", path) : client.delete(PORT, "localhost", path)).send()
+      .onComplete(result -> {
+        if (result.failed() || result.result().statusCode() >= 300) {
+          failures.incrementAndGet();
+        } else {
+          writes.incrementAndGet();
+        }
+        write(client, user, assign ? song : song % SONGS + 1, !assign, deadline, writes, failures, finished);
+      });
+  }
+
+  private static void seed(Connection connection) throws Exception {
+    try (PreparedStatement users = connection.prepareStatement("INSERT INTO users (name, email) VALUES (?, ?)");
+         PreparedStatement songs = connection.prepareStatement("INSERT INTO songs (name, genre) VALUES (?, ?)")) {
+      for (int i = 1; i <= CLIENTS; i++) {
+        users.setString(1, "user" + i);
+        users.setString(2, "user" + i + "@example.com");
+        users.addBatch();
+      }
+      users.executeBatch();
+      for (int i = 1; i <= SONGS; i++) {
+        songs.setString(1, "song" + i);
+        songs.setString(2, "Pop");
+        songs.addBatch();
+      }
+      songs.executeBatch();
+    }
+  }
+}
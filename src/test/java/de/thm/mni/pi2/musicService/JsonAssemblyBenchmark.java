@@ -0,0 +1,113 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.impl.RowBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the CPU-bound paths between the database and the wire: grouping the joined rows into
+ * nested JSON objects and encoding the response. The rows are synthetic, so no database is involved.
+ * Run with ./mvnw test -Pjmh, which also reports the allocation rate (-prof gc).
+ * The size is set with e.g. -Djmh.args="-p users=1000 -p songsPerUser=10 -prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class JsonAssemblyBenchmark {
+  private static final String[] USER_COLUMNS = {"user_id", "user_name", "user_email", "song_id", "song_name"};
+  private static final String[] SONG_COLUMNS = {"id", "name", "genre", "timestamp"};
+
+  @Param("10000")
+  public int users;
+
+  @Param("50")
+  public int songsPerUser;
+
+  private List<Row> userRows;
+  private List<Row> songRows;
+  private JsonObject assembledUsers;
+
+  @Setup
+  public void setup() {
+    userRows = new ArrayList<>(users * songsPerUser);
+    for (int user = 1; user <= users; user++) {
+      for (int song = 1; song <= songsPerUser; song++) {
+        int songId = (user * 31 + song * 17) % (users * songsPerUser) + 1;
+        userRows.add(new SyntheticRow(USER_COLUMNS, user, "user " + user, "user" + user + "@example.org", songId, "song " + songId));
+      }
+    }
+    songRows = new ArrayList<>(users * songsPerUser);
+    LocalDateTime timestamp = LocalDateTime.of(2024, 1, 1, 12, 0);
+    for (int song = 1; song <= users * songsPerUser; song++) {
+      songRows.add(new SyntheticRow(SONG_COLUMNS, song, "song " + song, "Pop", timestamp));
+    }
+    assembledUsers = MusicRepository.assembleUsers(userRows, Fields.ALL);
+  }
+
+  @Benchmark
+  public JsonObject assembleUsers() {
+    return MusicRepository.assembleUsers(userRows, Fields.ALL);
+  }
+
+  @Benchmark
+  public JsonObject assembleSongs() {
+    return MusicRepository.assembleSongs(songRows, Fields.ALL);
+  }
+
+  @Benchmark
+  public String encodeUsers() {
+    return MainVerticle.encode(new JsonObject().put("users", assembledUsers), false);
+  }
+
+  @Benchmark
+  public String assembleAndEncodeUsers() {
+    return MainVerticle.encode(new JsonObject().put("users", MusicRepository.assembleUsers(userRows, Fields.ALL)), false);
+  }
+
+  /**
+   * Row looking up its columns by name with a linear scan, like the rows of the JDBC client.
+   */
+  private static class SyntheticRow extends RowBase {
+    private final String[] columns;
+
+    SyntheticRow(String[] columns, Object... values) {
+      super(Arrays.asList(values));
+      this.columns = columns;
+    }
+
+    @Override
+    public String getColumnName(int pos) {
+      return pos < columns.length ? columns[pos] : null;
+    }
+
+    @Override
+    public int getColumnIndex(String column) {
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i].equals(column)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * End-to-end load test: starts the service against an in-memory H2 database in MySQL mode, seeds it and runs
+ * a mix of the requests from musicService.http (create, assign, list, delete) with a fixed number of concurrent clients.
+ * Reports requests per second and the p50/p99/p999 latency per request type.
+ * <p>
+ * Run with ./mvnw test -Pbenchmark -Dtest=MixedWorkloadBenchmark. The dataset and the load are set with
+ * -Dload.users, -Dload.songs, -Dload.assignments, -Dload.concurrency, -Dload.instances, -Dload.warmup and -Dload.duration
+ * (seconds). With -Dload.minRps and -Dload.maxP99 (milliseconds) the run fails if the throughput drops below
+ * or the p99 latency of any request type rises above the limit, so CI catches regressions.
+ */
+@Tag("benchmark")
+public class MixedWorkloadBenchmark {
+  private static final int PORT = 8897;
+  private static final int USERS = Integer.getInteger("load.users", 1000);
+  private static final int SONGS = Integer.getInteger("load.songs", 2000);
+  private static final int ASSIGNMENTS = Integer.getInteger("load.assignments", 20000);
+  private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 32);
+  private static final int INSTANCES = Integer.getInteger("load.instances", Runtime.getRuntime().availableProcessors());
+  private static final int WARMUP = Integer.getInteger("load.warmup", 5);
+  private static final int DURATION = Integer.getInteger("load.duration", 20);
+  private static final Integer MIN_RPS = Integer.getInteger("load.minRps");
+  private static final Integer MAX_P99 = Integer.getInteger("load.maxP99");
+
+  /**
+   * The request types of the workload with their share of the requests.
+   */
+  private enum Operation {
+    GET_USER(20),
+    GET_USER_SONGS(20),
+    LIST_USERS(10),
+    LIST_SONGS(10),
+    CREATE_USER(5),
+    CREATE_SONG(5),
+    ASSIGN_SONG(15),
+    UNASSIGN_SONG(10),
+    DELETE_USER(5);
+
+    private final int weight;
+
+    Operation(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  private Vertx vertx;
+  private WebClient client;
+
+  // only touched on the context driving the load
+  private final SplittableRandom random = new SplittableRandom(42);
+  private final Map<Operation, Recorder> recorders = new LinkedHashMap<>();
+  private final Deque<Integer> createdUsers = new ArrayDeque<>();
+  private int serverErrors;
+  private int created;
+  private boolean measuring;
+  private long deadline;
+
+  @BeforeEach
+  void deploy_verticle() throws Exception {
+    JsonObject db = TestMainVerticle.createDatabase().put("maxPoolSize", 16);
+    try (Connection connection = DriverManager.getConnection(db.getString("url"), "sa", "")) {
+      seed(connection);
+    }
+    vertx = Vertx.vertx();
+    client = WebClient.create(vertx, new WebClientOptions(), new PoolOptions().setHttp1MaxSize(CONCURRENCY));
+    JsonObject config = new JsonObject()
+      .put("http.port", PORT)
+      .put("metrics.port", 0)
+      .put("instances", INSTANCES)
+      .put("db", db);
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .toCompletionStage().toCompletableFuture().get();
+  }
+
+  @AfterEach
+  void close_vertx() throws Exception {
+    vertx.close().toCompletionStage().toCompletableFuture().get();
+  }
+
+  @Test
+  void mixed_workload() throws Exception {
+    Context context = vertx.getOrCreateContext();
+    run(context, WARMUP).toCompletionStage().toCompletableFuture().get();
+    for (Operation operation : Operation.values()) {
+      recorders.put(operation, new Recorder());
+    }
+    measuring = true;
+    long start = System.nanoTime();
+    run(context, DURATION).toCompletionStage().toCompletableFuture().get();
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    long total = recorders.values().stream().mapToLong(recorder -> recorder.size).sum();
+    double rps = total / seconds;
+    System.out.printf("%d users, %d songs, %d assignments, %d clients, %d instances, %d s%n",
+      USERS, SONGS, ASSIGNMENTS, CONCURRENCY, INSTANCES, DURATION);
+    System.out.printf("%-15s %9s %9s %9s %9s%n", "request", "count", "p50 ms", "p99 ms", "p999 ms");
+    double worstP99 = 0;
+    for (Map.Entry<Operation, Recorder> entry : recorders.entrySet()) {
+      Recorder recorder = entry.getValue();
+      recorder.sort();
+      worstP99 = Math.max(worstP99, recorder.percentile(0.99));
+      System.out.printf("%-15s %9d %9.2f %9.2f %9.2f%n", entry.getKey(), recorder.size,
+        recorder.percentile(0.5), recorder.percentile(0.99), recorder.percentile(0.999));
+    }
+    System.out.printf("%.0f requests/s, %d server errors%n", rps, serverErrors);
+
+    assertEquals(0, serverErrors);
+    if (MIN_RPS != null) {
+      assertTrue(rps >= MIN_RPS, "throughput " + Math.round(rps) + " requests/s is below " + MIN_RPS);
+    }
+    if (MAX_P99 != null) {
+      assertTrue(worstP99 <= MAX_P99, "p99 latency " + worstP99 + " ms is above " + MAX_P99);
+    }
+  }
+
+  /**
+   * Runs the concurrent clients for the given number of seconds.
+   */
+  private Future<Void> run(Context context, int seconds) {
+    Promise<Void> done = Promise.promise();
+    context.runOnContext(v -> {
+      deadline = System.nanoTime() + seconds * 1_000_000_000L;
+      List<Future<Void>> clients = new ArrayList<>(CONCURRENCY);
+      for (int i = 0; i < CONCURRENCY; i++) {
+        Promise<Void> finished = Promise.promise();
+        next(finished);
+        clients.add(finished.future());
+      }
+      Future.all(clients).<Void>mapEmpty().onComplete(done);
+    });
+    return done.future();
+  }
+
+  /**
+   * Sends the next request of one client, until the deadline has passed.
+   */
+  private void next(Promise<Void> finished) {
+    if (System.nanoTime() > deadline) {
+      finished.complete();
+      return;
+    }
+    Operation operation = pick();
+    long start = System.nanoTime();
+    send(operation).onComplete(result -> {
+      if (measuring) {
+        recorders.get(operation).add(System.nanoTime() - start);
+      }
+      if (result.failed() || result.result().statusCode() >= 500) {
+        serverErrors++;
+      } else if (operation == Operation.CREATE_USER && result.result().statusCode() == 201) {
+        String message = result.result().bodyAsJsonObject().getString("success");
+        createdUsers.add(Integer.valueOf(message.substring(message.lastIndexOf(' ') + 1)));
+      }
+      next(finished);
+    });
+  }
+
+  private Future<HttpResponse<Buffer>> send(Operation operation) {
+    switch (operation) {
+      case GET_USER:
+        return request(HttpMethod.GET, "/users/" + randomUser()).send();
+      case GET_USER_SONGS:
+        return request(HttpMethod.GET, "/users/" + randomUser() + "/songs?limit=50").send();
+      case LIST_USERS:
+        return request(HttpMethod.GET, "/users?limit=100&after=" + random.nextInt(USERS)).send();
+      case LIST_SONGS:
+        return request(HttpMethod.GET, "/songs?limit=100&after=" + random.nextInt(SONGS)).send();
+      case CREATE_USER:
+        return request(HttpMethod.POST, "/users").sendJsonObject(new JsonObject()
+          .put("username", "load user " + created).put("email", "load" + created++ + "@example.org"));
+      case CREATE_SONG:
+        return request(HttpMethod.POST, "/songs").sendJsonObject(new JsonObject()
+          .put("name", "load song " + created++).put("genre", "Pop"));
+      case ASSIGN_SONG:
+        return request(HttpMethod.PUT, "/users/" + randomUser() + "/songs/" + randomSong()).send();
+      case UNASSIGN_SONG:
+        return request(HttpMethod.DELETE, "/users/" + randomUser() + "/songs/" + randomSong()).send();
+      default:
+        // deletes only users created during the run, so the seeded dataset keeps its size
+        Integer id = createdUsers.poll();
+        return request(HttpMethod.DELETE, "/users/" + (id == null ? Integer.MAX_VALUE : id)).send();
+    }
+  }
+
+  private HttpRequest<Buffer> request(HttpMethod method, String uri) {
+    return client.request(method, PORT, "localhost", uri);
+  }
+
+  private Operation pick() {
+    int total = 0;
+    for (Operation operation : Operation.values()) {
+      total += operation.weight;
+    }
+    int choice = random.nextInt(total);
+    for (Operation operation : Operation.values()) {
+      choice -= operation.weight;
+      if (choice < 0) {
+        return operation;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private int randomUser() {
+    return random.nextInt(USERS) + 1;
+  }
+
+  private int randomSong() {
+    return random.nextInt(SONGS) + 1;
+  }
+
+  private void seed(Connection connection) throws Exception {
+    try (PreparedStatement users = connection.prepareStatement("INSERT INTO users (name, email) VALUES (?, ?)");
+         PreparedStatement songs = connection.prepareStatement("INSERT INTO songs (name, genre) VALUES (?, ?)");
+         PreparedStatement assignments = connection.prepareStatement("INSERT INTO user_songs (user_id, song_id) VALUES (?, ?)")) {
+      for (int i = 1; i <= USERS; i++) {
+        users.setString(1, "user " + i);
+        users.setString(2, "user" + i + "@example.org");
+        users.addBatch();
+      }
+      users.executeBatch();
+      for (int i = 1; i <= SONGS; i++) {
+        songs.setString(1, "song " + i);
+        songs.setString(2, i % 2 == 0 ? "Pop" : "HipHop");
+        songs.addBatch();
+      }
+      songs.executeBatch();
+      // distinct pairs: walks the users for each song
+      for (int i = 0; i < Math.min(ASSIGNMENTS, USERS * SONGS); i++) {
+        assignments.setInt(1, i % USERS + 1);
+        assignments.setInt(2, i / USERS + 1);
+        assignments.addBatch();
+      }
+      assignments.executeBatch();
+    }
+  }
+
+  /**
+   * Collects latencies in nanoseconds and reads percentiles in milliseconds once sorted.
+   */
+  private static class Recorder {
+    private long[] values = new long[1024];
+    private int size;
+
+    void add(long nanos) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = nanos;
+    }
+
+    void sort() {
+      Arrays.sort(values, 0, size);
+    }
+
+    double percentile(double p) {
+      if (size == 0) {
+        return 0;
+      }
+      return values[Math.max(0, (int) Math.ceil(p * size) - 1)] / 1e6;
+    }
+  }
+}
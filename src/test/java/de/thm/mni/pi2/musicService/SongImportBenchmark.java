@@ -0,0 +1,74 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of importing songs one request at a time with POST /songs against POST /songs/bulk.
+ * Run with ./mvnw test -Pbenchmark, the number of songs can be set with -Dbenchmark.songs.
+ */
+@Tag("benchmark")
+public class SongImportBenchmark {
+  private static final int PORT = 8899;
+  private static final int SONGS = Integer.getInteger("benchmark.songs", 5000);
+
+  private Vertx vertx;
+  private WebClient client;
+
+  @BeforeEach
+  void deploy_verticle() throws Exception {
+    vertx = Vertx.vertx();
+    client = WebClient.create(vertx);
+    JsonObject config = new JsonObject()
+      .put("http.port", PORT)
+      .put("metrics.port", 0)
+      .put("db", TestMainVerticle.createDatabase().put("maxPoolSize", 8));
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .toCompletionStage().toCompletableFuture().get();
+  }
+
+  @AfterEach
+  void close_vertx() throws Exception {
+    vertx.close().toCompletionStage().toCompletableFuture().get();
+  }
+
+  @Test
+  void one_at_a_time_vs_bulk() throws Exception {
+    long start = System.nanoTime();
+    importOneByOne(0).toCompletionStage().toCompletableFuture().get();
+    double single = SONGS / ((System.nanoTime() - start) / 1e9);
+
+    JsonArray songs = new JsonArray();
+    for (int i = 0; i < SONGS; i++) {
+      songs.add(new JsonObject().put("name", "bulk " + i).put("genre", "Pop"));
+    }
+    start = System.nanoTime();
+    JsonObject result = client.post(PORT, "localhost", "/songs/bulk").sendJson(songs)
+      .toCompletionStage().toCompletableFuture().get()
+      .bodyAsJsonObject();
+    double bulk = SONGS / ((System.nanoTime() - start) / 1e9);
+
+    assertEquals(SONGS, result.getInteger("created"));
+    System.out.printf("Imported %d songs: one at a time %.0f songs/s, bulk %.0f songs/s (%.1fx)%n",
+      SONGS, single, bulk, bulk / single);
+  }
+
+  private Future<Void> importOneByOne(int i) {
+    if (i == SONGS) {
+      return Future.succeededFuture();
+    }
+    return client.post(PORT, "localhost", "/songs")
+      .sendJsonObject(new JsonObject().put("name", "single " + i).put("genre", "Pop"))
+      .compose(response -> importOneByOne(i + 1));
+  }
+}
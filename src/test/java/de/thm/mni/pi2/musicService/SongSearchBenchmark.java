@@ -0,0 +1,57 @@
+package de.thm.mni.pi2.musicService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the type-ahead search over a synthetic catalog, with queries from a single letter
+ * up to several terms. Run with ./mvnw test -Pjmh -Djmh.args="SongSearchBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SongSearchBenchmark {
+  private static final String[] WORDS = {"love", "night", "hotel", "room", "service", "summer", "rain", "blue", "dance",
+    "heart", "fire", "dream", "city", "light", "road", "home", "time", "star", "river", "gold"};
+  private static final String[] GENRES = {"Pop", "Rock", "HipHop", "Jazz", "Blues", "Electronic"};
+
+  @Param("1000000")
+  public int songs;
+
+  @Param({"l", "lo", "love", "hotel ro", "summer night dre"})
+  public String query;
+
+  private SongSearchIndex index;
+
+  @Setup
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(42);
+    index = new SongSearchIndex();
+    for (int id = 1; id <= songs; id++) {
+      String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " "
+        + WORDS[random.nextInt(WORDS.length)] + " " + id;
+      index.addSong(id, name, GENRES[random.nextInt(GENRES.length)]);
+    }
+  }
+
+  @Benchmark
+  public List<SongSearchIndex.Song> search() {
+    return index.search(query, 10);
+  }
+}
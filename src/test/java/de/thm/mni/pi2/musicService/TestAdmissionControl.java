@@ -0,0 +1,161 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static de.thm.mni.pi2.musicService.TestMainVerticle.PORT;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.createDatabase;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.seed;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestAdmissionControl {
+
+  @Test
+  void queues_and_rejects(Vertx vertx, VertxTestContext testContext) {
+    AdmissionControl admission = new AdmissionControl(vertx, 2, 2, false, 1, 250);
+    AdmissionControl.Ticket first = admission.request();
+    AdmissionControl.Ticket second = admission.request();
+    AdmissionControl.Ticket waiting = admission.request();
+    AdmissionControl.Ticket leaving = admission.request();
+    AdmissionControl.Ticket rejected = admission.request();
+    assertTrue(first.admitted().succeeded());
+    assertTrue(second.admitted().succeeded());
+    assertFalse(waiting.admitted().isComplete());
+    assertInstanceOf(OverloadedException.class, rejected.admitted().cause());
+    assertEquals(2, admission.inFlight());
+    assertEquals(2, admission.queued());
+    assertEquals(1, admission.rejected());
+
+    // a request released while waiting, e.g. because its client disconnected, leaves the queue
+    leaving.release(false);
+    assertEquals(1, admission.queued());
+    // releasing twice frees one place only
+    first.release(false);
+    first.release(false);
+    assertEquals(2, admission.inFlight());
+    assertEquals(0, admission.queued());
+    leaving.admitted().onComplete(testContext.failing(e -> waiting.admitted().onComplete(testContext.succeeding(v -> {
+      testContext.verify(() -> assertInstanceOf(OverloadedException.class, e));
+      second.release(false);
+      waiting.release(false);
+      testContext.verify(() -> assertEquals(0, admission.inFlight()));
+      testContext.completeNow();
+    }))));
+  }
+
+  @Test
+  void adaptive_limit(Vertx vertx) {
+    AdmissionControl slow = new AdmissionControl(vertx, 10, 0, true, 2, 0);
+    for (int round = 0; round < 2; round++) {
+      AdmissionControl.Ticket[] tickets = {slow.request(), slow.request(), slow.request()};
+      for (AdmissionControl.Ticket ticket : tickets) {
+        ticket.release(false);
+      }
+    }
+    // lowered once per round, not once per slow request
+    assertEquals(8, slow.limit());
+    for (int round = 0; round < 50; round++) {
+      slow.request().release(false);
+    }
+    assertEquals(2, slow.limit());
+
+    AdmissionControl failing = new AdmissionControl(vertx, 4, 0, true, 1, 1_000);
+    failing.request().release(true);
+    assertEquals(3, failing.limit());
+    // raised while at least half of the limit is in use, up to the configured limit
+    for (int round = 0; round < 5; round++) {
+      AdmissionControl.Ticket first = failing.request();
+      AdmissionControl.Ticket second = failing.request();
+      first.release(false);
+      second.release(false);
+    }
+    assertEquals(4, failing.limit());
+  }
+
+  @Test
+  void admission_control(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int limitedPort = PORT;
+    WebClient client = WebClient.create(vertx);
+    JsonObject db = createDatabase();
+    JsonObject config = new JsonObject()
+      .put("http.port", limitedPort)
+      .put("metrics.port", 0)
+      .put("admission.limit", 1)
+      .put("admission.queueSize", 1)
+      .put("admission.deadline", 300)
+      .put("db", db);
+    MainVerticle limited = new MainVerticle();
+    // a lock held by another connection stands in for a slow database
+    Connection locking = DriverManager.getConnection(db.getString("url"), "sa", "");
+    vertx.deployVerticle(limited, new DeploymentOptions().setConfig(config))
+      .compose(id -> seed(client, limitedPort))
+      .compose(v -> {
+        testContext.verify(() -> {
+          locking.setAutoCommit(false);
+          try (Statement statement = locking.createStatement()) {
+            statement.execute("UPDATE users SET email = 'locked@mustermann.de' WHERE id = 1");
+          }
+        });
+        return Future.all(IntStream.range(0, 3)
+          .mapToObj(i -> client.delete(limitedPort, "localhost", "/users/1").send())
+          .collect(Collectors.toList()));
+      })
+      .compose(deletes -> {
+        testContext.verify(() -> {
+          // one admitted and one waiting request run into the deadline, the third does not fit into the queue
+          List<String> errors = new ArrayList<>();
+          for (int i = 0; i < 3; i++) {
+            HttpResponse<Buffer> delete = deletes.resultAt(i);
+            assertEquals(503, delete.statusCode());
+            assertEquals("1", delete.getHeader("Retry-After"));
+            errors.add(delete.bodyAsJsonObject().getString("error"));
+          }
+          assertEquals(1, Collections.frequency(errors, "Too many requests, try again later"));
+          assertEquals(2, Collections.frequency(errors, "Deadline of 300 ms exceeded"));
+        });
+        return client.get(limited.metricsPort(), "localhost", "/metrics").send();
+      })
+      .compose(metrics -> {
+        testContext.verify(() -> {
+          // the admitted request keeps its place while its statement is still waiting for the lock
+          assertTrue(metrics.bodyAsString().contains("admission_in_flight 1\n"));
+          locking.rollback();
+          locking.close();
+        });
+        return client.get(limitedPort, "localhost", "/songs").send();
+      })
+      .compose(songs -> {
+        // the places of the requests answered after the deadline have been released
+        testContext.verify(() -> assertEquals(200, songs.statusCode()));
+        return client.get(limited.metricsPort(), "localhost", "/metrics").send();
+      })
+      .onComplete(testContext.succeeding(metrics -> testContext.verify(() -> {
+        String body = metrics.bodyAsString();
+        assertTrue(body.contains("admission_limit 1\n"));
+        assertTrue(body.contains("admission_rejected_total 1\n"));
+        testContext.completeNow();
+      })));
+  }
+}
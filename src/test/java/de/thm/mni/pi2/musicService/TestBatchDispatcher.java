@@ -0,0 +1,243 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.h2.api.Trigger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static de.thm.mni.pi2.musicService.TestMainVerticle.PORT;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.config;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.countAssignments;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.createDatabase;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.execute;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.seed;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestBatchDispatcher {
+  private WebClient client;
+  private JsonObject database;
+
+  @BeforeEach
+  void deploy_verticle(Vertx vertx, VertxTestContext testContext) throws Exception {
+    client = WebClient.create(vertx);
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config(database = createDatabase())))
+      .onComplete(testContext.succeeding(id -> testContext.completeNow()));
+  }
+
+  @Test
+  void batch_requests(Vertx vertx, VertxTestContext testContext) {
+    JsonArray requests = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/users")
+        .put("body", new JsonObject().put("username", "Erika").put("email", "erika@mustermann.de")))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/1"))
+      .add(new JsonObject().put("method", "GET").put("path", "/songs"))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/${0.id}/songs/1"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/${0.id}"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/99"));
+    JsonArray atomic = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/songs")
+        .put("body", new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/1/songs")
+        .put("body", new JsonObject().put("songIds", new JsonArray().add(1).add("${0.id}"))))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/2/songs/1"))
+      .add(new JsonObject().put("method", "GET").put("path", "/songs"));
+    JsonArray committed = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/users")
+        .put("body", new JsonObject().put("username", "Otto").put("email", "otto@mustermann.de")))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/${0.id}/songs/1"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/${0.id}"));
+    seed(client, PORT)
+      .compose(v -> client.post(PORT, "localhost", "/batch").sendJson(requests))
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          JsonArray responses = batch.bodyAsJsonObject().getJsonArray("responses");
+          assertEquals(List.of(201, 200, 200, 201, 200, 404),
+            responses.stream().map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+          assertEquals(2, responses.getJsonObject(0).getJsonObject("body").getInteger("id"));
+          assertEquals("MaxMusti", responses.getJsonObject(1).getJsonObject("body").getString("name"));
+          assertTrue(responses.getJsonObject(4).getJsonObject("body").getJsonObject("songs").containsKey("1"));
+          assertNull(batch.bodyAsJsonObject().getValue("rolledBack"));
+        });
+        return client.post(PORT, "localhost", "/batch")
+          .sendJsonObject(new JsonObject().put("atomic", true).put("requests", atomic));
+      })
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          assertTrue(batch.bodyAsJsonObject().getBoolean("rolledBack"));
+          JsonArray responses = batch.bodyAsJsonObject().getJsonArray("responses");
+          // the read runs after the writes and is skipped with them
+          assertEquals(List.of(201, 200, 409, 424),
+            responses.stream().map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+        });
+        return client.get(PORT, "localhost", "/users/1").send();
+      })
+      .compose(user -> {
+        testContext.verify(() -> assertTrue(user.bodyAsJsonObject().getJsonObject("songs").isEmpty()));
+        return client.get(PORT, "localhost", "/songs").send();
+      })
+      .compose(songs -> {
+        testContext.verify(() -> assertEquals(1, songs.bodyAsJsonObject().getJsonObject("songs").size()));
+        // the rolled back song never reached the existence index either
+        return client.post(PORT, "localhost", "/songs")
+          .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop"));
+      })
+      .compose(song -> {
+        testContext.verify(() -> assertEquals(201, song.statusCode()));
+        return client.post(PORT, "localhost", "/batch").sendJsonObject(new JsonObject().put("atomic", true)
+          .put("requests", committed));
+      })
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          assertFalse(batch.bodyAsJsonObject().getBoolean("rolledBack"));
+          JsonArray responses = batch.bodyAsJsonObject().getJsonArray("responses");
+          assertEquals(List.of(201, 201, 200),
+            responses.stream().map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+          // the read ran after the commit and sees the writes
+          assertEquals("Otto", responses.getJsonObject(2).getJsonObject("body").getString("name"));
+          assertTrue(responses.getJsonObject(2).getJsonObject("body").getJsonObject("songs").containsKey("1"));
+        });
+        return client.post(PORT, "localhost", "/batch").sendJsonObject(new JsonObject().put("atomic", true)
+          .put("requests", new JsonArray()
+            .add(new JsonObject().put("method", "GET").put("path", "/users/1"))
+            .add(new JsonObject().put("method", "PUT").put("path", "/users/${0.id}/songs/1"))));
+      })
+      .compose(readBeforeWrite -> {
+        testContext.verify(() -> assertEquals(400, readBeforeWrite.statusCode()));
+        return client.post(PORT, "localhost", "/batch")
+          .sendJson(new JsonArray().add(new JsonObject().put("method", "GET").put("path", "/batch")));
+      })
+      .onComplete(testContext.succeeding(recursive -> testContext.verify(() -> {
+        assertEquals(400, recursive.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void atomic_batch_rolled_back_on_a_database_error(Vertx vertx, VertxTestContext testContext) {
+    JsonArray requests = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/users")
+        .put("body", new JsonObject().put("username", "Otto").put("email", "otto@mustermann.de")))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/${0.id}/songs/1"))
+      .add(new JsonObject().put("method", "DELETE").put("path", "/users/1/songs/1"));
+    seed(client, PORT)
+      .compose(v -> client.put(PORT, "localhost", "/users/1/songs/1").send())
+      .compose(v -> {
+        execute(database, "CREATE TRIGGER pinned BEFORE DELETE ON user_songs FOR EACH ROW CALL \"" + Pinned.class.getName() + "\"");
+        return client.post(PORT, "localhost", "/batch").sendJsonObject(new JsonObject().put("atomic", true).put("requests", requests));
+      })
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          JsonObject body = batch.bodyAsJsonObject();
+          assertTrue(body.getBoolean("rolledBack"));
+          assertEquals(List.of(201, 201, 500),
+            body.getJsonArray("responses").stream().map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+          // neither the user nor its assignment were committed
+          assertEquals(1, countAssignments(database));
+        });
+        return client.post(PORT, "localhost", "/users")
+          .sendJsonObject(new JsonObject().put("username", "Otto").put("email", "otto@mustermann.de"));
+      })
+      .onComplete(testContext.succeeding(user -> testContext.verify(() -> {
+        assertEquals(201, user.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  /**
+   * Rejects every delete from the table it is created on.
+   */
+  public static class Pinned implements Trigger {
+    @Override
+    public void fire(Connection connection, Object[] oldRow, Object[] newRow) throws SQLException {
+      throw new SQLException("Pinned");
+    }
+  }
+
+  @Test
+  void batch_sub_requests_admitted_one_by_one(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int limitedPort = PORT + 1;
+    JsonObject config = new JsonObject()
+      .put("http.port", limitedPort)
+      .put("metrics.port", 0)
+      .put("admission.limit", 1)
+      .put("admission.queueSize", 1)
+      // the read model would answer the reads before the next one asks for a place
+      .put("readModel.enabled", false)
+      .put("db", createDatabase());
+    JsonArray requests = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/users")
+        .put("body", new JsonObject().put("username", "Erika").put("email", "erika@mustermann.de")))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/${0.id}"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users?limit=1&fields=name"))
+      .add(new JsonObject().put("method", "GET").put("path", "/songs?stream=true"));
+    // one admitted, one queued, one rejected; the genres are answered from memory without admission
+    JsonArray reads = new JsonArray()
+      .add(new JsonObject().put("method", "GET").put("path", "/users"))
+      .add(new JsonObject().put("method", "GET").put("path", "/songs"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/1"))
+      .add(new JsonObject().put("method", "GET").put("path", "/genres"));
+    JsonArray atomic = new JsonArray()
+      .add(new JsonObject().put("method", "POST").put("path", "/songs")
+        .put("body", new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .add(new JsonObject().put("method", "PUT").put("path", "/users/1/songs/${0.id}"))
+      .add(new JsonObject().put("method", "GET").put("path", "/users/1"));
+    MainVerticle limited = new MainVerticle();
+    vertx.deployVerticle(limited, new DeploymentOptions().setConfig(config))
+      .compose(id -> client.post(limitedPort, "localhost", "/batch").sendJson(requests))
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          JsonArray responses = batch.bodyAsJsonObject().getJsonArray("responses");
+          assertEquals(List.of(201, 200, 200, 204),
+            responses.stream().map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+          assertEquals("Erika", responses.getJsonObject(1).getJsonObject("body").getString("name"));
+          assertEquals(new JsonObject().put("1", new JsonObject().put("name", "Erika")),
+            responses.getJsonObject(2).getJsonObject("body").getJsonObject("users"));
+          assertNull(responses.getJsonObject(3).getValue("body"));
+        });
+        return client.post(limitedPort, "localhost", "/batch").sendJson(reads);
+      })
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          assertEquals(List.of(200, 204, 503, 200), batch.bodyAsJsonObject().getJsonArray("responses").stream()
+            .map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+        });
+        return client.post(limitedPort, "localhost", "/batch")
+          .sendJsonObject(new JsonObject().put("atomic", true).put("requests", atomic));
+      })
+      .compose(batch -> {
+        testContext.verify(() -> {
+          assertEquals(200, batch.statusCode());
+          // the writes share the place of the transaction, the read takes its own after the commit
+          assertEquals(List.of(201, 201, 200), batch.bodyAsJsonObject().getJsonArray("responses").stream()
+            .map(r -> ((JsonObject) r).getInteger("status")).collect(Collectors.toList()));
+        });
+        return client.get(limited.metricsPort(), "localhost", "/metrics").send();
+      })
+      .onComplete(testContext.succeeding(metrics -> testContext.verify(() -> {
+        assertTrue(metrics.bodyAsString().contains("admission_in_flight 0\n"));
+        testContext.completeNow();
+      })));
+  }
+}
@@ -0,0 +1,129 @@
+package de.thm.mni.pi2.musicService;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCoOccurrenceIndex {
+  private static final int USERS = 200;
+  private static final int SONGS = 60;
+
+  @Test
+  void incremental_updates_match_rebuild_and_self_join() {
+    Random random = new Random(7);
+    CoOccurrenceIndex index = new CoOccurrenceIndex();
+    Map<Integer, Set<Integer>> libraries = new TreeMap<>();
+    for (int i = 0; i < 5_000; i++) {
+      int userId = random.nextInt(USERS) + 1;
+      int songId = random.nextInt(SONGS) + 1;
+      switch (random.nextInt(10)) {
+        case 0 -> {
+          index.removeUser(userId);
+          libraries.remove(userId);
+        }
+        case 1 -> assertArrayEquals(removeSong(libraries, songId), index.removeSong(songId));
+        case 2, 3, 4 -> {
+          index.removeAssignment(userId, songId);
+          libraries.getOrDefault(userId, new TreeSet<>()).remove(songId);
+        }
+        default -> {
+          index.addAssignment(userId, songId);
+          libraries.computeIfAbsent(userId, k -> new TreeSet<>()).add(songId);
+        }
+      }
+    }
+    assertMatches(libraries, index);
+
+    List<Long> pairs = new ArrayList<>();
+    libraries.forEach((userId, library) -> library.forEach(songId -> pairs.add(LongHashSet.pack(userId, songId))));
+    CoOccurrenceIndex rebuilt = new CoOccurrenceIndex();
+    rebuilt.rebuild(pairs.stream().mapToLong(Long::longValue).toArray(), pairs.size());
+    assertMatches(libraries, rebuilt);
+    // the users of each song are rebuilt as well
+    for (int songId = 1; songId <= SONGS; songId += 7) {
+      assertArrayEquals(removeSong(libraries, songId), rebuilt.removeSong(songId));
+    }
+    assertMatches(libraries, rebuilt);
+  }
+
+  @Test
+  void neighbours_are_bounded() {
+    CoOccurrenceIndex index = new CoOccurrenceIndex();
+    for (int songId = 2; songId <= 500; songId++) {
+      index.addAssignment(songId, 1);
+      index.addAssignment(songId, songId);
+    }
+    // a frequent neighbour survives the evictions, its count may only be overestimated
+    for (int userId = 1001; userId <= 1050; userId++) {
+      index.addAssignment(userId, 1);
+      index.addAssignment(userId, 2);
+    }
+    List<CoOccurrenceIndex.Neighbour> related = index.related(1, 1000);
+    assertEquals(CoOccurrenceIndex.MAX_NEIGHBOURS, related.size());
+    assertEquals(2, related.get(0).songId());
+    assertTrue(related.get(0).count() >= 51);
+  }
+
+  /**
+   * @return The users who had the song, sorted.
+   */
+  private static int[] removeSong(Map<Integer, Set<Integer>> libraries, int songId) {
+    return libraries.entrySet().stream()
+      .filter(entry -> entry.getValue().remove(songId))
+      .mapToInt(Map.Entry::getKey)
+      .toArray();
+  }
+
+  /**
+   * Compares the index with the co-occurrence computed by a self-join of the libraries.
+   * Few songs keep the neighbours below the bound, so the counts are exact.
+   */
+  private static void assertMatches(Map<Integer, Set<Integer>> libraries, CoOccurrenceIndex index) {
+    Map<Integer, Map<Integer, Integer>> expected = new HashMap<>();
+    for (Set<Integer> library : libraries.values()) {
+      for (int song : library) {
+        for (int other : library) {
+          if (song != other) {
+            expected.computeIfAbsent(song, k -> new HashMap<>()).merge(other, 1, Integer::sum);
+          }
+        }
+      }
+    }
+    for (int songId = 1; songId <= SONGS; songId++) {
+      assertEquals(ranked(expected.getOrDefault(songId, Map.of()), 5), index.related(songId, 5), "song " + songId);
+    }
+    for (int userId = 1; userId <= USERS; userId++) {
+      Set<Integer> library = libraries.getOrDefault(userId, Set.of());
+      Map<Integer, Integer> scores = new HashMap<>();
+      for (int song : library) {
+        expected.getOrDefault(song, Map.of()).forEach((other, count) -> {
+          if (!library.contains(other)) {
+            scores.merge(other, count, Integer::sum);
+          }
+        });
+      }
+      assertEquals(ranked(scores, 5), index.recommendations(userId, 5), "user " + userId);
+    }
+  }
+
+  private static List<CoOccurrenceIndex.Neighbour> ranked(Map<Integer, Integer> counts, int limit) {
+    return counts.entrySet().stream()
+      .map(entry -> new CoOccurrenceIndex.Neighbour(entry.getKey(), entry.getValue()))
+      .sorted(Comparator.comparingInt(CoOccurrenceIndex.Neighbour::count).reversed()
+        .thenComparingInt(CoOccurrenceIndex.Neighbour::songId))
+      .limit(limit)
+      .toList();
+  }
+}
@@ -0,0 +1,45 @@
+package de.thm.mni.pi2.musicService;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestExistenceIndex {
+
+  @Test
+  void cascades_remove_only_the_own_assignments() {
+    ExistenceIndex index = new ExistenceIndex();
+    index.addUser(1, "MaxMusti");
+    index.addUser(2, "Erika");
+    index.addSong(10, "Hotel Room Service", "HipHop");
+    index.addSong(11, "Give It Up to Me", "HipHop");
+    index.addAssignment(1, 10);
+    index.addAssignment(1, 11);
+    index.addAssignment(2, 10);
+    index.addAssignment(2, 11);
+
+    index.removeSong(10);
+    assertFalse(index.songExists(10));
+    assertFalse(index.assertionExists(10, 1));
+    assertFalse(index.assertionExists(10, 2));
+    assertTrue(index.assertionExists(11, 1));
+
+    index.removeUser(1);
+    assertFalse(index.userExists("MaxMusti"));
+    assertFalse(index.assertionExists(11, 1));
+    assertTrue(index.assertionExists(11, 2));
+
+    // the lists of the cascades follow single removals and re-adds
+    index.removeAssignment(2, 11);
+    index.addAssignment(2, 11);
+    index.addAssignment(2, 11);
+    index.removeUser(2);
+    assertFalse(index.assertionExists(11, 2));
+    index.addUser(2, "Erika");
+    index.addAssignment(2, 11);
+    index.removeSong(11);
+    assertFalse(index.assertionExists(11, 2));
+    assertTrue(index.userExists(2));
+  }
+}
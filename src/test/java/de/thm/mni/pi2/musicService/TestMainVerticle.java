@@ -1,22 +1,1067 @@
 package de.thm.mni.pi2.musicService;
 
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.WebSocketClient;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 @ExtendWith(VertxExtension.class)
 public class TestMainVerticle {
+  static final int PORT = 8889;
+
+  private WebClient client;
+  private MainVerticle verticle;
+  private JsonObject database;
+
+  /**
+   * Creates an in-memory H2 database in MySQL mode as stand-in for MariaDB and loads the schema from musicService.sql.
+   *
+   * @return The database configuration to deploy the verticle with.
+   */
+  static JsonObject createDatabase() throws Exception {
+    return createDatabase("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+  }
+
+  /**
+   * Loads the schema from musicService.sql into the H2 database at the given URL.
+   *
+   * @return The database configuration to deploy the verticle with.
+   */
+  static JsonObject createDatabase(String url) throws Exception {
+    String schema = Files.readString(Path.of("src/main/java/musicService.sql"));
+    try (Connection connection = DriverManager.getConnection(url, "sa", "");
+         Statement statement = connection.createStatement()) {
+      for (String sql : schema.split(";")) {
+        if (!sql.isBlank() && !sql.strip().startsWith("use ")) {
+          statement.execute(sql);
+        }
+      }
+    }
+    return new JsonObject()
+      .put("url", url)
+      .put("user", "sa")
+      .put("password", "")
+      .put("maxPoolSize", 4);
+  }
+
+  /**
+   * @param db The database configuration, see {@link #createDatabase()}.
+   * @return The configuration of the service deployed before each test, with two instances on {@link #PORT}.
+   */
+  static JsonObject config(JsonObject db) {
+    return new JsonObject()
+      .put("http.port", PORT)
+      .put("metrics.port", 0)
+      .put("instances", 2)
+      .put("bulk.batchSize", 2)
+      .put("db", db);
+  }
 
   @BeforeEach
-  void deploy_verticle(Vertx vertx, VertxTestContext testContext) {
-    vertx.deployVerticle(new MainVerticle()).onComplete(testContext.succeeding(id -> testContext.completeNow()));
+  void deploy_verticle(Vertx vertx, VertxTestContext testContext) throws Exception {
+    JsonObject config = config(database = createDatabase());
+    client = WebClient.create(vertx);
+    verticle = new MainVerticle();
+    vertx.deployVerticle(verticle, new DeploymentOptions().setConfig(config))
+      .onComplete(testContext.succeeding(id -> testContext.completeNow()));
   }
 
   @Test
   void verticle_deployed(Vertx vertx, VertxTestContext testContext) throws Throwable {
     testContext.completeNow();
   }
+
+  @Test
+  void instances_share_port_and_repository(Vertx vertx, VertxTestContext testContext) {
+    // the root verticle and the deployment of its two HTTP instances
+    testContext.verify(() -> assertEquals(2, vertx.deploymentIDs().size()));
+    seed(client, PORT)
+      .compose(v -> Future.all(IntStream.range(0, 20)
+        .mapToObj(i -> client.put(PORT, "localhost", "/users/1/songs/1").send())
+        .collect(Collectors.toList())))
+      .onComplete(testContext.succeeding(responses -> testContext.verify(() -> {
+        // exactly one connection wins, whichever instance it is served by
+        List<Integer> codes = responses.<HttpResponse<Buffer>>list().stream().map(HttpResponse::statusCode).collect(Collectors.toList());
+        assertEquals(1, Collections.frequency(codes, 201));
+        assertEquals(19, Collections.frequency(codes, 409));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void threading_model_is_configurable(Vertx vertx, VertxTestContext testContext) throws Exception {
+    JsonObject config = new JsonObject()
+      .put("http.port", PORT + 1)
+      .put("metrics.port", 0)
+      .put("instances", 2)
+      .put("threadingModel", "VIRTUAL_THREAD")
+      .put("db", createDatabase());
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> client.get(PORT + 1, "localhost", "/songs").send())
+      .onComplete(result -> testContext.verify(() -> {
+        // virtual threads need Java 21, on older runtimes the deployment fails instead of falling back silently
+        assertEquals(Runtime.version().feature() >= 21, result.succeeded());
+        if (result.succeeded()) {
+          assertEquals(204, result.result().statusCode());
+        }
+        testContext.completeNow();
+      }));
+  }
+
+  @Test
+  void metrics_endpoint(Vertx vertx, VertxTestContext testContext) {
+    seed(client, PORT)
+      .compose(v -> client.get(PORT, "localhost", "/users/1").send())
+      .compose(v -> client.get(PORT, "localhost", "/users/42").send())
+      .compose(v -> client.get(verticle.metricsPort(), "localhost", "/metrics").send())
+      .onComplete(testContext.succeeding(metrics -> testContext.verify(() -> {
+        String body = metrics.bodyAsString();
+        assertTrue(body.contains("http_server_requests_seconds_count{method=\"GET\",route=\"/users/:id\",status=\"200\"} 1"), body);
+        assertTrue(body.contains("http_server_requests_seconds_count{method=\"GET\",route=\"/users/:id\",status=\"404\"} 1"), body);
+        assertTrue(body.contains("http_server_requests_seconds_count{method=\"POST\",route=\"/users\",status=\"201\"} 1"), body);
+        // the user is answered from the read model, the missing one without a lookup
+        assertTrue(body.contains("readmodel_hits_total 1\n"), body);
+        assertTrue(body.contains("readmodel_libraries 1\n"), body);
+        assertFalse(body.contains("query=\"fetchUser\""), body);
+        assertTrue(body.contains("db_query_seconds_count{query=\"insertUser\"} 1"), body);
+        assertTrue(body.contains("db_pool_connections_in_use 0"), body);
+        assertTrue(body.contains("db_pool_requests_waiting 0"), body);
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void conditional_and_compressed_responses(Vertx vertx, VertxTestContext testContext) {
+    WebClient raw = WebClient.create(vertx, new WebClientOptions().setDecompressionSupported(false));
+    String[] etag = new String[1];
+    long[] roundTrips = new long[1];
+    seed(client, PORT)
+      .compose(v -> client.get(PORT, "localhost", "/songs").send())
+      .compose(songs -> {
+        testContext.verify(() -> {
+          assertEquals(200, songs.statusCode());
+          assertTrue(songs.getHeader("ETag").startsWith("\""));
+          assertFalse(songs.bodyAsString().contains("\n"));
+        });
+        etag[0] = songs.getHeader("ETag");
+        roundTrips[0] = verticle.repository().roundTrips();
+        return client.get(PORT, "localhost", "/songs").putHeader("If-None-Match", etag[0]).send();
+      })
+      .compose(notModified -> {
+        testContext.verify(() -> {
+          assertEquals(304, notModified.statusCode());
+          assertEquals(etag[0], notModified.getHeader("ETag"));
+          assertEquals(roundTrips[0], verticle.repository().roundTrips());
+        });
+        return client.get(PORT, "localhost", "/songs?pretty=true").send();
+      })
+      .compose(pretty -> {
+        testContext.verify(() -> assertTrue(pretty.bodyAsString().contains("\n")));
+        return client.post(PORT, "localhost", "/songs")
+          .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop"));
+      })
+      .compose(created -> client.get(PORT, "localhost", "/songs").putHeader("If-None-Match", etag[0]).send())
+      .compose(modified -> {
+        testContext.verify(() -> {
+          assertEquals(200, modified.statusCode());
+          assertNotEquals(etag[0], modified.getHeader("ETag"));
+        });
+        return client.get(PORT, "localhost", "/users/42").send();
+      })
+      .compose(missing -> {
+        testContext.verify(() -> {
+          assertEquals(404, missing.statusCode());
+          assertNull(missing.getHeader("ETag"));
+        });
+        return raw.get(PORT, "localhost", "/songs").putHeader("Accept-Encoding", "gzip").send();
+      })
+      .onComplete(testContext.succeeding(compressed -> testContext.verify(() -> {
+        assertEquals("gzip", compressed.getHeader("Content-Encoding"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void user_song_lifecycle(Vertx vertx, VertxTestContext testContext) {
+    client.post(PORT, "localhost", "/users")
+      .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de"))
+      .compose(created -> {
+        testContext.verify(() -> assertEquals(201, created.statusCode()));
+        return client.post(PORT, "localhost", "/users")
+          .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de"));
+      })
+      .compose(duplicate -> {
+        testContext.verify(() -> assertEquals(409, duplicate.statusCode()));
+        return client.post(PORT, "localhost", "/songs")
+          .sendJsonObject(new JsonObject().put("name", "Hotel Room Service").put("genre", "HipHop"));
+      })
+      .compose(song -> {
+        testContext.verify(() -> assertEquals(201, song.statusCode()));
+        return client.put(PORT, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(assigned -> {
+        testContext.verify(() -> assertEquals(201, assigned.statusCode()));
+        return client.get(PORT, "localhost", "/users").send();
+      })
+      .compose(users -> {
+        testContext.verify(() -> {
+          assertEquals(200, users.statusCode());
+          JsonObject user = users.bodyAsJsonObject().getJsonObject("users").getJsonObject("1");
+          assertEquals("MaxMusti", user.getString("name"));
+          assertTrue(user.getJsonObject("songs").containsKey("1"));
+        });
+        return client.get(PORT, "localhost", "/users/1").send();
+      })
+      .compose(user -> {
+        testContext.verify(() -> {
+          assertEquals(200, user.statusCode());
+          assertEquals("Hotel Room Service", user.bodyAsJsonObject().getJsonObject("songs").getJsonObject("1").getString("name"));
+        });
+        return client.delete(PORT, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(unassigned -> {
+        testContext.verify(() -> assertEquals(200, unassigned.statusCode()));
+        return client.delete(PORT, "localhost", "/songs/1").send();
+      })
+      .compose(deleted -> {
+        testContext.verify(() -> assertEquals(200, deleted.statusCode()));
+        return client.get(PORT, "localhost", "/users/2").send();
+      })
+      .onComplete(testContext.succeeding(missing -> testContext.verify(() -> {
+        assertEquals(404, missing.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void sparse_fieldsets(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int uncachedPort = PORT + 1;
+    JsonObject config = new JsonObject()
+      .put("http.port", uncachedPort)
+      .put("metrics.port", 0)
+      .put("readModel.enabled", false)
+      .put("db", createDatabase());
+    // answered from the read model and from the database
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> sparseFieldsets(PORT))
+      .compose(v -> sparseFieldsets(uncachedPort))
+      .onComplete(testContext.succeeding(v -> testContext.completeNow()));
+  }
+
+  private Future<Void> sparseFieldsets(int port) {
+    return seed(client, port)
+      .compose(v -> client.put(port, "localhost", "/users/1/songs/1").send())
+      .compose(r -> client.get(port, "localhost", "/users?fields=name").send())
+      .compose(users -> {
+        assertEquals(new JsonObject().put("1", new JsonObject().put("name", "MaxMusti")),
+          users.bodyAsJsonObject().getJsonObject("users"));
+        return client.get(port, "localhost", "/users?fields=email&limit=10").send();
+      })
+      .compose(page -> {
+        assertEquals(new JsonObject().put("1", new JsonObject().put("email", "max@mustermann.de")),
+          page.bodyAsJsonObject().getJsonObject("users"));
+        return client.get(port, "localhost", "/users?fields=name&stream=true").send();
+      })
+      .compose(streamed -> {
+        assertEquals(new JsonObject().put("1", new JsonObject().put("name", "MaxMusti")),
+          streamed.bodyAsJsonObject().getJsonObject("users"));
+        return client.get(port, "localhost", "/users/1?fields=id,songs").send();
+      })
+      .compose(user -> {
+        assertEquals(new JsonObject().put("id", 1)
+          .put("songs", new JsonObject().put("1", new JsonObject().put("name", "Hotel Room Service"))), user.bodyAsJsonObject());
+        return client.get(port, "localhost", "/users/1/songs?fields=id").send();
+      })
+      .compose(library -> {
+        assertEquals(new JsonObject().put("1", new JsonObject()), library.bodyAsJsonObject().getJsonObject("songs"));
+        return client.get(port, "localhost", "/songs?fields=genre").send();
+      })
+      .compose(songs -> {
+        assertEquals(new JsonObject().put("1", new JsonObject().put("genre", "HipHop")),
+          songs.bodyAsJsonObject().getJsonObject("songs"));
+        return client.get(port, "localhost", "/songs?fields=name,timestamp&stream=true").send();
+      })
+      .compose(streamed -> {
+        JsonObject song = streamed.bodyAsJsonObject().getJsonObject("songs").getJsonObject("1");
+        assertEquals(2, song.size());
+        assertNotNull(song.getString("timestamp"));
+        return client.get(port, "localhost", "/users?fields=name,password").send();
+      })
+      .map(unknown -> {
+        assertEquals(400, unknown.statusCode());
+        assertEquals("Unknown field: password", unknown.bodyAsJsonObject().getString("error"));
+        return null;
+      });
+  }
+
+  @Test
+  void keyset_pagination(Vertx vertx, VertxTestContext testContext) {
+    client.post(PORT, "localhost", "/users")
+      .sendJsonObject(new JsonObject().put("username", "a").put("email", "a@example.org"))
+      .compose(r -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "b").put("email", "b@example.org")))
+      .compose(r -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "c").put("email", "c@example.org")))
+      .compose(r -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Hotel Room Service").put("genre", "HipHop")))
+      .compose(r -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> client.put(PORT, "localhost", "/users/1/songs/1").send())
+      .compose(r -> client.put(PORT, "localhost", "/users/1/songs/2").send())
+      .compose(r -> client.get(PORT, "localhost", "/users?limit=2").send())
+      .compose(first -> {
+        JsonObject body = first.bodyAsJsonObject();
+        testContext.verify(() -> {
+          assertEquals(200, first.statusCode());
+          assertEquals(2, body.getJsonObject("users").size());
+          assertEquals(2, body.getJsonObject("users").getJsonObject("1").getJsonObject("songs").size());
+        });
+        return client.get(PORT, "localhost", "/users?limit=2&cursor=" + body.getString("next")).send();
+      })
+      .compose(second -> {
+        testContext.verify(() -> {
+          JsonObject body = second.bodyAsJsonObject();
+          assertEquals(1, body.getJsonObject("users").size());
+          assertTrue(body.getJsonObject("users").containsKey("3"));
+          assertNull(body.getString("next"));
+        });
+        return client.get(PORT, "localhost", "/songs?limit=1&after=1").send();
+      })
+      .compose(songs -> {
+        testContext.verify(() -> {
+          assertTrue(songs.bodyAsJsonObject().getJsonObject("songs").containsKey("2"));
+          assertNull(songs.bodyAsJsonObject().getString("next"));
+        });
+        return client.get(PORT, "localhost", "/users/1/songs?limit=1").send();
+      })
+      .compose(library -> {
+        testContext.verify(() -> {
+          assertEquals(200, library.statusCode());
+          assertTrue(library.bodyAsJsonObject().getJsonObject("songs").containsKey("1"));
+        });
+        return client.get(PORT, "localhost", "/users/1/songs?limit=1&cursor=" + library.bodyAsJsonObject().getString("next")).send();
+      })
+      .compose(library -> {
+        testContext.verify(() -> assertTrue(library.bodyAsJsonObject().getJsonObject("songs").containsKey("2")));
+        return client.get(PORT, "localhost", "/users?limit=0").send();
+      })
+      .onComplete(testContext.succeeding(invalid -> testContext.verify(() -> {
+        assertEquals(400, invalid.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void writes_take_one_round_trip(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int uncachedPort = PORT + 1;
+    MainVerticle uncached = new MainVerticle();
+    JsonObject config = new JsonObject()
+      .put("http.port", uncachedPort)
+      .put("metrics.port", 0)
+      .put("existenceIndex", false)
+      .put("db", createDatabase());
+    long[] trips = new long[4];
+    vertx.deployVerticle(uncached, new DeploymentOptions().setConfig(config))
+      .compose(id -> seed(client, PORT))
+      .compose(v -> seed(client, uncachedPort))
+      .compose(v -> {
+        trips[0] = verticle.repository().roundTrips();
+        return client.put(PORT, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(r -> {
+        trips[0] = verticle.repository().roundTrips() - trips[0];
+        trips[1] = uncached.repository().roundTrips();
+        return client.put(uncachedPort, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(r -> {
+        trips[1] = uncached.repository().roundTrips() - trips[1];
+        return client.put(uncachedPort, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(duplicate -> {
+        testContext.verify(() -> assertEquals(409, duplicate.statusCode()));
+        return client.put(uncachedPort, "localhost", "/users/1/songs/2").send();
+      })
+      .compose(missingSong -> {
+        testContext.verify(() -> assertEquals(404, missingSong.statusCode()));
+        return client.post(uncachedPort, "localhost", "/users")
+          .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de"));
+      })
+      .compose(duplicate -> {
+        testContext.verify(() -> assertEquals(409, duplicate.statusCode()));
+        trips[2] = uncached.repository().roundTrips();
+        return client.delete(uncachedPort, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(r -> {
+        trips[2] = uncached.repository().roundTrips() - trips[2];
+        return client.delete(uncachedPort, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(missing -> {
+        testContext.verify(() -> assertEquals(409, missing.statusCode()));
+        trips[3] = uncached.repository().roundTrips();
+        return client.delete(uncachedPort, "localhost", "/songs/1").send();
+      })
+      .compose(r -> {
+        trips[3] = uncached.repository().roundTrips() - trips[3];
+        return client.delete(uncachedPort, "localhost", "/songs/1").send();
+      })
+      .onComplete(testContext.succeeding(missing -> testContext.verify(() -> {
+        assertEquals(404, missing.statusCode());
+        assertEquals(1, trips[0]);
+        assertEquals(1, trips[1]);
+        assertEquals(1, trips[2]);
+        assertEquals(1, trips[3]);
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void bulk_song_import(Vertx vertx, VertxTestContext testContext) {
+    JsonArray songs = new JsonArray()
+      .add(new JsonObject().put("name", "a").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "b").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "a").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "a").put("genre", "Rock"));
+    client.post(PORT, "localhost", "/songs/bulk")
+      .sendJson(songs)
+      .compose(imported -> {
+        testContext.verify(() -> {
+          JsonObject body = imported.bodyAsJsonObject();
+          assertEquals(200, imported.statusCode());
+          assertEquals(3, body.getInteger("created"));
+          assertEquals(1, body.getInteger("duplicates"));
+          assertEquals(1, body.getInteger("invalid"));
+          JsonArray results = body.getJsonArray("songs");
+          assertEquals(results.getJsonObject(0).getInteger("id"), results.getJsonObject(2).getInteger("id"));
+        });
+        return client.post(PORT, "localhost", "/songs/bulk")
+          .putHeader("content-type", "application/x-ndjson")
+          .sendBuffer(Buffer.buffer("{\"name\":\"b\",\"genre\":\"Pop\"}\n{\"name\":\"c\",\"genre\":\"Pop\"}\nnot json\n"));
+      })
+      .compose(imported -> {
+        testContext.verify(() -> {
+          String[] lines = imported.bodyAsString().split("\n");
+          assertEquals(3, lines.length);
+          assertEquals("duplicate", new JsonObject(lines[0]).getString("status"));
+          assertEquals("created", new JsonObject(lines[1]).getString("status"));
+          assertEquals("invalid", new JsonObject(lines[2]).getString("status"));
+        });
+        return client.get(PORT, "localhost", "/songs").send();
+      })
+      .compose(all -> {
+        testContext.verify(() -> assertEquals(4, all.bodyAsJsonObject().getJsonObject("songs").size()));
+        // an import of duplicates only leaves the songs unchanged and keeps their ETag valid
+        return client.post(PORT, "localhost", "/songs/bulk").sendJson(songs)
+          .compose(imported -> client.get(PORT, "localhost", "/songs").putHeader("If-None-Match", all.getHeader("ETag")).send());
+      })
+      .onComplete(testContext.succeeding(cached -> testContext.verify(() -> {
+        assertEquals(304, cached.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void bulk_song_import_in_case_insensitive_collation(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int ignoreCasePort = PORT + 1;
+    // like the default collation of MariaDB, the unique key treats names differing in case as equal
+    JsonObject config = new JsonObject()
+      .put("http.port", ignoreCasePort)
+      .put("metrics.port", 0)
+      .put("db", createDatabase("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;IGNORECASE=TRUE"));
+    JsonArray songs = new JsonArray()
+      .add(new JsonObject().put("name", "Song").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "song").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "song").put("genre", "Rock"));
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> client.post(ignoreCasePort, "localhost", "/songs/bulk").sendJson(songs))
+      .compose(imported -> {
+        testContext.verify(() -> {
+          assertEquals(200, imported.statusCode());
+          JsonArray results = imported.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals("created", results.getJsonObject(0).getString("status"));
+          assertEquals("duplicate", results.getJsonObject(1).getString("status"));
+          assertEquals(results.getJsonObject(0).getInteger("id"), results.getJsonObject(1).getInteger("id"));
+          assertEquals("created", results.getJsonObject(2).getString("status"));
+        });
+        return client.post(ignoreCasePort, "localhost", "/songs/bulk")
+          .sendJson(new JsonArray().add(new JsonObject().put("name", "SONG").put("genre", "pop")));
+      })
+      .onComplete(testContext.succeeding(imported -> testContext.verify(() -> {
+        assertEquals(200, imported.statusCode());
+        assertEquals(0, imported.bodyAsJsonObject().getInteger("created"));
+        assertEquals(1, imported.bodyAsJsonObject().getInteger("duplicates"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void song_search(Vertx vertx, VertxTestContext testContext) {
+    int[] id = new int[1];
+    seed(client, PORT)
+      .compose(v -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Hotel California").put("genre", "Rock")))
+      .compose(v -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Café del Mar").put("genre", "Hotel Lounge")))
+      .compose(v -> client.get(PORT, "localhost", "/songs/search?q=hot").send())
+      .compose(found -> {
+        testContext.verify(() -> {
+          assertEquals(200, found.statusCode());
+          JsonArray songs = found.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals(3, songs.size());
+          // name matches before genre matches, shorter names first
+          assertEquals("Hotel California", songs.getJsonObject(0).getString("name"));
+          assertEquals("Hotel Room Service", songs.getJsonObject(1).getString("name"));
+          assertEquals("Café del Mar", songs.getJsonObject(2).getString("name"));
+          id[0] = songs.getJsonObject(0).getInteger("id");
+        });
+        return client.get(PORT, "localhost", "/songs/search?q=hotel%20ro&limit=1").send();
+      })
+      .compose(found -> {
+        testContext.verify(() -> {
+          JsonArray songs = found.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals(1, songs.size());
+          assertEquals("Hotel Room Service", songs.getJsonObject(0).getString("name"));
+        });
+        return client.delete(PORT, "localhost", "/songs/" + id[0]).send();
+      })
+      .compose(deleted -> client.get(PORT, "localhost", "/songs/search?q=CAFE").send())
+      .compose(found -> {
+        testContext.verify(() -> assertEquals(1, found.bodyAsJsonObject().getJsonArray("songs").size()));
+        return client.get(PORT, "localhost", "/songs/search?q=california").send();
+      })
+      .compose(found -> {
+        testContext.verify(() -> assertTrue(found.bodyAsJsonObject().getJsonArray("songs").isEmpty()));
+        return client.get(PORT, "localhost", "/songs/search?q=%20").send();
+      })
+      .compose(blank -> {
+        testContext.verify(() -> assertEquals(400, blank.statusCode()));
+        return client.get(PORT, "localhost", "/songs/search?q=a&limit=51").send();
+      })
+      .onComplete(testContext.succeeding(tooMany -> testContext.verify(() -> {
+        assertEquals(400, tooMany.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void related_songs_and_recommendations(Vertx vertx, VertxTestContext testContext) {
+    JsonArray songs = new JsonArray();
+    for (String name : new String[]{"One", "Two", "Three"}) {
+      songs.add(new JsonObject().put("name", name).put("genre", "Pop"));
+    }
+    client.post(PORT, "localhost", "/songs/bulk").sendJson(songs)
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "a").put("email", "a@example.org")))
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "b").put("email", "b@example.org")))
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "c").put("email", "c@example.org")))
+      .compose(v -> client.put(PORT, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2)))
+      .compose(v -> client.put(PORT, "localhost", "/users/2/songs").sendJson(new JsonArray().add(1).add(2).add(3)))
+      .compose(v -> client.put(PORT, "localhost", "/users/3/songs/1").send())
+      .compose(v -> client.put(PORT, "localhost", "/users/3/songs/3").send())
+      .compose(v -> assertRecommendations(testContext))
+      // the same from the co-occurrence rebuilt from the database
+      .compose(v -> verticle.repository().init())
+      .compose(v -> assertRecommendations(testContext))
+      .compose(v -> client.delete(PORT, "localhost", "/songs/3").send())
+      .compose(v -> client.get(PORT, "localhost", "/users/1/recommendations").send())
+      .compose(recommended -> {
+        testContext.verify(() -> assertTrue(recommended.bodyAsJsonObject().getJsonArray("songs").isEmpty()));
+        return client.get(PORT, "localhost", "/songs/3/related").send();
+      })
+      .compose(missingSong -> {
+        testContext.verify(() -> assertEquals(404, missingSong.statusCode()));
+        return client.get(PORT, "localhost", "/users/42/recommendations").send();
+      })
+      .onComplete(testContext.succeeding(missingUser -> testContext.verify(() -> {
+        assertEquals(404, missingUser.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  private Future<Void> assertRecommendations(VertxTestContext testContext) {
+    return client.get(PORT, "localhost", "/songs/1/related").send()
+      .compose(related -> {
+        testContext.verify(() -> {
+          assertEquals(200, related.statusCode());
+          JsonArray songs = related.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals(2, songs.size());
+          assertEquals(new JsonObject().put("id", 2).put("name", "Two").put("genre", "Pop").put("users", 2), songs.getJsonObject(0));
+          assertEquals(3, songs.getJsonObject(1).getInteger("id"));
+        });
+        return client.get(PORT, "localhost", "/users/1/recommendations").send();
+      })
+      .map(recommended -> {
+        testContext.verify(() -> {
+          JsonArray songs = recommended.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals(1, songs.size());
+          assertEquals(3, songs.getJsonObject(0).getInteger("id"));
+          assertEquals(3, songs.getJsonObject(0).getInteger("score"));
+        });
+        return null;
+      });
+  }
+
+  @Test
+  void trending_songs(Vertx vertx, VertxTestContext testContext) {
+    seed(client, PORT)
+      .compose(v -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "b").put("email", "b@example.org")))
+      .compose(v -> client.put(PORT, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2)))
+      .compose(v -> client.put(PORT, "localhost", "/users/2/songs/2").send())
+      .compose(v -> assertTrending(testContext))
+      // the same from the assignment timestamps after a restart
+      .compose(v -> verticle.repository().init())
+      .compose(v -> assertTrending(testContext))
+      .compose(v -> client.get(PORT, "localhost", "/songs/trending?window=2h").send())
+      .onComplete(testContext.succeeding(invalid -> testContext.verify(() -> {
+        assertEquals(400, invalid.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  private Future<Void> assertTrending(VertxTestContext testContext) {
+    return client.get(PORT, "localhost", "/songs/trending?window=15m").send()
+      .map(trending -> {
+        testContext.verify(() -> {
+          assertEquals(200, trending.statusCode());
+          JsonArray songs = trending.bodyAsJsonObject().getJsonArray("songs");
+          assertEquals(2, songs.size());
+          assertEquals(new JsonObject().put("id", 2).put("name", "Give It Up to Me").put("genre", "HipHop")
+            .put("assignments", 2), songs.getJsonObject(0));
+          assertEquals(1, songs.getJsonObject(1).getInteger("assignments"));
+        });
+        return null;
+      });
+  }
+
+  @Test
+  void change_feed(Vertx vertx, VertxTestContext testContext) {
+    // kept referenced until the end, an unreachable client is closed by Vert.x
+    HttpClient http = vertx.createHttpClient();
+    WebSocketClient webSockets = vertx.createWebSocketClient();
+    StringBuilder events = new StringBuilder();
+    Promise<Void> deleted = Promise.promise();
+    List<JsonObject> messages = new ArrayList<>();
+    Promise<Void> replayed = Promise.promise();
+    seed(client, PORT)
+      .compose(v -> http.request(HttpMethod.GET, PORT, "localhost", "/changes"))
+      .compose(request -> request.putHeader("Last-Event-ID", "1").send())
+      .compose(stream -> {
+        testContext.verify(() -> assertEquals("text/event-stream; charset=utf-8", stream.getHeader("content-type")));
+        stream.handler(chunk -> {
+          events.append(chunk);
+          if (events.indexOf("event: song.deleted") >= 0) {
+            deleted.tryComplete();
+          }
+        });
+        return client.put(PORT, "localhost", "/users/1/songs/1").send();
+      })
+      .compose(r -> client.delete(PORT, "localhost", "/songs/1").send())
+      .compose(r -> deleted.future())
+      .compose(v -> {
+        testContext.verify(() -> {
+          // resumed after the first change, then the new ones
+          assertFalse(events.toString().contains("user.created"));
+          assertTrue(events.toString().contains("id: 2\nevent: song.created\n"));
+          assertTrue(events.toString().contains("id: 3\nevent: song.assigned\ndata: {\"seq\":3,\"type\":\"song.assigned\",\"userId\":1,\"songId\":1}\n\n"));
+          assertTrue(events.indexOf("id: 3") < events.indexOf("id: 4\nevent: song.deleted"));
+        });
+        return webSockets.connect(PORT, "localhost", "/changes?since=2");
+      })
+      .compose(webSocket -> {
+        webSocket.textMessageHandler(message -> {
+          messages.add(new JsonObject(message));
+          if (messages.size() == 2) {
+            replayed.complete();
+          }
+        });
+        return replayed.future().compose(v -> webSocket.close());
+      })
+      .compose(v -> {
+        testContext.verify(() -> {
+          assertEquals(List.of(3L, 4L), messages.stream().map(message -> message.getLong("seq")).collect(Collectors.toList()));
+          assertEquals(new JsonObject().put("seq", 4).put("type", "song.deleted").put("songId", 1), messages.get(1));
+        });
+        // a sequence number the feed cannot resume from
+        return http.request(HttpMethod.GET, PORT, "localhost", "/changes?since=99").compose(request -> request.send());
+      })
+      .compose(stream -> {
+        Promise<String> reset = Promise.promise();
+        StringBuilder body = new StringBuilder();
+        stream.handler(chunk -> {
+          body.append(chunk);
+          int event = body.indexOf("event:");
+          if (event >= 0 && body.indexOf("\n\n", event) >= 0) {
+            reset.tryComplete(body.toString());
+          }
+        });
+        return reset.future();
+      })
+      .compose(body -> {
+        testContext.verify(() -> assertTrue(body.contains("id: 4\nevent: reset\ndata: {\"seq\":4,\"type\":\"reset\"}\n\n"), body));
+        return client.get(PORT, "localhost", "/changes?since=x").send();
+      })
+      .compose(invalid -> Future.join(http.close(), webSockets.close()).map(invalid))
+      .onComplete(testContext.succeeding(invalid -> testContext.verify(() -> {
+        assertEquals(400, invalid.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void genre_counters(Vertx vertx, VertxTestContext testContext) {
+    JsonArray songs = new JsonArray()
+      .add(new JsonObject().put("name", "a").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "b").put("genre", "Pop"))
+      .add(new JsonObject().put("name", "c").put("genre", "Rock"));
+    client.post(PORT, "localhost", "/songs/bulk").sendJson(songs)
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "a").put("email", "a@example.org")))
+      .compose(v -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "b").put("email", "b@example.org")))
+      .compose(v -> client.put(PORT, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2).add(3)))
+      .compose(v -> client.put(PORT, "localhost", "/users/2/songs/1").send())
+      .compose(v -> client.put(PORT, "localhost", "/users/2/songs/3").send())
+      .compose(v -> client.delete(PORT, "localhost", "/users/2/songs/3").send())
+      .compose(v -> assertGenres(testContext, new JsonArray()
+        .add(new JsonObject().put("genre", "Pop").put("songs", 2).put("assignments", 3))
+        .add(new JsonObject().put("genre", "Rock").put("songs", 1).put("assignments", 1))))
+      // cascades
+      .compose(v -> client.delete(PORT, "localhost", "/users/1").send())
+      .compose(v -> client.delete(PORT, "localhost", "/songs/3").send())
+      .compose(v -> assertGenres(testContext, new JsonArray()
+        .add(new JsonObject().put("genre", "Pop").put("songs", 2).put("assignments", 1))))
+      .compose(v -> {
+        // a write by another process is picked up by the reconciliation
+        try (Connection connection = DriverManager.getConnection(database.getString("url"), "sa", "");
+             Statement statement = connection.createStatement()) {
+          statement.execute("INSERT INTO songs (name, genre) VALUES ('d', 'Jazz')");
+        } catch (Exception e) {
+          return Future.failedFuture(e);
+        }
+        return verticle.repository().reconcileGenres();
+      })
+      .compose(reconciled -> {
+        testContext.verify(() -> assertTrue(reconciled));
+        return assertGenres(testContext, new JsonArray()
+          .add(new JsonObject().put("genre", "Jazz").put("songs", 1).put("assignments", 0))
+          .add(new JsonObject().put("genre", "Pop").put("songs", 2).put("assignments", 1)));
+      })
+      .onComplete(testContext.succeedingThenComplete());
+  }
+
+  private Future<Void> assertGenres(VertxTestContext testContext, JsonArray expected) {
+    return client.get(PORT, "localhost", "/genres").send()
+      .map(genres -> {
+        testContext.verify(() -> {
+          assertEquals(200, genres.statusCode());
+          assertEquals(expected, genres.bodyAsJsonObject().getJsonArray("genres"));
+        });
+        return null;
+      });
+  }
+
+  @Test
+  void group_commit(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int groupedPort = PORT + 1;
+    JsonObject db = createDatabase();
+    JsonObject config = new JsonObject()
+      .put("http.port", groupedPort)
+      .put("metrics.port", 0)
+      // without the index every constraint violation is found by the database, inside the shared transaction
+      .put("existenceIndex", false)
+      .put("groupCommit.enabled", true)
+      .put("groupCommit.batchSize", 4)
+      .put("groupCommit.maxDelay", 5)
+      .put("db", db);
+    List<String> assignments = List.of("1/songs/1", "1/songs/1", "1/songs/1", "1/songs/2", "1/songs/9", "5/songs/1", "1/songs/1");
+    List<String> removals = List.of("1/songs/1", "1/songs/1", "1/songs/2", "1/songs/2", "1/songs/9");
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> seed(client, groupedPort))
+      .compose(v -> client.post(groupedPort, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> Future.all(assignments.stream()
+        .map(path -> client.put(groupedPort, "localhost", "/users/" + path).send())
+        .collect(Collectors.toList())))
+      .compose(responses -> {
+        testContext.verify(() -> {
+          List<Integer> codes = responses.<HttpResponse<Buffer>>list().stream().map(HttpResponse::statusCode).collect(Collectors.toList());
+          assertEquals(2, Collections.frequency(codes, 201));
+          assertEquals(3, Collections.frequency(codes, 409));
+          assertEquals(2, Collections.frequency(codes, 404));
+          assertEquals(2, countAssignments(db));
+        });
+        return Future.all(removals.stream()
+          .map(path -> client.delete(groupedPort, "localhost", "/users/" + path).send())
+          .collect(Collectors.toList()));
+      })
+      .onComplete(testContext.succeeding(responses -> testContext.verify(() -> {
+        List<Integer> codes = responses.<HttpResponse<Buffer>>list().stream().map(HttpResponse::statusCode).collect(Collectors.toList());
+        assertEquals(2, Collections.frequency(codes, 200));
+        assertEquals(2, Collections.frequency(codes, 409));
+        assertEquals(1, Collections.frequency(codes, 404));
+        // committed before the responses were sent
+        assertEquals(0, countAssignments(db));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void group_commit_aborts_on_lock_timeout(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int groupedPort = PORT + 1;
+    JsonObject db = createDatabase("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=300");
+    JsonObject config = new JsonObject()
+      .put("http.port", groupedPort)
+      .put("metrics.port", 0)
+      .put("groupCommit.enabled", true)
+      .put("groupCommit.batchSize", 3)
+      .put("groupCommit.maxDelay", 200)
+      .put("db", db);
+    Connection locking = DriverManager.getConnection(db.getString("url"), "sa", "");
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> seed(client, groupedPort))
+      .compose(v -> client.post(groupedPort, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> client.post(groupedPort, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Pump It").put("genre", "HipHop")))
+      .compose(r -> client.put(groupedPort, "localhost", "/users/1/songs/2").send())
+      .compose(r -> {
+        testContext.verify(() -> {
+          // the removal in the middle of the batch runs into the lock and fails with a timeout
+          locking.setAutoCommit(false);
+          try (Statement statement = locking.createStatement()) {
+            statement.execute("DELETE from user_songs WHERE user_id = 1 AND song_id = 2");
+          }
+        });
+        Future<HttpResponse<Buffer>> first = client.put(groupedPort, "localhost", "/users/1/songs/1").send();
+        Future<HttpResponse<Buffer>> second = vertx.timer(20)
+          .compose(t -> client.delete(groupedPort, "localhost", "/users/1/songs/2").send());
+        Future<HttpResponse<Buffer>> third = vertx.timer(40)
+          .compose(t -> client.put(groupedPort, "localhost", "/users/1/songs/3").send());
+        return Future.all(first, second, third);
+      })
+      .onComplete(testContext.succeeding(responses -> testContext.verify(() -> {
+        locking.rollback();
+        locking.close();
+        for (int i = 0; i < 3; i++) {
+          assertEquals(500, responses.<HttpResponse<Buffer>>resultAt(i).statusCode());
+        }
+        // nothing but the assignment from before was committed
+        assertEquals(1, countAssignments(db));
+        testContext.completeNow();
+      })));
+  }
+
+  static int countAssignments(JsonObject db) throws Exception {
+    try (Connection connection = DriverManager.getConnection(db.getString("url"), "sa", "");
+         Statement statement = connection.createStatement();
+         ResultSet rows = statement.executeQuery("SELECT count(*) from user_songs")) {
+      rows.next();
+      return rows.getInt(1);
+    }
+  }
+
+  @Test
+  void read_write_split(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int splitPort = PORT + 1;
+    // two databases stand in for a primary and a replica that has not caught up yet
+    JsonObject replica = createDatabase();
+    JsonObject config = new JsonObject()
+      .put("http.port", splitPort)
+      .put("metrics.port", 0)
+      // the read model would answer from memory instead of the replica
+      .put("readModel.enabled", false)
+      .put("db", createDatabase().put("read", new JsonObject()
+        .put("url", replica.getString("url"))
+        .put("pinWindow", 300)));
+    Promise<Void> windowPassed = Promise.promise();
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> client.post(splitPort, "localhost", "/users").putHeader("X-Client-Id", "writer")
+        .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de")))
+      .compose(created -> {
+        testContext.verify(() -> assertEquals(201, created.statusCode()));
+        return client.get(splitPort, "localhost", "/users/1").putHeader("X-Client-Id", "writer").send();
+      })
+      .compose(own -> {
+        testContext.verify(() -> {
+          // the writer reads its own write from the primary
+          assertEquals(200, own.statusCode());
+          assertNotNull(own.getHeader("ETag"));
+        });
+        return client.get(splitPort, "localhost", "/users/1").putHeader("X-Client-Id", "reader").send();
+      })
+      .compose(other -> {
+        testContext.verify(() -> {
+          // other clients read from the replica, without an ETag while it may be behind
+          assertEquals(404, other.statusCode());
+          assertNull(other.getHeader("ETag"));
+        });
+        return client.get(splitPort, "localhost", "/users").send();
+      })
+      .compose(anonymous -> {
+        testContext.verify(() -> assertEquals(204, anonymous.statusCode()));
+        vertx.setTimer(400, id -> windowPassed.complete());
+        return windowPassed.future();
+      })
+      .compose(v -> client.get(splitPort, "localhost", "/users/1").putHeader("X-Client-Id", "writer").send())
+      .compose(afterWindow -> {
+        testContext.verify(() -> {
+          assertEquals(404, afterWindow.statusCode());
+          try (Connection connection = DriverManager.getConnection(replica.getString("url"), "sa", "");
+               Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO users (name, email) VALUES ('MaxMusti', 'max@mustermann.de')");
+          }
+        });
+        return client.get(splitPort, "localhost", "/users/1").putHeader("X-Client-Id", "reader").send();
+      })
+      .onComplete(testContext.succeeding(replicated -> testContext.verify(() -> {
+        assertEquals(200, replicated.statusCode());
+        assertNotNull(replicated.getHeader("ETag"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void bulk_assign_and_unassign(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int uncachedPort = PORT + 1;
+    JsonObject config = new JsonObject()
+      .put("http.port", uncachedPort)
+      .put("metrics.port", 0)
+      .put("existenceIndex", false)
+      .put("db", createDatabase());
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+      .compose(id -> bulkAssignScenario(testContext, PORT))
+      .compose(v -> bulkAssignScenario(testContext, uncachedPort))
+      .onComplete(testContext.succeeding(v -> testContext.completeNow()));
+  }
+
+  @Test
+  void bulk_assign_of_rows_deleted_elsewhere(Vertx vertx, VertxTestContext testContext) {
+    seed(client, PORT)
+      .compose(v -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> {
+        // deleted by another process, the existence index still holds the song
+        execute(database, "DELETE from songs where id = 2");
+        return client.put(PORT, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2));
+      })
+      .compose(assigned -> {
+        testContext.verify(() -> {
+          assertEquals(200, assigned.statusCode());
+          assertEquals(new JsonArray().add(1), assigned.bodyAsJsonObject().getJsonArray("added"));
+          assertEquals(new JsonArray().add(2), assigned.bodyAsJsonObject().getJsonArray("missing"));
+        });
+        return client.post(PORT, "localhost", "/songs")
+          .sendJsonObject(new JsonObject().put("name", "Pump It").put("genre", "HipHop"));
+      })
+      .compose(created -> {
+        execute(database, "DELETE from users where id = 1");
+        return client.put(PORT, "localhost", "/users/1/songs").sendJson(new JsonArray().add(3));
+      })
+      .onComplete(testContext.succeeding(missingUser -> testContext.verify(() -> {
+        assertEquals(404, missingUser.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  static void execute(JsonObject db, String sql) {
+    try (Connection connection = DriverManager.getConnection(db.getString("url"), "sa", "");
+         Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Future<Void> bulkAssignScenario(VertxTestContext testContext, int port) {
+    return seed(client, port)
+      .compose(v -> client.post(port, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> client.put(port, "localhost", "/users/1/songs/1").send())
+      .compose(r -> client.put(port, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2).add(9)))
+      .compose(assigned -> {
+        testContext.verify(() -> {
+          assertEquals(200, assigned.statusCode());
+          JsonObject body = assigned.bodyAsJsonObject();
+          assertEquals(new JsonArray().add(2), body.getJsonArray("added"));
+          assertEquals(new JsonArray().add(1), body.getJsonArray("skipped"));
+          assertEquals(new JsonArray().add(9), body.getJsonArray("missing"));
+        });
+        return client.get(port, "localhost", "/users/1/songs").send();
+      })
+      .compose(library -> {
+        testContext.verify(() -> assertEquals(2, library.bodyAsJsonObject().getJsonObject("songs").size()));
+        return client.delete(port, "localhost", "/users/1/songs")
+          .sendJsonObject(new JsonObject().put("songIds", new JsonArray().add(2).add(9)));
+      })
+      .compose(unassigned -> {
+        testContext.verify(() -> {
+          JsonObject body = unassigned.bodyAsJsonObject();
+          assertEquals(new JsonArray().add(2), body.getJsonArray("removed"));
+          assertEquals(new JsonArray().add(9), body.getJsonArray("missing"));
+        });
+        return client.delete(port, "localhost", "/users/1/songs").sendJson(new JsonArray().add(2));
+      })
+      .compose(unassigned -> {
+        testContext.verify(() -> assertEquals(new JsonArray().add(2), unassigned.bodyAsJsonObject().getJsonArray("skipped")));
+        return client.put(port, "localhost", "/users/7/songs").sendJson(new JsonArray().add(1));
+      })
+      .compose(missingUser -> {
+        testContext.verify(() -> assertEquals(404, missingUser.statusCode()));
+        return client.put(port, "localhost", "/users/1/songs").sendJson(new JsonArray());
+      })
+      .map(empty -> {
+        testContext.verify(() -> assertEquals(400, empty.statusCode()));
+        return null;
+      });
+  }
+
+  /**
+   * Creates the user MaxMusti with ID 1 and the song Hotel Room Service with ID 1.
+   */
+  static Future<Void> seed(WebClient client, int port) {
+    return client.post(port, "localhost", "/users")
+      .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de"))
+      .compose(r -> client.post(port, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Hotel Room Service").put("genre", "HipHop")))
+      .mapEmpty();
+  }
 }
@@ -0,0 +1,52 @@
+package de.thm.mni.pi2.musicService;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestPrimitiveCollections {
+
+  @Test
+  void int_object_map_behaves_like_hash_map() {
+    Random random = new Random(42);
+    IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 200_000; i++) {
+      int key = random.nextInt(5_000) - 100;
+      switch (random.nextInt(3)) {
+        case 0 -> assertEquals(expected.put(key, i), map.put(key, i));
+        case 1 -> assertEquals(expected.remove(key), map.remove(key));
+        default -> assertEquals(expected.get(key), map.get(key));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    Map<Integer, Integer> actual = new HashMap<>();
+    map.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  void long_set_behaves_like_hash_set() {
+    Random random = new Random(42);
+    LongHashSet set = new LongHashSet();
+    Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 200_000; i++) {
+      long key = LongHashSet.pack(random.nextInt(100), random.nextInt(100));
+      switch (random.nextInt(3)) {
+        case 0 -> assertEquals(expected.add(key), set.add(key));
+        case 1 -> assertEquals(expected.remove(key), set.remove(key));
+        default -> assertEquals(expected.contains(key), set.contains(key));
+      }
+      assertEquals(expected.size(), set.size());
+    }
+    Set<Long> actual = new HashSet<>();
+    set.forEach(actual::add);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,166 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static de.thm.mni.pi2.musicService.TestMainVerticle.PORT;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.createDatabase;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.seed;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestReadModel {
+
+  @Test
+  void write_through_and_eviction() {
+    ReadModel model = new ReadModel(3);
+    model.addUser(1, "MaxMusti", "max@mustermann.de");
+    model.addUser(2, "Erika", "erika@mustermann.de");
+    model.addSong(10, "Hotel Room Service", "HipHop");
+    model.addSong(11, "Give It Up to Me", "HipHop");
+    model.addAssignment(1, 11);
+    model.addAssignment(1, 10);
+    model.addAssignment(2, 10);
+
+    JsonObject user = model.user(1, Fields.ALL);
+    assertEquals(new JsonObject().put("id", 1).put("name", "MaxMusti").put("email", "max@mustermann.de")
+      .put("songs", new JsonObject()
+        .put("10", new JsonObject().put("name", "Hotel Room Service"))
+        .put("11", new JsonObject().put("name", "Give It Up to Me"))), user);
+    assertEquals("10", user.getJsonObject("songs").fieldNames().iterator().next());
+    assertEquals(2, model.users(Fields.ALL).size());
+
+    // a fourth song ID exceeds the bound, the library of user 2 was read least recently
+    model.addAssignment(1, 12);
+    assertEquals(1, model.evictions());
+    assertNull(model.user(2, Fields.ALL));
+    assertNull(model.users(Fields.ALL));
+    assertNull(model.users(0, 10, Fields.ALL));
+    assertNotNull(model.users(0, 1, Fields.ALL));
+    // without songs, no library is needed
+    assertEquals(new JsonObject().put("1", new JsonObject().put("name", "MaxMusti"))
+        .put("2", new JsonObject().put("name", "Erika")),
+      model.users(Fields.parse("name", Fields.USER)));
+    assertEquals(new JsonObject().put("id", 2).put("email", "erika@mustermann.de"),
+      model.user(2, Fields.parse("id,email", Fields.USER)));
+    assertTrue(model.containsUser(2));
+
+    // a miss loaded from the database is cached, unless a write happened in between
+    long modifications = model.modifications();
+    model.removeAssignment(1, 12);
+    model.putLibrary(modifications, 2, new int[]{10});
+    assertNull(model.user(2, Fields.ALL));
+    model.putLibrary(model.modifications(), 2, new int[]{10});
+    assertEquals(1, model.user(2, Fields.ALL).getJsonObject("songs").size());
+
+    // the cascades remove the assignments of deleted songs and users
+    model.removeSong(10, new int[]{1, 2});
+    assertEquals(new JsonObject().put("11", new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")),
+      model.librarySongs(1, 0, 10, Fields.ALL));
+    assertTrue(model.librarySongs(2, 0, 10, Fields.ALL).isEmpty());
+    model.removeUser(2);
+    assertFalse(model.containsUser(2));
+    assertEquals(1, model.users(Fields.ALL).size());
+    assertTrue(model.hits() > 0);
+    assertTrue(model.misses() > 0);
+  }
+
+  @Test
+  void reload() {
+    ReadModel model = new ReadModel(2);
+    IntObjectHashMap<ReadModel.User> users = new IntObjectHashMap<>();
+    users.put(1, new ReadModel.User("MaxMusti", "max@mustermann.de"));
+    users.put(3, new ReadModel.User("Erika", "erika@mustermann.de"));
+    users.put(4, new ReadModel.User("Otto", "otto@mustermann.de"));
+    IntObjectHashMap<ReadModel.Song> songs = new IntObjectHashMap<>();
+    songs.put(10, new ReadModel.Song("Hotel Room Service", "HipHop"));
+    songs.put(11, new ReadModel.Song("Give It Up to Me", "HipHop"));
+    // user 2 was created after the users were read
+    long[] assignments = {
+      LongHashSet.pack(1, 10), LongHashSet.pack(2, 10), LongHashSet.pack(3, 10), LongHashSet.pack(3, 11), LongHashSet.pack(4, 11)};
+
+    long modifications = model.modifications();
+    model.addSong(12, "Pump It", "HipHop");
+    assertFalse(model.reload(modifications, users, songs, assignments, assignments.length));
+
+    assertTrue(model.reload(model.modifications(), users, songs, assignments, assignments.length));
+    assertTrue(model.loadedAt() > 0);
+    assertTrue(model.memoryBytes() > 0);
+    assertFalse(model.containsUser(2));
+    // the library of user 3 does not fit next to those of users 1 and 4 and is loaded when read
+    assertEquals(1, model.user(1, Fields.ALL).getJsonObject("songs").size());
+    assertNull(model.user(3, Fields.ALL));
+    assertEquals(1, model.user(4, Fields.ALL).getJsonObject("songs").size());
+    assertEquals(new JsonObject().put("10", new JsonObject().put("name", "Hotel Room Service").put("genre", "HipHop")),
+      model.songs(new int[]{10, 11}, 0, 1, Fields.ALL));
+  }
+
+  @Test
+  void read_model_misses_and_refresh(Vertx vertx, VertxTestContext testContext) throws Exception {
+    int boundedPort = PORT;
+    WebClient client = WebClient.create(vertx);
+    JsonObject db = createDatabase();
+    JsonObject config = new JsonObject()
+      .put("http.port", boundedPort)
+      .put("metrics.port", 0)
+      .put("readModel.maxLibrarySongs", 1)
+      .put("readModel.refreshInterval", 200)
+      .put("db", db);
+    MainVerticle bounded = new MainVerticle();
+    Promise<Void> refreshed = Promise.promise();
+    vertx.deployVerticle(bounded, new DeploymentOptions().setConfig(config))
+      .compose(id -> seed(client, boundedPort))
+      .compose(v -> client.post(boundedPort, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> client.put(boundedPort, "localhost", "/users/1/songs").sendJson(new JsonArray().add(1).add(2)))
+      .compose(r -> client.get(boundedPort, "localhost", "/users/1").send())
+      .compose(user -> {
+        // the library does not fit into the bound and is read from the database
+        testContext.verify(() -> {
+          assertEquals(200, user.statusCode());
+          assertEquals(2, user.bodyAsJsonObject().getJsonObject("songs").size());
+        });
+        return client.get(boundedPort, "localhost", "/users").send();
+      })
+      .compose(users -> {
+        testContext.verify(() -> {
+          assertEquals(2, users.bodyAsJsonObject().getJsonObject("users").getJsonObject("1").getJsonObject("songs").size());
+          // written by another process, seen once the model has been reloaded
+          try (Connection connection = DriverManager.getConnection(db.getString("url"), "sa", "");
+               Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO users (name, email) VALUES ('Erika', 'erika@mustermann.de')");
+          }
+        });
+        vertx.setTimer(500, id -> refreshed.complete());
+        return refreshed.future();
+      })
+      .compose(v -> client.get(boundedPort, "localhost", "/users/2").send())
+      .compose(other -> {
+        testContext.verify(() -> assertEquals("Erika", other.bodyAsJsonObject().getString("name")));
+        return client.get(bounded.metricsPort(), "localhost", "/metrics").send();
+      })
+      .onComplete(testContext.succeeding(metrics -> testContext.verify(() -> {
+        String body = metrics.bodyAsString();
+        assertTrue(body.contains("readmodel_misses_total 2\n"), body);
+        assertTrue(body.contains("db_query_seconds_count{query=\"loadLibrary\"} 1"), body);
+        assertTrue(body.contains("readmodel_staleness_seconds 0."), body);
+        testContext.completeNow();
+      })));
+  }
+}
@@ -0,0 +1,133 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static de.thm.mni.pi2.musicService.TestMainVerticle.PORT;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.config;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.createDatabase;
+import static de.thm.mni.pi2.musicService.TestMainVerticle.seed;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestRowStreamWriter {
+  private WebClient client;
+
+  @BeforeEach
+  void deploy_verticle(Vertx vertx, VertxTestContext testContext) throws Exception {
+    client = WebClient.create(vertx);
+    vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config(createDatabase())))
+      .onComplete(testContext.succeeding(id -> testContext.completeNow()));
+  }
+
+  @Test
+  void streamed_lists_match_buffered_lists(Vertx vertx, VertxTestContext testContext) {
+    client.post(PORT, "localhost", "/users")
+      .sendJsonObject(new JsonObject().put("username", "MaxMusti").put("email", "max@mustermann.de"))
+      .compose(r -> client.post(PORT, "localhost", "/users")
+        .sendJsonObject(new JsonObject().put("username", "tomatoturban").put("email", "tomatoturban@gmail.com")))
+      .compose(r -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Hotel Room Service").put("genre", "HipHop")))
+      .compose(r -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Give It Up to Me").put("genre", "HipHop")))
+      .compose(r -> client.put(PORT, "localhost", "/users/2/songs/1").send())
+      .compose(r -> client.put(PORT, "localhost", "/users/2/songs/2").send())
+      .compose(r -> client.get(PORT, "localhost", "/users").send())
+      .compose(buffered -> client.get(PORT, "localhost", "/users?stream=true").send()
+        .map(streamed -> {
+          testContext.verify(() -> {
+            assertEquals(200, streamed.statusCode());
+            assertEquals("chunked", streamed.getHeader("transfer-encoding"));
+            assertEquals(buffered.bodyAsJsonObject(), streamed.bodyAsJsonObject());
+          });
+          return streamed;
+        }))
+      .compose(r -> client.get(PORT, "localhost", "/songs").send())
+      .compose(buffered -> client.get(PORT, "localhost", "/songs?stream=true").send()
+        .map(streamed -> {
+          testContext.verify(() -> assertEquals(buffered.bodyAsJsonObject(), streamed.bodyAsJsonObject()));
+          return streamed;
+        }))
+      .compose(r -> client.delete(PORT, "localhost", "/songs/1").send())
+      .compose(r -> client.delete(PORT, "localhost", "/songs/2").send())
+      .compose(r -> client.get(PORT, "localhost", "/songs?stream=true").send())
+      .onComplete(testContext.succeeding(empty -> testContext.verify(() -> {
+        assertEquals(204, empty.statusCode());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void export_tables(Vertx vertx, VertxTestContext testContext) {
+    WebClient raw = WebClient.create(vertx, new WebClientOptions().setDecompressionSupported(false));
+    seed(client, PORT)
+      .compose(v -> client.post(PORT, "localhost", "/songs")
+        .sendJsonObject(new JsonObject().put("name", "Hello, \"World\"").put("genre", "Pop")))
+      .compose(r -> client.put(PORT, "localhost", "/users/1/songs/2").send())
+      .compose(r -> client.get(PORT, "localhost", "/export/users").send())
+      .compose(users -> {
+        testContext.verify(() -> {
+          assertEquals(200, users.statusCode());
+          assertEquals("application/x-ndjson", users.getHeader("Content-Type"));
+          assertEquals("attachment; filename=\"users.ndjson\"", users.getHeader("Content-Disposition"));
+          assertEquals(new JsonObject().put("id", 1).put("name", "MaxMusti").put("email", "max@mustermann.de"),
+            new JsonObject(users.bodyAsString().strip()));
+        });
+        return client.get(PORT, "localhost", "/export/songs?format=ndjson").send();
+      })
+      .compose(songs -> {
+        testContext.verify(() -> {
+          String[] lines = songs.bodyAsString().split("\n");
+          assertEquals(2, lines.length);
+          JsonObject song = new JsonObject(lines[1]);
+          assertEquals("Hello, \"World\"", song.getString("name"));
+          assertNotNull(song.getString("timestamp"));
+        });
+        return client.get(PORT, "localhost", "/export/songs?format=csv").send();
+      })
+      .compose(csv -> {
+        testContext.verify(() -> {
+          assertEquals("text/csv; charset=utf-8", csv.getHeader("Content-Type"));
+          String[] lines = csv.bodyAsString().split("\r\n");
+          assertEquals("id,name,genre,timestamp", lines[0]);
+          assertTrue(lines[2].startsWith("2,\"Hello, \"\"World\"\"\",Pop,"));
+        });
+        return client.get(PORT, "localhost", "/export/assignments").putHeader("Accept", "text/csv").send();
+      })
+      .compose(assignments -> {
+        testContext.verify(() -> {
+          String[] lines = assignments.bodyAsString().split("\r\n");
+          assertEquals(2, lines.length);
+          assertEquals("user_id,song_id,timestamp", lines[0]);
+          assertTrue(lines[1].startsWith("1,2,"));
+        });
+        return raw.get(PORT, "localhost", "/export/songs").putHeader("Accept-Encoding", "gzip").send();
+      })
+      .compose(compressed -> {
+        testContext.verify(() -> assertEquals("gzip", compressed.getHeader("Content-Encoding")));
+        return client.get(PORT, "localhost", "/export/playlists").send();
+      })
+      .compose(unknown -> {
+        testContext.verify(() -> {
+          assertEquals(404, unknown.statusCode());
+          assertNull(unknown.getHeader("Content-Disposition"));
+        });
+        return client.get(PORT, "localhost", "/export/songs?format=xml").send();
+      })
+      .onComplete(testContext.succeeding(invalid -> testContext.verify(() -> {
+        assertEquals(400, invalid.statusCode());
+        testContext.completeNow();
+      })));
+  }
+}
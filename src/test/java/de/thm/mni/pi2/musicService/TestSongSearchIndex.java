@@ -0,0 +1,95 @@
+package de.thm.mni.pi2.musicService;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestSongSearchIndex {
+  private static final String[] WORDS = {"Love", "Lovely", "Lover", "Hotel", "Room", "Service", "Give", "It", "Up", "To",
+    "Me", "Café", "Über", "Night", "Nightcall", "Rock", "Roll", "Pop", "Hip-Hop", "Jazz", "Blue", "Blues"};
+  private static final String[] GENRES = {"Pop", "Rock", "HipHop", "Jazz", "Blues", "Rock 'n' Roll"};
+  private static final Map<String, List<String>> TOKENS = new HashMap<>();
+
+  @Test
+  void tokens_are_normalized() {
+    assertArrayEquals(new String[]{"cafe", "uber", "hip", "hop"}, SongSearchIndex.tokens("Café  ÜBER hip-hop Hip"));
+  }
+
+  @Test
+  void search_behaves_like_full_scan() {
+    Random random = new Random(42);
+    SongSearchIndex index = new SongSearchIndex();
+    Map<Integer, SongSearchIndex.Song> expected = new HashMap<>();
+    for (int i = 0; i < 20_000; i++) {
+      int id = random.nextInt(5_000) + 1;
+      switch (random.nextInt(4)) {
+        case 0, 1 -> {
+          String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+            + (random.nextBoolean() ? " " + WORDS[random.nextInt(WORDS.length)] : "");
+          String genre = GENRES[random.nextInt(GENRES.length)];
+          index.addSong(id, name, genre);
+          expected.put(id, new SongSearchIndex.Song(id, name, genre));
+        }
+        case 2 -> {
+          index.removeSong(id);
+          expected.remove(id);
+        }
+        default -> {
+          String query = query(random);
+          int limit = random.nextInt(20) + 1;
+          assertEquals(scan(expected, query, limit), index.search(query, limit), query);
+        }
+      }
+      assertEquals(expected.size(), index.size());
+    }
+  }
+
+  private static String query(Random random) {
+    StringBuilder query = new StringBuilder();
+    int terms = random.nextInt(3);
+    for (int i = 0; i < terms; i++) {
+      query.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+    }
+    String last = random.nextBoolean() ? WORDS[random.nextInt(WORDS.length)] : GENRES[random.nextInt(GENRES.length)];
+    return query.append(last, 0, random.nextInt(last.length()) + 1).toString();
+  }
+
+  /**
+   * Ranks every song like the index does: name matches before genre matches, then shorter names, then lower IDs.
+   */
+  private static List<SongSearchIndex.Song> scan(Map<Integer, SongSearchIndex.Song> songs, String query, int limit) {
+    String[] terms = SongSearchIndex.tokens(query);
+    List<long[]> matches = new ArrayList<>();
+    for (SongSearchIndex.Song song : songs.values()) {
+      List<String> name = TOKENS.computeIfAbsent(song.name(), text -> Arrays.asList(SongSearchIndex.tokens(text)));
+      List<String> genre = TOKENS.computeIfAbsent(song.genre(), text -> Arrays.asList(SongSearchIndex.tokens(text)));
+      boolean all = true;
+      for (int i = 0; i < terms.length - 1; i++) {
+        all &= name.contains(terms[i]) || genre.contains(terms[i]);
+      }
+      String prefix = terms[terms.length - 1];
+      boolean inName = name.stream().anyMatch(token -> token.startsWith(prefix));
+      boolean inGenre = genre.stream().anyMatch(token -> token.startsWith(prefix));
+      if (all && (inName || inGenre)) {
+        matches.add(new long[]{inName ? 0 : 1, song.name().length(), song.id()});
+      }
+    }
+    matches.sort(Comparator.<long[]>comparingLong(match -> match[0])
+      .thenComparingLong(match -> match[1])
+      .thenComparingLong(match -> match[2]));
+    List<SongSearchIndex.Song> results = new ArrayList<>();
+    for (int i = 0; i < Math.min(limit, matches.size()); i++) {
+      results.add(songs.get((int) matches.get(i)[2]));
+    }
+    return results;
+  }
+}
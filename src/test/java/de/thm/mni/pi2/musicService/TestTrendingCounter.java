@@ -0,0 +1,66 @@
+package de.thm.mni.pi2.musicService;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestTrendingCounter {
+  private static final long MINUTE = 60_000L;
+
+  private long now = 1_700_000_000_000L;
+
+  @Test
+  void windows_slide() {
+    TrendingCounter counter = new TrendingCounter(() -> now);
+    for (int i = 0; i < 3; i++) {
+      counter.record(1);
+    }
+    now += 30 * MINUTE;
+    counter.record(2);
+    counter.record(2);
+    assertEquals(List.of(new TrendingCounter.Count(1, 3), new TrendingCounter.Count(2, 2)), counter.top("1h", 10));
+    assertEquals(List.of(new TrendingCounter.Count(2, 2)), counter.top("15m", 10));
+
+    // the first assignments leave the hour, all stay in the day
+    now += 31 * MINUTE;
+    assertEquals(List.of(new TrendingCounter.Count(2, 2)), counter.top("1h", 10));
+    assertEquals(List.of(new TrendingCounter.Count(1, 3), new TrendingCounter.Count(2, 2)), counter.top("24h", 10));
+    now += 2 * 24 * 60 * MINUTE;
+    assertTrue(counter.top("24h", 10).isEmpty());
+    assertEquals(2, counter.top("7d", 10).size());
+
+    // loaded after a restart
+    counter.record(3, now - 10 * MINUTE);
+    counter.record(4, now - 2 * 60 * MINUTE);
+    assertEquals(List.of(new TrendingCounter.Count(3, 1)), counter.top("1h", 10));
+    counter.removeSong(3);
+    assertTrue(counter.top("1h", 10).isEmpty());
+    assertThrows(IllegalArgumentException.class, () -> counter.top("2h", 10));
+  }
+
+  @Test
+  void heavy_hitters_among_many_songs() {
+    TrendingCounter counter = new TrendingCounter(() -> now);
+    for (int round = 0; round < 20; round++) {
+      for (int songId = 1; songId <= 5_000; songId++) {
+        counter.record(songId);
+      }
+      for (int songId = 10_001; songId <= 10_010; songId++) {
+        for (int i = 0; i < (songId - 10_000) * 50; i++) {
+          counter.record(songId);
+        }
+      }
+      now += MINUTE;
+    }
+    List<TrendingCounter.Count> top = counter.top("1h", 10);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(10_010 - i, top.get(i).songId());
+      // the sketch only overestimates
+      assertTrue(top.get(i).count() >= 20L * 50 * (10 - i));
+    }
+  }
+}
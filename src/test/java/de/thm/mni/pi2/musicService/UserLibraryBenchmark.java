@@ -0,0 +1,104 @@
+package de.thm.mni.pi2.musicService;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures the latency of GET /users/:id/songs for one user while the total number of assignments grows.
+ * Thanks to the index on user_songs (user_id, song_id) the latency should stay flat.
+ * Run with ./mvnw test -Pbenchmark.
+ */
+@Tag("benchmark")
+public class UserLibraryBenchmark {
+  private static final int PORT = 8898;
+  private static final int USERS = 1000;
+  private static final int SONGS = 1000;
+  private static final int REQUESTS = 2000;
+
+  @Test
+  void library_latency_by_total_assignments() throws Exception {
+    JsonObject db = TestMainVerticle.createDatabase();
+    Vertx vertx = Vertx.vertx();
+    try (Connection connection = DriverManager.getConnection(db.getString("url"), "sa", "")) {
+      seed(connection);
+      WebClient client = WebClient.create(vertx);
+      JsonObject config = new JsonObject().put("http.port", PORT).put("metrics.port", 0).put("db", db);
+      int assigned = 0;
+      for (int total : new int[]{10_000, 100_000, 500_000}) {
+        assign(connection, assigned, total);
+        assigned = total;
+        vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(config))
+          .compose(id -> measure(client, Math.min(50, total / USERS), 0, new long[REQUESTS]).map(latencies -> {
+            Arrays.sort(latencies);
+            System.out.printf("%,d assignments: GET /users/1/songs?limit=50 p50 %.3f ms, p99 %.3f ms%n",
+              total, latencies[REQUESTS / 2] / 1e6, latencies[REQUESTS * 99 / 100] / 1e6);
+            return id;
+          }))
+          .compose(vertx::undeploy)
+          .toCompletionStage().toCompletableFuture().get();
+      }
+    } finally {
+      vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+  }
+
+  private Future<long[]> measure(WebClient client, int expected, int i, long[] latencies) {
+    if (i == latencies.length) {
+      return Future.succeededFuture(latencies);
+    }
+    long start = System.nanoTime();
+    return client.get(PORT, "localhost", "/users/1/songs?limit=50").send()
+      .compose(response -> {
+        latencies[i] = System.nanoTime() - start;
+        assertEquals(expected, response.bodyAsJsonObject().getJsonObject("songs").size());
+        return measure(client, expected, i + 1, latencies);
+      });
+  }
+
+  private void seed(Connection connection) throws Exception {
+    try (PreparedStatement users = connection.prepareStatement("INSERT INTO users (name, email) VALUES (?, ?)");
+         PreparedStatement songs = connection.prepareStatement("INSERT INTO songs (name, genre) VALUES (?, ?)")) {
+      for (int i = 0; i < USERS; i++) {
+        users.setString(1, "user " + i);
+        users.setString(2, "user" + i + "@example.org");
+        users.addBatch();
+      }
+      for (int i = 0; i < SONGS; i++) {
+        songs.setString(1, "song " + i);
+        songs.setString(2, "Pop");
+        songs.addBatch();
+      }
+      users.executeBatch();
+      songs.executeBatch();
+    }
+  }
+
+  /**
+   * Adds assignments, walking song by song over all users so every user ends up with roughly the same library size.
+   */
+  private void assign(Connection connection, int from, int to) throws Exception {
+    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO user_songs (user_id, song_id) VALUES (?, ?)")) {
+      for (int i = from; i < to; i++) {
+        statement.setInt(1, i % USERS + 1);
+        statement.setInt(2, i / USERS + 1);
+        statement.addBatch();
+        if (i % 10_000 == 0) {
+          statement.executeBatch();
+        }
+      }
+      statement.executeBatch();
+    }
+  }
+}